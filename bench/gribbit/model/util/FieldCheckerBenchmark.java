@@ -0,0 +1,144 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.util;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gribbit.model.DataModel;
+import gribbit.model.field.annotation.Email;
+import gribbit.model.field.annotation.MaxIntegerValue;
+import gribbit.model.field.annotation.MaxLength;
+import gribbit.model.field.annotation.MinIntegerValue;
+import gribbit.model.field.annotation.MinLength;
+import gribbit.model.field.annotation.NormalizeSpacing;
+import gribbit.model.field.annotation.Regex;
+import gribbit.model.field.annotation.Required;
+
+/**
+ * Compares checking a form-sized DataModel against its constraint annotations using the per-field checkers
+ * compiled by FieldChecker, with the previous implementation that ran one reflective checker object per constraint
+ * (kept in gribbit.model.util.baseline).
+ * 
+ * The model only uses annotations that the previous implementation could register (it required MaxIntegerValue
+ * wherever MinIntegerValue was used), and its values already satisfy all constraints and are already trimmed and
+ * normalized, so that both implementations do the same work.
+ * 
+ * Run with: mvn -P benchmarks package && java -jar target/gribbit-*-benchmarks.jar FieldCheckerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldCheckerBenchmark {
+
+    public static class SignupForm extends DataModel {
+        @Required
+        @MinLength(2)
+        @MaxLength(40)
+        public String username;
+
+        @Email
+        public String email;
+
+        @Required
+        @MinLength(8)
+        public String password;
+
+        @NormalizeSpacing
+        @MaxLength(80)
+        public String fullName;
+
+        @Regex(regex = "[0-9]{5}")
+        public String zipCode;
+
+        public String referrer;
+
+        @MinIntegerValue(13)
+        @MaxIntegerValue(150)
+        public int age;
+
+        @MinIntegerValue(0)
+        @MaxIntegerValue(100)
+        public Integer numInvites;
+    }
+
+    private FieldChecker fieldChecker;
+
+    private gribbit.model.util.baseline.FieldChecker baselineFieldChecker;
+
+    private SignupForm form;
+
+    @Setup
+    public void setup() {
+        fieldChecker = new FieldChecker();
+        fieldChecker.registerClassForConstraintChecking(SignupForm.class);
+        baselineFieldChecker = new gribbit.model.util.baseline.FieldChecker();
+        baselineFieldChecker.registerClassForConstraintChecking(SignupForm.class);
+
+        form = new SignupForm();
+        form.username = "jdoe";
+        form.email = "jdoe@example.com";
+        form.password = "correct horse battery staple";
+        form.fullName = "Jane Doe";
+        form.zipCode = "94110";
+        form.referrer = "newsletter";
+        form.age = 30;
+        form.numInvites = 3;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Benchmark
+    public SignupForm compiledCheckers() {
+        fieldChecker.checkFieldValuesAgainstConstraintAnnotations(form);
+        return form;
+    }
+
+    @Benchmark
+    public List<String> compiledCheckersAllViolations() {
+        return fieldChecker.getConstraintViolations(form);
+    }
+
+    @Benchmark
+    public SignupForm baseline() {
+        baselineFieldChecker.checkFieldValuesAgainstConstraintAnnotations(form);
+        return form;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import gribbit.model.DataModel;
+
+/**
+ * Compares JSON.toJSON(), which caches a serialization plan per class, with the previous implementation that
+ * introspected every object (kept in gribbit.util.baseline), and with Jackson as configured in JSONJackson.
+ * 
+ * Run with: mvn -P benchmarks package && java -jar target/gribbit-*-benchmarks.jar JSONBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONBenchmark {
+
+    public static class Item extends DataModel {
+        public String name;
+        public String description;
+        public int quantity;
+        public long timestamp;
+        public boolean active;
+        public double price;
+        public Integer rating;
+        public List<String> tags;
+    }
+
+    @Param({ "10", "10000" })
+    public int numItems;
+
+    @Param({ "false", "true" })
+    public boolean prettyPrint;
+
+    private List<Item> items;
+
+    @Setup
+    public void setup() {
+        items = new ArrayList<>(numItems);
+        for (int i = 0; i < numItems; i++) {
+            Item item = new Item();
+            item.name = "Item " + i;
+            item.description = "A \"quoted\" description of item " + i + ", with <markup> & a newline\n";
+            item.quantity = i;
+            item.timestamp = 1_400_000_000_000L + i;
+            item.active = (i & 1) == 0;
+            item.price = i * 1.25;
+            item.rating = i % 5 == 0 ? null : i % 5;
+            item.tags = Arrays.asList("tag" + (i % 7), "tag" + (i % 11));
+            items.add(item);
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Benchmark
+    public String cachedPlan() {
+        return JSON.toJSON(items, prettyPrint);
+    }
+
+    @Benchmark
+    public String baseline() {
+        return gribbit.util.baseline.JSON.toJSON(items, prettyPrint);
+    }
+
+    /** Jackson's output format is set by GribbitProperties.PRETTY_PRINT_JSON, so it ignores prettyPrint. */
+    @Benchmark
+    public String jackson() throws JsonProcessingException {
+        return JSONJackson.mapper.writeValueAsString(items);
+    }
+}
@@ -50,6 +50,12 @@ public class CSRF {
     /** CSRF cookie name. */
     public static final String CSRF_COOKIE_NAME = "_csrf";
 
+    /**
+     * CSRF token request header -- used instead of the POST parameter for POST requests with a JSON body, with the
+     * token read from the CSRF cookie by Javascript code (see setCsrfCookie()).
+     */
+    public static final String CSRF_HEADER_NAME = "X-Csrf-Token";
+
     /**
      * Placeholder token used to hold a fixed number of characters in the csrf hidden input in forms on an HTML
      * page.
@@ -103,7 +109,7 @@ public class CSRF {
     /**
      * Sets a non-HTTP-only cookie "_csrf" with the given token. To implement CSRF protection, the cookie value
      * should be read by Javascript code and added to any same-origin Javascript requests in the X-Csrf-Token
-     * header. See: https://en.wikipedia.org/wiki/Cross-site_request_forgery#Cookie-to-Header_Token
+     * header (CSRF_HEADER_NAME). See: https://en.wikipedia.org/wiki/Cross-site_request_forgery#Cookie-to-Header_Token
      */
     public static void setCsrfCookie(String csrfTok, String path, Response response) {
         response.setCookie(CSRF_COOKIE_NAME, csrfTok, path, /* maxAge = */-1, /* httpOnly = */false);
@@ -0,0 +1,1556 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.DocumentType;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.nodes.XmlDeclaration;
+
+import gribbit.auth.CSRF;
+import gribbit.model.TemplateOutput.StringBuilderOutput;
+import gribbit.model.annotation.CacheFragment;
+import gribbit.model.field.annotation.IsURL;
+import gribbit.model.util.FieldChecker;
+import gribbit.route.RouteHandler;
+import gribbit.server.GribbitServer;
+import gribbit.server.config.GribbitProperties;
+import gribbit.server.siteresources.CacheExtension;
+import gribbit.server.siteresources.CacheExtension.HashInfo;
+import gribbit.util.Log;
+import gribbit.util.StringUtils;
+import gribbit.util.WebUtils;
+
+/**
+ * An HTML template compiled into a flat render program, so that the template DOM doesn't need to be walked (and
+ * static text doesn't need to be re-escaped) every time the template is rendered.
+ * 
+ * A render program is a list of ops: static chunks of HTML that were escaped when the template was compiled,
+ * interleaved with typed parameter slots that substitute a field of the TemplateModel, escaped for the context
+ * the parameter appears in (text, attribute value or URL attribute value). Attribute values that need to be
+ * validated once their parameters have been substituted (URL attributes, and id, name and class attributes) are
+ * grouped into a single op that performs the validation.
+ * 
+ * A template is compiled twice, once with prettyprinting and once without, since nested templates inherit the
+ * prettyprinting setting of the enclosing template (e.g. prettyprinting is switched off inside pre elements).
+ * Indentation still has to be performed at render time, since the indent level of a nested template depends on
+ * where it is rendered.
+ * 
+ * Static HTML is also encoded into UTF-8 at compile time, so that it can be copied straight into a ByteBuf when a
+ * template is rendered directly into a response buffer.
+ */
+public class CompiledTemplate {
+
+    private final Block prettyPrintedProgram;
+    private final Block notPrettyPrintedProgram;
+
+    /** The accessors for the fields referenced by the template, which make up the fragment cache key. */
+    private final ParamAccessor[] keyAccessors;
+
+    /** True if the class is annotated with CacheFragment. */
+    private final boolean cacheFragment;
+
+    /** The CacheFragment key method, of type (TemplateModel) -> Object, or null to use keyAccessors. */
+    private final MethodHandle keyMethod;
+
+    private CompiledTemplate(Block prettyPrintedProgram, Block notPrettyPrintedProgram, ParamAccessor[] keyAccessors,
+            boolean cacheFragment, MethodHandle keyMethod) {
+        this.prettyPrintedProgram = prettyPrintedProgram;
+        this.notPrettyPrintedProgram = notPrettyPrintedProgram;
+        this.keyAccessors = keyAccessors;
+        this.cacheFragment = cacheFragment;
+        this.keyMethod = keyMethod;
+    }
+
+    /**
+     * Render the template with the field values of the given TemplateModel. Returns true if the rendered HTML was
+     * indented (which happens when prettyPrint == true and the template contains a block element).
+     */
+    boolean render(TemplateModel model, String reqURLPath, int indentLevel, boolean prettyPrint,
+            TemplateOutput out) {
+        Block program = prettyPrint ? prettyPrintedProgram : notPrettyPrintedProgram;
+        if (cacheFragment) {
+            FragmentCache fragmentCache = GribbitServer.siteResources.getFragmentCache();
+            if (fragmentCache.isEnabled()) {
+                return renderCached(program, model, reqURLPath, indentLevel, prettyPrint, out, fragmentCache);
+            }
+        }
+        return program.render(model, reqURLPath, indentLevel, out);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Render the template using the fragment cache. On a cache miss, the template is rendered into a new buffer
+     * that starts with the trailing context of the output, so that the rendered fragment can be copied into any
+     * output with the same trailing context.
+     */
+    private boolean renderCached(Block program, TemplateModel model, String reqURLPath, int indentLevel,
+            boolean prettyPrint, TemplateOutput out, FragmentCache fragmentCache) {
+        String trailingContext = out.trailingContext();
+        FragmentCache.Key key = null;
+        if (trailingContext.length() <= FragmentCache.MAX_TRAILING_CONTEXT_LENGTH) {
+            ArrayList<Object> keyParts = new ArrayList<>();
+            keyParts.add(trailingContext);
+            keyParts.add(indentLevel);
+            keyParts.add(prettyPrint);
+            keyParts.add(GribbitProperties.PRETTY_PRINT_HTML);
+            if (appendKeyParts(model, keyParts, fragmentCache)) {
+                key = new FragmentCache.Key(keyParts.toArray());
+            }
+        }
+        if (key == null) {
+            return program.render(model, reqURLPath, indentLevel, out);
+        }
+
+        FragmentCache.Fragment fragment = fragmentCache.get(key, reqURLPath);
+        if (fragment == null) {
+            long hashURIGeneration = CacheExtension.getHashURIGeneration();
+            StringBuilder buf = new StringBuilder(trailingContext);
+            StringBuilderOutput fragmentOut = new StringBuilderOutput(buf);
+            // Render placeholder CSRF tokens, and record their positions
+            fragmentOut.csrfTokenPositions = new ArrayList<>();
+            boolean wasIndented = program.render(model, reqURLPath, indentLevel, fragmentOut);
+            // Indentation may have removed some of the trailing whitespace of the trailing context
+            int contextLen = 0;
+            while (contextLen < trailingContext.length() && contextLen < buf.length()
+                    && buf.charAt(contextLen) == trailingContext.charAt(contextLen)) {
+                contextLen++;
+            }
+            for (int i = 0; i < fragmentOut.csrfTokenPositions.size(); i++) {
+                fragmentOut.csrfTokenPositions.set(i, fragmentOut.csrfTokenPositions.get(i) - contextLen);
+            }
+            fragment = new FragmentCache.Fragment(buf.substring(contextLen), fragmentOut.csrfTokenPositions,
+                    trailingContext.length() - contextLen, wasIndented, fragmentOut.dependsOnRequestURL,
+                    fragmentOut.dependsOnHashURIs, hashURIGeneration);
+            fragmentCache.put(key, reqURLPath, fragment);
+        }
+        return fragment.render(out);
+    }
+
+    /**
+     * Append the parts of the cache key for a TemplateModel to keyParts. Returns false if the model has a key
+     * method that returned null.
+     */
+    private boolean appendKeyParts(TemplateModel model, ArrayList<Object> keyParts, FragmentCache fragmentCache) {
+        keyParts.add(FragmentCache.TEMPLATE_START);
+        keyParts.add(model.getClass());
+        if (keyMethod != null) {
+            Object key;
+            try {
+                key = (Object) keyMethod.invokeExact(model);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+            if (key == null) {
+                return false;
+            }
+            keyParts.add(key);
+            return true;
+        }
+        for (ParamAccessor accessor : keyAccessors) {
+            if (!appendValueKeyParts(accessor.get(model), keyParts, fragmentCache)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Append the parts of the cache key for a field value to keyParts. */
+    private static boolean appendValueKeyParts(Object value, ArrayList<Object> keyParts,
+            FragmentCache fragmentCache) {
+        if (value == null) {
+            keyParts.add(FragmentCache.NULL_PART);
+        } else if (value instanceof String || value instanceof Character || value instanceof Boolean
+                || value instanceof Enum || value instanceof Class) {
+            keyParts.add(value);
+        } else if (value instanceof TemplateModel) {
+            TemplateModel nestedModel = (TemplateModel) value;
+            CompiledTemplate nestedTemplate = GribbitServer.siteResources.getCompiledTemplate(nestedModel
+                    .getClass());
+            if (nestedTemplate == null) {
+                // Shouldn't happen
+                throw new RuntimeException("Could not find template for TemplateModel "
+                        + nestedModel.getClass().getName());
+            }
+            return nestedTemplate.appendKeyParts(nestedModel, keyParts, fragmentCache);
+        } else if (value instanceof List || value.getClass().isArray()) {
+            boolean isArray = value.getClass().isArray();
+            List<?> list = isArray ? null : (List<?>) value;
+            int n = isArray ? Array.getLength(value) : list.size();
+            keyParts.add(FragmentCache.LIST_START);
+            keyParts.add(n);
+            for (int i = 0; i < n; i++) {
+                if (!appendValueKeyParts(isArray ? Array.get(value, i) : list.get(i), keyParts, fragmentCache)) {
+                    return false;
+                }
+            }
+        } else if (value instanceof Iterable) {
+            // Other Iterables (e.g. database query results) can't be made part of the key without consuming them
+            return false;
+        } else if (value instanceof DataModel) {
+            // The DataModel bound to a form: include the values of the fields that may be used to populate inputs
+            keyParts.add(FragmentCache.DATA_MODEL_START);
+            keyParts.add(value.getClass());
+            for (Field field : fragmentCache.getDataModelFields(value.getClass())) {
+                Object fieldValue;
+                try {
+                    fieldValue = field.get(value);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+                keyParts.add(fieldValue == null ? FragmentCache.NULL_PART : fieldValue.toString());
+            }
+        } else {
+            // Other values are rendered using their toString() method
+            keyParts.add(value.toString());
+        }
+        return true;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** An op in a render program. */
+    private static abstract class Op {
+        /**
+         * Render the op into the output at the given base indent level. Returns true if the op marked the output as
+         * indented.
+         */
+        abstract boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out);
+    }
+
+    /** A sequence of ops. */
+    private static class Block extends Op {
+        private final Op[] ops;
+
+        /** True if the block contains content that always marks the output as indented, e.g. a script element. */
+        private final boolean alwaysIndented;
+
+        Block(Op[] ops, boolean alwaysIndented) {
+            this.ops = ops;
+            this.alwaysIndented = alwaysIndented;
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            boolean wasIndented = alwaysIndented;
+            for (Op op : ops) {
+                wasIndented |= op.render(model, reqURLPath, indentLevel, out);
+                out.checkpoint();
+            }
+            return wasIndented;
+        }
+    }
+
+    /**
+     * Pre-escaped static HTML. Escaping collapses a whitespace character into the preceding space in the output,
+     * so if the escaped text starts with whitespace, and it could not be determined at compile time whether the
+     * preceding output ends in a space, there are two versions of the escaped text.
+     */
+    private static class StaticText extends Op {
+        private final String text;
+        private final String textAfterSpace;
+
+        /** The text, pre-encoded as UTF-8 for rendering into a ByteBuf. */
+        private final byte[] textUTF8;
+        private final byte[] textAfterSpaceUTF8;
+
+        StaticText(String text, String textAfterSpace) {
+            this.text = text;
+            this.textAfterSpace = textAfterSpace;
+            this.textUTF8 = text.getBytes(StandardCharsets.UTF_8);
+            this.textAfterSpaceUTF8 = textAfterSpace == null ? null : textAfterSpace.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            if (textAfterSpace != null && out.isEmptyOrEndsWithSpace()) {
+                out.appendStatic(textAfterSpace, textAfterSpaceUTF8);
+            } else {
+                out.appendStatic(text, textUTF8);
+            }
+            return false;
+        }
+    }
+
+    /** Flush the output, if it is streamed. */
+    private static class Flush extends Op {
+        static final Flush INSTANCE = new Flush();
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            out.flush();
+            return false;
+        }
+    }
+
+    /**
+     * The value of the hidden CSRF input of a form: the CSRF token of the request the template is rendered for, or
+     * the CSRF token placeholder if there is no token.
+     */
+    private static class CsrfToken extends Op {
+        static final CsrfToken INSTANCE = new CsrfToken();
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            out.appendCsrfToken();
+            return false;
+        }
+    }
+
+    /** Prettyprinting indentation. */
+    private static class Indent extends Op {
+        private final int relIndentLevel;
+        private final boolean marksIndented;
+
+        /**
+         * If non-null, this is the open tag of a custom element, which is only indented if the element has not
+         * been registered as an inline element. (Custom inline elements may be registered after templates are
+         * compiled.)
+         */
+        private final String customElementName;
+
+        Indent(int relIndentLevel, boolean marksIndented, String customElementName) {
+            this.relIndentLevel = relIndentLevel;
+            this.marksIndented = marksIndented;
+            this.customElementName = customElementName;
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            if (customElementName != null
+                    && GribbitServer.siteResources.getCustomInlineElements().contains(customElementName)) {
+                return false;
+            }
+            out.indent(indentLevel + relIndentLevel);
+            return marksIndented;
+        }
+    }
+
+    /**
+     * The child nodes of an element that may or may not be indented, depending on the parameter values. The close
+     * tag of the element is indented on its own line if any of the child nodes were indented.
+     */
+    private static class ChildBlock extends Op {
+        private final Block children;
+        private final int relIndentLevel;
+
+        ChildBlock(Block children, int relIndentLevel) {
+            this.children = children;
+            this.relIndentLevel = relIndentLevel;
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            boolean hasIndentedChild = children.render(model, reqURLPath, indentLevel, out);
+            if (hasIndentedChild) {
+                out.indent(indentLevel + relIndentLevel);
+            }
+            return hasIndentedChild;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * An accessor for the field of a TemplateModel class that a template parameter is bound to. Accessors are
+     * resolved once per TemplateModel class when the template is compiled, and are shared by all the parameter
+     * slots that refer to the same field.
+     */
+    private static class ParamAccessor {
+        /** The declared type of the field. */
+        private final Class<?> fieldType;
+
+        /**
+         * Reads the field value, of type (TemplateModel) -> Object. Primitive-typed values are converted into
+         * strings.
+         */
+        private final MethodHandle getter;
+
+        /** True if the field is annotated with IsURL. */
+        private final boolean isURL;
+
+        /** True if the value of the field may contain nested templates, which may be indented when rendered. */
+        private final boolean mayContainTemplates;
+
+        ParamAccessor(Field field) {
+            MethodHandle fieldGetter;
+            try {
+                fieldGetter = MethodHandles.lookup().unreflectGetter(field);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Field " + field.getDeclaringClass().getName() + "." + field.getName()
+                        + " is not accessible", e);
+            }
+            // Turn primitive types into strings
+            MethodHandle toString = PRIMITIVE_TO_STRING.get(field.getType());
+            if (toString != null) {
+                fieldGetter = MethodHandles.filterReturnValue(fieldGetter, toString);
+            }
+            this.getter = fieldGetter.asType(MethodType.methodType(Object.class, TemplateModel.class));
+            this.isURL = field.isAnnotationPresent(IsURL.class);
+            this.fieldType = field.getType();
+            this.mayContainTemplates = TemplateModel.class.isAssignableFrom(fieldType) || fieldType.isArray()
+                    || Iterable.class.isAssignableFrom(fieldType);
+        }
+
+        /** Read the value of the field. */
+        Object get(TemplateModel model) {
+            try {
+                return (Object) getter.invokeExact(model);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                // Should not happen, field getters don't throw checked exceptions
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Converters from primitive field values to strings. (char values are boxed into Character.) */
+    private static final HashMap<Class<?>, MethodHandle> PRIMITIVE_TO_STRING = new HashMap<>();
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (Class<?> boxedType : new Class<?>[] { Integer.class, Boolean.class, Long.class, Float.class,
+                    Double.class, Short.class }) {
+                Class<?> primitiveType = (Class<?>) boxedType.getField("TYPE").get(null);
+                PRIMITIVE_TO_STRING.put(primitiveType, lookup.findStatic(boxedType, "toString",
+                        MethodType.methodType(String.class, primitiveType)));
+            }
+            PRIMITIVE_TO_STRING.put(Byte.TYPE, lookup.findStatic(CompiledTemplate.class, "byteToString",
+                    MethodType.methodType(String.class, Byte.TYPE)));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static String byteToString(byte b) {
+        return "0x" + Integer.toString(b, 16);
+    }
+
+    /**
+     * Get the URL of the route handled by a RouteHandler class, so that routes can be inserted into href
+     * attributes.
+     * 
+     * i.e. URI routes can be inserted into URI attributes by defining a field in a TemplateModel like: "public
+     * Class<? extends RestHandler> myUrl = MyURLHandler.class;" then including a parameter in HTML like: "<a
+     * href='${myUrl}'>Click here</a>"
+     * 
+     * (The concrete type parameter of all Class<?> fields were checked on template loading.)
+     */
+    private static String routeURLForClass(Object fieldValue) {
+        @SuppressWarnings("unchecked")
+        Class<? extends RouteHandler> routeHandlerClass = (Class<? extends RouteHandler>) fieldValue;
+        return GribbitServer.siteResources.routeForClass(routeHandlerClass).getRoutePath().getNormalizedPath();
+    }
+
+    /** A template parameter in a text node. */
+    private static class TextParam extends Op {
+        private final ParamAccessor accessor;
+        private final int relIndentLevel;
+        private final boolean prettyPrint;
+
+        TextParam(ParamAccessor accessor, int relIndentLevel, boolean prettyPrint) {
+            this.accessor = accessor;
+            this.relIndentLevel = relIndentLevel;
+            this.prettyPrint = prettyPrint;
+        }
+
+        /** Escape text for an HTML text node. */
+        private static void encodeParamText(String unsafeStr, TemplateOutput out) {
+            // OWASP Rule #1:
+            //     HTML Escape Before Inserting Untrusted Data into HTML Element Content
+            // Turn "\n" within the text that is substituted into param into <br> for convenience
+            out.appendEscaped(unsafeStr, /* turnNewlineIntoBreak = */true);
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            // Render the content of the Template field with the same name as the HTML parameter into String
+            // format, then HTML-escape it unless it's already HTML (i.e. unless the parameter is a Template field
+            // inside a Template object). Null field values are ignored, i.e. they result in a parameter
+            // substitution of "".  
+            Object fieldValue = accessor.get(model);
+            if (fieldValue == null) {
+                return false;
+            }
+            boolean wasIndented = false;
+            Class<?> fieldType = fieldValue.getClass();
+            if (fieldType == String.class) {
+                // Expand a string parameter (would be caught by the last "else" clause, but is included
+                // here for speed, since this is the most common case).
+                String unsafeStr = (String) fieldValue;
+                if (!unsafeStr.isEmpty()) {
+                    encodeParamText(unsafeStr, out);
+                }
+
+            } else if (TemplateModel.class.isAssignableFrom(fieldType)) {
+                // Recursively render nested template
+                wasIndented = ((TemplateModel) fieldValue).renderTemplate(reqURLPath, indentLevel + relIndentLevel,
+                        prettyPrint, out);
+
+            } else if (fieldType.isArray() || List.class.isAssignableFrom(fieldType)) {
+                // We checked the element types of list and array fields when the TemplateModel class was
+                // loaded, so we can assume the type of each element is TemplateModel.
+                boolean isArray = fieldType.isArray();
+                @SuppressWarnings("unchecked")
+                List<? extends TemplateModel> list = isArray ? null : (List<? extends TemplateModel>) fieldValue;
+                int n = isArray ? Array.getLength(fieldValue) : list.size();
+                // Render each item in the list or array
+                for (int i = 0; i < n; i++) {
+                    TemplateModel elt = isArray ? (TemplateModel) Array.get(fieldValue, i) : list.get(i);
+                    if (elt != null) {
+                        // Recursively render nested template
+                        wasIndented |= elt.renderTemplate(reqURLPath, indentLevel + relIndentLevel, prettyPrint,
+                                out);
+                    }
+                }
+
+            } else if (fieldValue instanceof Iterable) {
+                // Render each item of another Iterable (e.g. the results of a database query) as it is produced,
+                // so that the items never need to be held in memory all at once
+                @SuppressWarnings("unchecked")
+                Iterator<? extends TemplateModel> iter = ((Iterable<? extends TemplateModel>) fieldValue).iterator();
+                try {
+                    while (iter.hasNext()) {
+                        TemplateModel elt = iter.next();
+                        if (elt != null) {
+                            // Recursively render nested template
+                            wasIndented |= elt.renderTemplate(reqURLPath, indentLevel + relIndentLevel,
+                                    prettyPrint, out);
+                        }
+                    }
+                } finally {
+                    if (iter instanceof AutoCloseable) {
+                        try {
+                            ((AutoCloseable) iter).close();
+                        } catch (Exception e) {
+                            throw new RuntimeException("Could not close iterator", e);
+                        }
+                    }
+                }
+
+            } else if (DataModel.class.isAssignableFrom(fieldType)) {
+                // Should never happen, this was disallowed on template loading
+                throw new RuntimeException("Form-bound " + DataModel.class.getSimpleName() + " subclass "
+                        + fieldType.getName() + " cannot be substituted into a template parameter");
+
+            } else if (Class.class.isAssignableFrom(fieldType)) {
+                // Special case: if a field type is a Class<? extends RouteHandler>, then insert the URL of the
+                // RouteHandler's route as a string
+                out.append(routeURLForClass(fieldValue));
+
+            } else {
+                // For all other non-builtin types, call the toString() method. (We checked already during template
+                // loading that all these field types have their own toString() method defined.)
+                encodeParamText(fieldValue.toString(), out);
+            }
+            return wasIndented;
+        }
+    }
+
+    /** A template parameter in an attribute value. */
+    private static class AttrParam extends Op {
+        private final ParamAccessor accessor;
+        private final boolean isURLAttr;
+
+        AttrParam(ParamAccessor accessor, boolean isURLAttr) {
+            this.accessor = accessor;
+            this.isURLAttr = isURLAttr;
+        }
+
+        /** Escape text for an HTML attribute value. */
+        private void encodeParamText(String unsafeStr, TemplateOutput out) {
+            if (isURLAttr) {
+                // This parameter may be just one part of a URI, so we need to check the whole composed URI string
+                // for validity after all params have been substituted -- just insert unsafe param string directly
+                // for now. URI attribute values are validated after all parameters have been substituted. 
+                out.append(unsafeStr);
+            } else {
+                // OWASP Rule #2:
+                //     Attribute Escape Before Inserting Untrusted Data into HTML Common Attributes.
+                out.appendEscaped(unsafeStr, /* turnNewlineIntoBreak = */false);
+            }
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            Object fieldValue = accessor.get(model);
+            if (fieldValue == null) {
+                return false;
+            }
+            Class<?> fieldType = fieldValue.getClass();
+            if (fieldType == String.class) {
+                String unsafeStr = (String) fieldValue;
+                if (!unsafeStr.isEmpty()) {
+                    encodeParamText(unsafeStr, out);
+                }
+
+            } else if (TemplateModel.class.isAssignableFrom(fieldType) || fieldType.isArray()
+                    || Iterable.class.isAssignableFrom(fieldType)) {
+                // Shouldn't happen, this was checked for on template load, but included here for XSS safety
+                throw new RuntimeException("Can't include HTML inside an attribute value");
+
+            } else if (DataModel.class.isAssignableFrom(fieldType)) {
+                // Should never happen, this was disallowed on template loading
+                throw new RuntimeException("Form-bound " + DataModel.class.getSimpleName() + " subclass "
+                        + fieldType.getName() + " cannot be substituted into a template parameter");
+
+            } else if (Class.class.isAssignableFrom(fieldType)) {
+                out.append(routeURLForClass(fieldValue));
+
+            } else {
+                encodeParamText(fieldValue.toString(), out);
+            }
+            return false;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** The validation to perform on an attribute value once template parameters have been substituted into it. */
+    private static enum AttrValueCheck {
+        URL, ID_OR_NAME, CLASS;
+    }
+
+    /**
+     * An attribute value that needs to be validated (and possibly rewritten, for URL attributes) after all template
+     * parameters have been substituted into it.
+     */
+    private static class AttrValue extends Op {
+        private final Block parts;
+        private final String tagName;
+        private final String attrName;
+        private final AttrValueCheck check;
+
+        AttrValue(Block parts, String tagName, String attrName, AttrValueCheck check) {
+            this.parts = parts;
+            this.tagName = tagName;
+            this.attrName = attrName;
+            this.check = check;
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            // The attribute value may need to be rewritten once rendered, so it can't be flushed in the meantime
+            out.beginRewritableRegion();
+            int outLenOnEntry = out.length();
+            parts.render(model, reqURLPath, indentLevel, out);
+
+            // Check validity of entirety of text value (template text with substituted param values)
+            String escapedTextWithSubstitutedParams = out.substring(outLenOnEntry);
+            if (escapedTextWithSubstitutedParams.length() > 0) {
+                if (check == AttrValueCheck.URL) {
+                    String replacementURL = checkURL(escapedTextWithSubstitutedParams, reqURLPath, out);
+
+                    // Replace the URI that was rendered into the buffer with the hashed version, if there is a
+                    // hashed version of the resource
+                    if (replacementURL != null) {
+                        out.setLength(outLenOnEntry);
+                        out.append(replacementURL);
+                    }
+
+                } else {
+                    // OWASP Rule #1:
+                    //     Strictly validate unsafe attributes such as background, id and name.
+                    // See also http://goo.gl/fKZhFA -- we disallow '.' and ':' because they can cause
+                    // problems with jQuery.
+
+                    if (!(check == AttrValueCheck.CLASS ? WebUtils.VALID_CSS_ID : WebUtils.VALID_HTML_NAME_OR_ID)
+                            .matcher(escapedTextWithSubstitutedParams).matches()) {
+                        throw new RuntimeException("Bad characters in attribute value: " + attrName + "=\""
+                                + escapedTextWithSubstitutedParams + "\"");
+                    }
+                    if (StringUtils.containsUppercaseChar(escapedTextWithSubstitutedParams)) {
+                        throw new RuntimeException("There are uppercase characters in attribute " + attrName + "=\""
+                                + escapedTextWithSubstitutedParams
+                                + "\", but browsers implement case sensitivity differently. "
+                                + "Identifiers should all be lowercase.");
+                    }
+                }
+            }
+            out.endRewritableRegion();
+            return false;
+        }
+
+        /**
+         * Check that a URL attribute value contains only valid characters and uses a safe protocol. Returns the
+         * URL that should be rendered in place of the URL, or null if the URL should be rendered unchanged.
+         */
+        private String checkURL(String urlStr, String reqURLPath, TemplateOutput out) {
+            ValidatedURL validatedURL = validateURL(urlStr, tagName, attrName);
+
+            // Make URLs absolute (this is important for hash URIs to be able to be properly resolved).
+            if (validatedURL.isRelative) {
+                out.dependsOnRequestURL = true;
+            }
+            String replacementURL = validatedURL.getResolvedURL(urlStr, reqURLPath);
+            if (replacementURL == null && validatedURL.isLocal) {
+                replacementURL = hashURI(urlStr, out);
+            }
+
+            // SVG script injection attacks: See http://goo.gl/cx16TR
+            //
+            // Allowing URIs that serve SVG content to be substituted into a URI attribute of
+            // a template could be an attack vector. However, there is  no way to know for sure
+            // what content type is being served by a URI without the server fetching content from
+            // the URI itself, which is prohibitive (and then there would still be no guarantee 
+            // that the user wouldn't be served different content than the web server sees).
+            // We could impose the same-origin policy for SVG, but then we couldn't supply custom
+            // URI parameters for images and link hrefs. We will rely on the expectation that
+            // browsers are not supposed to run JS code for SVG files that are linked to in the
+            // src attribute of an image tag, SVG is (hopefully) only unsafe when linked from an
+            // <object> element or similar context where JS is allowed to run. (We don't allow
+            // template parameters inside an object or applet element, so we should be safe.)
+            // Log.warning("Using parameter in URI attribute \"" + attrName + 
+            // "\" is unsafe due to the possibility for SVG script injection: http://goo.gl/cx16TR");
+
+            return replacementURL;
+        }
+
+        /**
+         * Validate a URL attribute value, throwing a RuntimeException if the URL is not valid, uses an unsafe
+         * protocol, or uses a protocol that is not allowed in this attribute.
+         */
+        static ValidatedURL validateURL(String urlStr, String tagName, String attrName) {
+            ValidatedURL validatedURL = ValidatedURL.get(urlStr, attrName);
+            // OWASP Rule #6:
+            //     See http://goo.gl/cqealh
+            if (validatedURL.isMailtoOrTel && !(tagName.equals("a") && attrName.equals("href"))) {
+                throw new RuntimeException("URL " + urlStr + " should be used in an a.href attribute");
+            }
+            return validatedURL;
+        }
+
+        /** Returns the hash URI for a local URL, or null if the resource has not been hashed. */
+        static String hashURI(String urlStr, TemplateOutput out) {
+            // For local URIs, see if there is an MD5-hashed version of the URL, and if so,
+            // replace the URL with the hashed version.
+            // TODO: extend URL-rewriting to CSS image resources 
+            out.dependsOnHashURIs = true;
+            HashInfo hashInfo = CacheExtension.getHashInfo(urlStr);
+            return hashInfo == null ? null : hashInfo.getHashURI();
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * A local URL attribute value without template parameters, which was validated and made absolute when the
+     * template was compiled. It is still rewritten into a hash URI at render time, once the resource has been
+     * hashed.
+     */
+    private static class StaticURL extends Op {
+        private final String url;
+        private final byte[] urlUTF8;
+
+        StaticURL(String url) {
+            this.url = url;
+            this.urlUTF8 = url.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            String hashURI = AttrValue.hashURI(url, out);
+            if (hashURI != null) {
+                out.append(hashURI);
+            } else {
+                out.appendStatic(url, urlUTF8);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The attributes of an input or option element in a form that is bound to a DataModel field of the
+     * TemplateModel.
+     * 
+     * Sets initial values of inputs in the form to the corresponding values in the DataModel, if the DataModel and
+     * its field with the same name as the "name" attribute of a form input are both non-null.
+     */
+    private static class FormInputAttrs extends Op {
+        private final ParamAccessor formField;
+        private final Class<?> formModelClass;
+        private final String inputName;
+        private final Field inputField;
+        private final String tagName;
+        private final String[] attrNames;
+        private final String[] attrVals;
+        private final Block[] attrValPrograms;
+
+        FormInputAttrs(ParamAccessor formField, Class<?> formModelClass, String selectName, String tagName,
+                String[] attrNames, String[] attrVals, Block[] attrValPrograms) {
+            this.formField = formField;
+            this.formModelClass = formModelClass;
+            this.tagName = tagName;
+            this.attrNames = attrNames;
+            this.attrVals = attrVals;
+            this.attrValPrograms = attrValPrograms;
+            // Inside a <select> tag, use the name attr of the select tag for all <option> elements
+            this.inputName = selectName == null || selectName.isEmpty() ? attr("name") : selectName;
+            this.inputField = findInputField(formModelClass, inputName);
+        }
+
+        /**
+         * Find the field of the DataModel with the same name as the form input, or return null if there is no
+         * such field, or if the field cannot be sent to the user. (DataModel fields annotated with @Private or with
+         * @OnlyReceive and DBModel id fields cannot be sent to the user.)
+         */
+        private static Field findInputField(Class<?> formModelClass, String inputName) {
+            if (!inputName.isEmpty()) {
+                try {
+                    Field field = formModelClass.getField(inputName);
+                    if (!FieldChecker.fieldIsPrivate(field, /* checkGet = */true, /* checkSet = */false)) {
+                        return field;
+                    }
+                } catch (NoSuchFieldException | SecurityException e) {
+                    // If there are inputs that can't be populated from named fields, don't try to set their
+                    // default value
+                }
+            }
+            return null;
+        }
+
+        private String attr(String attrName) {
+            for (int i = 0; i < attrNames.length; i++) {
+                if (attrNames[i].equals(attrName)) {
+                    return attrVals[i];
+                }
+            }
+            return "";
+        }
+
+        @Override
+        boolean render(TemplateModel model, String reqURLPath, int indentLevel, TemplateOutput out) {
+            DataModel formModel = (DataModel) formField.get(model);
+
+            // Replace the attribute values in the template with overridden values if a non-null formModel has
+            // been provided to pre-populate these values.
+            HashMap<String, String> replaceAttrVal = null;
+            ArrayList<String> removeAttrName = null;
+            if (formModel != null) {
+                // Use the input field resolved when the template was compiled, unless the DataModel is a subclass
+                // of the declared type of the form field
+                Field formModelField = formModel.getClass() == formModelClass ? inputField
+                        : findInputField(formModel.getClass(), inputName);
+                if (formModelField != null) {
+                    try {
+                        Object formModelFieldValue = formModelField.get(formModel);
+                        if (formModelFieldValue != null) {
+                            // The DataModel associated with this form is non-null, and the field in the
+                            // data model with the same name as this input is non-null.
+
+                            // HTML-escape the field
+                            String type = attr("type");
+                            if (type.isEmpty() && tagName.equals("option")) {
+                                // Handle "option" inside a "select" element similarly to "radio"
+                                type = "select";
+                            }
+                            switch (type) {
+                            case "text":
+                            case "hidden":
+                            case "email":
+                            case "tel":
+                            case "number":
+                            case "url":
+                                if (replaceAttrVal == null) {
+                                    replaceAttrVal = new HashMap<>();
+                                }
+                                replaceAttrVal.put("value", formModelFieldValue.toString());
+                                break;
+
+                            case "radio":
+                            case "select":
+                                String selectedAttr = type.equals("radio") ? "checked" : "selected";
+                                if (attr("value").equals(formModelFieldValue.toString())) {
+                                    if (replaceAttrVal == null) {
+                                        replaceAttrVal = new HashMap<>();
+                                    }
+                                    replaceAttrVal.put(selectedAttr, "");
+                                } else {
+                                    if (removeAttrName == null) {
+                                        removeAttrName = new ArrayList<>();
+                                    }
+                                    removeAttrName.add(selectedAttr);
+                                }
+                                break;
+
+                            case "checkbox":
+                                if (formModelFieldValue.toString().equals("true")) {
+                                    if (replaceAttrVal == null) {
+                                        replaceAttrVal = new HashMap<>();
+                                    }
+                                    replaceAttrVal.put("checked", "");
+                                } else {
+                                    if (removeAttrName == null) {
+                                        removeAttrName = new ArrayList<>();
+                                    }
+                                    removeAttrName.add("checked");
+                                }
+                                break;
+
+                            case "password":
+                                // Intentionally ignore this -- should not fill in password field
+                                // from a DataModel object
+                                break;
+
+                            case "date":
+                            case "datetime":
+                            case "datetime-local":
+                            case "month":
+                            case "time":
+                            case "week":
+                                // TODO: Not yet supported
+                                break;
+
+                            case "color":
+                            case "range":
+                                // TODO: Not yet supported
+                                break;
+
+                            case "submit":
+                            case "reset":
+                            case "search":
+                            case "button":
+                            case "image":
+                            case "file":
+                                // Should not have a field named "submit" (or any of these others)
+                                // in a DataModel -- ignore
+                                break;
+
+                            default:
+                            }
+                        }
+                    } catch (Exception e1) {
+                        // If there are inputs that can't be populated from named fields,
+                        // don't try to set their default value
+                    }
+                }
+            }
+
+            // Append the attributes and values, substituting any values replaced above.
+            for (int i = 0; i < attrNames.length; i++) {
+                String attrName = attrNames[i];
+                if (removeAttrName == null || !removeAttrName.contains(attrName)) {
+                    String replacement = replaceAttrVal == null ? null : replaceAttrVal.remove(attrName);
+                    out.append(" ");
+                    out.append(attrName);
+                    if (replacement != null) {
+                        appendReplacementAttrVal(replacement, out);
+                    } else if (attrValPrograms[i] != null) {
+                        out.append("=\"");
+                        attrValPrograms[i].render(model, reqURLPath, indentLevel, out);
+                        out.append("\"");
+                    }
+                }
+            }
+
+            // Append any attrs that were added for input forms that didn't replace a value already
+            // in the input element
+            if (replaceAttrVal != null && !replaceAttrVal.isEmpty()) {
+                for (Entry<String, String> ent : replaceAttrVal.entrySet()) {
+                    out.append(" ");
+                    out.append(ent.getKey());
+                    appendReplacementAttrVal(ent.getValue(), out);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Append an attribute value taken from the DataModel bound to the form. (These are only ever used for the
+         * value, checked and selected attributes of input and option elements, which don't need validating.)
+         */
+        private static void appendReplacementAttrVal(String attrVal, TemplateOutput out) {
+            if (!attrVal.isEmpty()) {
+                out.append("=\"");
+                out.appendEscaped(attrVal, /* turnNewlineIntoBreak = */false);
+                out.append("\"");
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a block of ops. Adjacent static content is merged into a single StaticText op, and escaped at compile
+     * time.
+     */
+    private static class BlockBuilder {
+        private final ArrayList<Op> ops = new ArrayList<>();
+
+        /** Pending static text, escaped assuming the preceding output does not end in a space. */
+        private StringBuilder pending = new StringBuilder();
+
+        /**
+         * Pending static text, escaped assuming the preceding output ends in a space (or is empty), or null if the
+         * escaped text doesn't depend on the preceding output.
+         */
+        private StringBuilder pendingAfterSpace;
+
+        /** The last character of the output preceding the pending text, or -1 if unknown. */
+        private int prevChar;
+
+        private boolean alwaysIndented;
+
+        BlockBuilder(int prevChar) {
+            this.prevChar = prevChar;
+        }
+
+        /** Return the last character of the output so far, or -1 if it can't be determined at compile time. */
+        int lastChar() {
+            if (pendingAfterSpace != null) {
+                return -1;
+            }
+            return pending.length() > 0 ? pending.charAt(pending.length() - 1) : prevChar;
+        }
+
+        /** Append HTML to the output. */
+        void appendRaw(CharSequence html) {
+            pending.append(html);
+            if (pendingAfterSpace != null) {
+                pendingAfterSpace.append(html);
+            }
+        }
+
+        /**
+         * Escape text (encodeForHTML collapses a whitespace character into any space preceding it in the buffer,
+         * so buf needs to contain the preceding output, or if buf is empty, the output is assumed to be preceded by
+         * prevCharIfEmpty).
+         */
+        private static void escape(CharSequence text, StringBuilder buf, char prevCharIfEmpty) {
+            if (buf.length() > 0) {
+                WebUtils.encodeForHTMLAttribute(text, buf);
+            } else {
+                StringBuilder tmp = new StringBuilder(text.length() * 2 + 1);
+                tmp.append(prevCharIfEmpty);
+                WebUtils.encodeForHTMLAttribute(text, tmp);
+                buf.append(tmp, 1, tmp.length());
+            }
+        }
+
+        /** Escape text and append it to the output. */
+        void appendEscaped(CharSequence text) {
+            if (text.length() == 0) {
+                return;
+            }
+            if (pendingAfterSpace == null && pending.length() == 0 && prevChar == -1) {
+                // Don't know whether the preceding output ends in a space -- produce both versions of the text
+                pendingAfterSpace = new StringBuilder();
+            }
+            if (pendingAfterSpace == null) {
+                escape(text, pending, (char) prevChar);
+            } else {
+                escape(text, pending, 'x');
+                escape(text, pendingAfterSpace, ' ');
+                if (pending.length() == 0 && pendingAfterSpace.length() == 0) {
+                    // Text was all whitespace, and was collapsed away in both cases
+                    pendingAfterSpace = null;
+                } else if (pending.length() > 0 && pendingAfterSpace.length() > 0
+                        && pending.toString().equals(pendingAfterSpace.toString())) {
+                    // Escaped text doesn't depend on the preceding output
+                    pendingAfterSpace = null;
+                }
+            }
+        }
+
+        /**
+         * Returns the static text of the block, if the block contains only static text that doesn't depend on the
+         * preceding output, otherwise returns null.
+         */
+        String getStaticText() {
+            return ops.isEmpty() && pendingAfterSpace == null ? pending.toString() : null;
+        }
+
+        /** Add a dynamic op to the block. */
+        void addOp(Op op) {
+            flush();
+            ops.add(op);
+            prevChar = -1;
+        }
+
+        void markAlwaysIndented() {
+            alwaysIndented = true;
+        }
+
+        private void flush() {
+            if (pending.length() > 0 || (pendingAfterSpace != null && pendingAfterSpace.length() > 0)) {
+                ops.add(new StaticText(pending.toString(),
+                        pendingAfterSpace == null ? null : pendingAfterSpace.toString()));
+            }
+            pending.setLength(0);
+            pendingAfterSpace = null;
+        }
+
+        Block build() {
+            flush();
+            return new Block(ops.toArray(new Op[ops.size()]), alwaysIndented);
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Whether a node will be marked as indented when it is rendered. */
+    private static enum IndentStatus {
+        NEVER, DEPENDS_ON_PARAMS, ALWAYS;
+
+        IndentStatus or(IndentStatus other) {
+            return other.ordinal() > ordinal() ? other : this;
+        }
+    }
+
+    /** Compiles a template into a render program. */
+    private static class Compiler {
+        private final Class<? extends TemplateModel> templateClass;
+
+        Compiler(Class<? extends TemplateModel> templateClass) {
+            this.templateClass = templateClass;
+        }
+
+        /**
+         * The accessors for the template parameters of this class, indexed by parameter name. Parameters bound to
+         * private fields map to null.
+         */
+        private final HashMap<String, ParamAccessor> paramNameToAccessor = new HashMap<>();
+
+        /** The accessors for the DataModel fields that forms in the template are bound to, indexed by form id. */
+        private final HashMap<String, ParamAccessor> formIdToAccessor = new HashMap<>();
+
+        /** Returns the accessors for all fields referenced by the template. */
+        ParamAccessor[] getKeyAccessors() {
+            ArrayList<ParamAccessor> keyAccessors = new ArrayList<>();
+            for (ParamAccessor accessor : paramNameToAccessor.values()) {
+                if (accessor != null) {
+                    keyAccessors.add(accessor);
+                }
+            }
+            keyAccessors.addAll(formIdToAccessor.values());
+            return keyAccessors.toArray(new ParamAccessor[keyAccessors.size()]);
+        }
+
+        /**
+         * Get the accessor for the public field corresponding to a template parameter, or null if the field is
+         * private. DataModel fields annotated with @Private or @OnlyReceive and DBModel id fields cannot be sent
+         * to the user, so parameters bound to them are ignored.
+         */
+        private ParamAccessor getParamAccessor(String paramName) {
+            if (paramNameToAccessor.containsKey(paramName)) {
+                return paramNameToAccessor.get(paramName);
+            }
+            Field field;
+            try {
+                field = templateClass.getField(paramName);
+            } catch (NoSuchFieldException | SecurityException e) {
+                // Should not happen, NoSuchFieldException and SecurityException were checked for when
+                // templates were loaded 
+                throw new RuntimeException(e);
+            }
+            ParamAccessor accessor = FieldChecker.fieldIsPrivate(field, /* checkGet = */true, //
+                    /* checkSet = */false) ? null : new ParamAccessor(field);
+            paramNameToAccessor.put(paramName, accessor);
+            return accessor;
+        }
+
+        private static boolean isIEConditionalComment(String contents) {
+            return contents.startsWith("[if ") || contents.startsWith(" [if ");
+        }
+
+        /** Determine whether a node will be marked as indented when it is rendered. */
+        private IndentStatus indentStatus(Node node, boolean prettyPrint) {
+            if (node instanceof Element) {
+                Element e = (Element) node;
+                String tagName = e.tagName();
+                IndentStatus status = IndentStatus.NEVER;
+                if (prettyPrint && !WebUtils.INLINE_ELEMENTS.contains(tagName)) {
+                    // Custom elements may be registered as inline elements after the template is compiled
+                    status = tagName.indexOf('-') >= 0 ? IndentStatus.DEPENDS_ON_PARAMS : IndentStatus.ALWAYS;
+                }
+                if (!WebUtils.VOID_ELEMENTS.contains(tagName)) {
+                    status = status.or(childIndentStatus(e, prettyPrint && !tagName.equals("pre")));
+                }
+                return status;
+
+            } else if (node instanceof TextNode) {
+                Matcher matcher = TemplateModel.TEMPLATE_PARAM_PATTERN.matcher(((TextNode) node).getWholeText());
+                while (matcher.find()) {
+                    ParamAccessor accessor = getParamAccessor(matcher.group(1));
+                    if (accessor != null && accessor.mayContainTemplates) {
+                        return IndentStatus.DEPENDS_ON_PARAMS;
+                    }
+                }
+                return IndentStatus.NEVER;
+
+            } else if (node instanceof DataNode || node instanceof DocumentType || node instanceof XmlDeclaration) {
+                return IndentStatus.ALWAYS;
+
+            } else if (node instanceof Comment) {
+                return prettyPrint || isIEConditionalComment(((Comment) node).getData()) ? IndentStatus.ALWAYS
+                        : IndentStatus.NEVER;
+
+            } else {
+                return IndentStatus.NEVER;
+            }
+        }
+
+        private IndentStatus childIndentStatus(Element e, boolean prettyPrint) {
+            IndentStatus status = IndentStatus.NEVER;
+            for (Node child : e.childNodes()) {
+                status = status.or(indentStatus(child, prettyPrint));
+                if (status == IndentStatus.ALWAYS) {
+                    break;
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Compile an attribute value, substituting template params, and performing proper HTML escaping and
+         * validation.
+         */
+        private void compileAttrValue(String tagName, String attrName, String attrVal, BlockBuilder out) {
+            if (attrName.equals("value") && attrVal.equals(CSRF.CSRF_TOKEN_PLACEHOLDER)) {
+                // The hidden CSRF input that the template loader added to a form
+                out.addOp(CsrfToken.INSTANCE);
+                return;
+            }
+            boolean isURLAttr = WebUtils.isURLAttr(tagName, attrName);
+
+            // Split attribute value into static text and params
+            ArrayList<Object> parts = new ArrayList<>();
+            boolean hasParams = false;
+            Matcher matcher = TemplateModel.TEMPLATE_PARAM_PATTERN.matcher(attrVal);
+            int prevMatchIdx = 0;
+            while (matcher.find()) {
+                parts.add(attrVal.subSequence(prevMatchIdx, matcher.start()));
+                prevMatchIdx = matcher.end();
+                ParamAccessor accessor = getParamAccessor(matcher.group(1));
+                if (accessor != null) {
+                    // If this attribute contains a param that is bound to a field that has the IsURL annotation,
+                    // then the whole attr val becomes URL-typed
+                    if (accessor.isURL) {
+                        isURLAttr = true;
+                    }
+                    parts.add(new AttrParam(accessor, isURLAttr));
+                    hasParams = true;
+                }
+            }
+            parts.add(attrVal.subSequence(prevMatchIdx, attrVal.length()));
+
+            // URL attributes need to be checked and resolved at render time, even if they don't contain params.
+            // The static parts of id, name and class attributes were already checked when the template was loaded.
+            AttrValueCheck check = isURLAttr ? AttrValueCheck.URL
+                    : !hasParams ? null
+                            : attrName.equals("class") ? AttrValueCheck.CLASS
+                                    : attrName.equals("id") || attrName.equals("name") ? AttrValueCheck.ID_OR_NAME
+                                            : null;
+
+            BlockBuilder valueOut = check == null ? out : new BlockBuilder(out.lastChar());
+            for (Object part : parts) {
+                if (part instanceof Op) {
+                    valueOut.addOp((Op) part);
+                } else {
+                    valueOut.appendEscaped((CharSequence) part);
+                }
+            }
+            if (check == AttrValueCheck.URL && !hasParams) {
+                // Validate and resolve URLs without params once, when the template is compiled. (Invalid URLs
+                // are left to be rejected at render time.)
+                String url = valueOut.getStaticText();
+                ValidatedURL validatedURL = null;
+                if (url != null && !url.isEmpty()) {
+                    try {
+                        validatedURL = AttrValue.validateURL(url, tagName, attrName);
+                    } catch (RuntimeException e) {
+                        // Fall through
+                    }
+                }
+                // Relative URLs still need to be resolved against the request URL at render time
+                if (validatedURL != null && !validatedURL.isRelative) {
+                    String resolvedURL = validatedURL.getResolvedURL(url, "");
+                    if (resolvedURL != null) {
+                        out.appendRaw(resolvedURL);
+                    } else if (validatedURL.isLocal) {
+                        out.addOp(new StaticURL(url));
+                    } else {
+                        out.appendRaw(url);
+                    }
+                    return;
+                }
+            }
+            if (check != null) {
+                out.addOp(new AttrValue(valueOut.build(), tagName, attrName, check));
+            }
+        }
+
+        /** Compile the attributes of an element. */
+        private void compileAttrs(Element e, ParamAccessor formField, String selectName, BlockBuilder out) {
+            String tagName = e.tagName();
+            if (formField != null && (tagName.equals("input") || tagName.equals("option"))) {
+                // The attributes of inputs in a form that is bound to a DataModel depend on the DataModel 
+                List<Attribute> attrs = e.attributes().asList();
+                int numAttrs = attrs.size();
+                String[] attrNames = new String[numAttrs];
+                String[] attrVals = new String[numAttrs];
+                Block[] attrValPrograms = new Block[numAttrs];
+                for (int i = 0; i < numAttrs; i++) {
+                    attrNames[i] = attrs.get(i).getKey();
+                    attrVals[i] = attrs.get(i).getValue();
+                    if (!attrVals[i].isEmpty()) {
+                        BlockBuilder valueOut = new BlockBuilder('"');
+                        compileAttrValue(tagName, attrNames[i], attrVals[i], valueOut);
+                        attrValPrograms[i] = valueOut.build();
+                    }
+                }
+                out.addOp(new FormInputAttrs(formField, formField.fieldType, selectName, tagName, attrNames,
+                        attrVals, attrValPrograms));
+
+            } else {
+                for (Attribute attr : e.attributes()) {
+                    String attrName = attr.getKey();
+                    String attrVal = attr.getValue();
+                    out.appendRaw(" ");
+                    out.appendRaw(attrName);
+                    if (!attrVal.isEmpty()) {
+                        out.appendRaw("=\"");
+                        compileAttrValue(tagName, attrName, attrVal, out);
+                        out.appendRaw("\"");
+                    }
+                }
+            }
+        }
+
+        /** Recursively compile a node of the template DOM. */
+        private void compileNode(Node node, ParamAccessor formField, String selectName, boolean normalizeTextSpacing,
+                int indentLevel, boolean prettyPrint, BlockBuilder out) {
+            if (node instanceof Element) {
+                Element e = (Element) node;
+                String tagName = e.tagName();
+
+                if (tagName.equals("form")) {
+                    // For form elements, match form id against field names of this TemplateModel
+                    String formId = e.attr("id");
+                    if (!formId.isEmpty()) {
+                        try {
+                            Field field = templateClass.getField(formId);
+                            if (DataModel.class.isAssignableFrom(field.getType())) {
+                                // Set formField for child nodes
+                                formField = formIdToAccessor.get(formId);
+                                if (formField == null) {
+                                    formIdToAccessor.put(formId, formField = new ParamAccessor(field));
+                                }
+                            }
+                        } catch (NoSuchFieldException | SecurityException e1) {
+                            // This form doesn't match a field with the same name as the form id -- don't do
+                            // any special processing of this form
+                        }
+                    }
+                } else if (tagName.equals("select")) {
+                    // For <select> elements, use name of select to identify <option> elements inside select 
+                    selectName = e.attr("name");
+                }
+
+                // Only indent block elements, inline elements should not be indented because it would introduce
+                // extra whitespace, potentially in the wrong place
+                if (prettyPrint && !WebUtils.INLINE_ELEMENTS.contains(tagName)) {
+                    out.addOp(new Indent(indentLevel, /* marksIndented = */true,
+                            tagName.indexOf('-') >= 0 ? tagName : null));
+                }
+
+                // Render the open tag for this element
+                out.appendRaw("<");
+                out.appendRaw(tagName);
+                compileAttrs(e, formField, selectName, out);
+                out.appendRaw(">");
+                if (prettyPrint && (tagName.equals("head") || tagName.equals("body"))) {
+                    // Always indent after body and head elements
+                    out.addOp(new Indent(indentLevel + 1, /* marksIndented = */false, null));
+                }
+
+                // Switch off prettyprinting and text spacing normalization inside the pre element
+                if (tagName.equals("pre")) {
+                    // FIXME: See http://www.impressivewebs.com/css-white-space/ too, you can also specify
+                    // whitespace significance in CSS
+                    prettyPrint = false;
+                    normalizeTextSpacing = false;
+                }
+
+                // Don't render contents or close tag for void elements
+                if (!WebUtils.VOID_ELEMENTS.contains(tagName)) {
+                    // Indent close tag on its own separate line if anything after start tag was prettyprinted,
+                    // otherwise render close tag on same line since content was all inline (or there were no 
+                    // child nodes) 
+                    IndentStatus childIndentStatus = prettyPrint ? childIndentStatus(e, prettyPrint)
+                            : IndentStatus.NEVER;
+                    if (childIndentStatus == IndentStatus.DEPENDS_ON_PARAMS) {
+                        BlockBuilder childOut = new BlockBuilder(out.lastChar());
+                        for (Node child : e.childNodes()) {
+                            compileNode(child, formField, selectName, normalizeTextSpacing, indentLevel + 1,
+                                    prettyPrint, childOut);
+                        }
+                        out.addOp(new ChildBlock(childOut.build(), indentLevel));
+                    } else {
+                        for (Node child : e.childNodes()) {
+                            compileNode(child, formField, selectName, normalizeTextSpacing, indentLevel + 1,
+                                    prettyPrint, out);
+                        }
+                        if (childIndentStatus == IndentStatus.ALWAYS) {
+                            out.addOp(new Indent(indentLevel, /* marksIndented = */false, null));
+                        }
+                    }
+                    // Render close tag for this element
+                    out.appendRaw("</");
+                    out.appendRaw(tagName);
+                    out.appendRaw(">");
+                    if (tagName.equals("head")) {
+                        // Send the head early if the output is streamed, so the browser can start fetching resources
+                        out.addOp(Flush.INSTANCE);
+                    }
+                }
+
+            } else if (node instanceof TextNode) {
+
+                String nodeText = ((TextNode) node).getWholeText();
+                if (normalizeTextSpacing) {
+                    // We never indent text nodes (they are inline), but unless we're in a <pre> element, if
+                    // prettyprinting is turned on, we at least normalize the spacing
+                    nodeText = StringUtils.normalizeSpacing(nodeText);
+                }
+                // OWASP Rule #1:
+                //     HTML Escape Before Inserting Untrusted Data into HTML Element Content.
+                Matcher matcher = TemplateModel.TEMPLATE_PARAM_PATTERN.matcher(nodeText);
+                int prevMatchIdx = 0;
+                while (matcher.find()) {
+                    out.appendEscaped(nodeText.subSequence(prevMatchIdx, matcher.start()));
+                    prevMatchIdx = matcher.end();
+                    ParamAccessor accessor = getParamAccessor(matcher.group(1));
+                    if (accessor != null) {
+                        out.addOp(new TextParam(accessor, indentLevel, prettyPrint));
+                    }
+                }
+                out.appendEscaped(nodeText.subSequence(prevMatchIdx, nodeText.length()));
+
+            } else if (node instanceof DataNode) {
+
+                // FIXME: Probably need to properly escape DataNode contents (differently for each of style 
+                // and script elements?)
+                String data = ((DataNode) node).getWholeData();
+                if (prettyPrint) {
+                    // If prettyprinting, indent each line separately at the current indent level
+                    for (CharSequence line : StringUtils.splitAsList(data, "\n")) {
+                        out.addOp(new Indent(indentLevel, /* marksIndented = */false, null));
+                        out.appendRaw(line);
+                    }
+                } else {
+                    // If not prettyprinting, insert whole data node text
+                    out.appendRaw(data);
+                }
+                out.markAlwaysIndented();
+
+            } else if (node instanceof DocumentType || node instanceof XmlDeclaration) {
+
+                out.appendRaw(node.toString());
+                out.markAlwaysIndented();
+
+            } else if (node instanceof Comment) {
+
+                // Only add comments to output if we're prettyprinting, unless comment is an IE conditional
+                String contents = ((Comment) node).getData();
+                if (prettyPrint || isIEConditionalComment(contents)) {
+                    out.addOp(new Indent(indentLevel, /* marksIndented = */false, null));
+                    out.appendRaw("<!-- ");
+                    out.appendRaw(contents);
+                    out.appendRaw(" -->");
+                    out.markAlwaysIndented();
+                }
+
+            } else {
+                Log.warning("Unknown node type " + node.getClass().getName() + " when compiling template for "
+                        + templateClass.getName());
+            }
+        }
+
+        private Block compile(List<Node> templateNodes, boolean prettyPrint) {
+            BlockBuilder out = new BlockBuilder(-1);
+            for (Node node : templateNodes) {
+                compileNode(node, null, null, /* normalizeTextSpacing = */true, 0, prettyPrint, out);
+            }
+            return out.build();
+        }
+    }
+
+    /**
+     * Compile the DOM nodes of the template for the given TemplateModel class. The template must already have been
+     * checked for validity by the template loader.
+     */
+    public static CompiledTemplate compile(Class<? extends TemplateModel> templateClass, List<Node> templateNodes) {
+        Compiler compiler = new Compiler(templateClass);
+        Block prettyPrintedProgram = compiler.compile(templateNodes, /* prettyPrint = */true);
+        Block notPrettyPrintedProgram = compiler.compile(templateNodes, /* prettyPrint = */false);
+
+        CacheFragment cacheFragmentAnnotation = templateClass.getAnnotation(CacheFragment.class);
+        MethodHandle keyMethod = null;
+        if (cacheFragmentAnnotation != null && !cacheFragmentAnnotation.keyMethod().isEmpty()) {
+            String keyMethodName = cacheFragmentAnnotation.keyMethod();
+            try {
+                Method method = templateClass.getMethod(keyMethodName);
+                if (Modifier.isStatic(method.getModifiers()) || method.getReturnType() == Void.TYPE) {
+                    throw new RuntimeException("Key method " + templateClass.getName() + "." + keyMethodName
+                            + "() of " + CacheFragment.class.getSimpleName()
+                            + " annotation must be a non-static method that returns a value");
+                }
+                keyMethod = MethodHandles.lookup().unreflect(method)
+                        .asType(MethodType.methodType(Object.class, TemplateModel.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new RuntimeException("Could not find public no-arg key method " + templateClass.getName() + "."
+                        + keyMethodName + "() of " + CacheFragment.class.getSimpleName() + " annotation", e);
+            }
+        }
+        return new CompiledTemplate(prettyPrintedProgram, notPrettyPrintedProgram, compiler.getKeyAccessors(),
+                cacheFragmentAnnotation != null, keyMethod);
+    }
+}
@@ -25,6 +25,10 @@
  */
 package gribbit.model;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
 import org.mongojack.Id;
 import org.mongojack.WriteResult;
 
@@ -46,6 +50,44 @@ public abstract class DBModel<K> extends DataModel {
      * Save (upsert) this object into the database.
      */
     public WriteResult<DBModel<K>, K> save() {
+        prepareForSave();
+        return Database.save(this);
+    }
+
+    /**
+     * Save (upsert) this object into the database without blocking the calling thread. The returned stage is
+     * completed exceptionally if the object could not be prepared for saving or written. The object should not be
+     * modified until the returned stage has completed.
+     */
+    public CompletionStage<WriteResult<DBModel<K>, K>> saveAsync() {
+        try {
+            prepareForSave();
+        } catch (RuntimeException e) {
+            CompletableFuture<WriteResult<DBModel<K>, K>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return Database.saveAsync(this);
+    }
+
+    /**
+     * Save (upsert) this object into the database in the background, if the class is annotated with WriteBehind,
+     * otherwise save it immediately. The object is copied before this method returns, so it may be modified again
+     * straight away. If onWritten is not null, it is called once the object has been written, with a null argument
+     * if the write was acknowledged by the database, or with the exception that caused the write to fail.
+     */
+    public void saveLater(Consumer<Throwable> onWritten) {
+        prepareForSave();
+        Database.saveLater(this, onWritten);
+    }
+
+    /**
+     * Prepare this object to be saved, by checking that the id is not null, and that the values in the object fields
+     * satisfy any constraint annotations. String fields are trimmed (unless annotated with NoTrim), spacing is
+     * normalized in fields annotated with NormalizeSpacing, and fields annotated with Email are lowercased, and the
+     * resulting values are written back to the fields before the object is saved.
+     */
+    public void prepareForSave() {
         if (id == null) {
             throw new RuntimeException("id cannot be null");
         }
@@ -57,8 +99,6 @@ public abstract class DBModel<K> extends DataModel {
             throw new RuntimeException(
                     "Object cannot be saved, constraint annotations not satisified: " + e.getMessage());
         }
-
-        return Database.save(this);
     }
 
     /**
@@ -26,19 +26,19 @@
 package gribbit.model;
 
 import org.bson.types.ObjectId;
-import org.mongojack.WriteResult;
 
 public abstract class DBModelObjectIdKey extends DBModel<ObjectId> {
 
     public DBModelObjectIdKey() {
     }
 
+    /** Assign a new ObjectId to the id field if it is null, then prepare the object to be saved. */
     @Override
-    public WriteResult<DBModel<ObjectId>, ObjectId> save() {
+    public void prepareForSave() {
         if (id == null) {
             id = new ObjectId();
         }
-        return super.save();
+        super.prepareForSave();
     }
 
     public ObjectId getId() {
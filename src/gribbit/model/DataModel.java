@@ -25,13 +25,10 @@
  */
 package gribbit.model;
 
-import java.lang.reflect.Field;
-import java.time.LocalDate;
-import java.time.format.DateTimeParseException;
+import java.io.InputStream;
 
-import gribbit.model.util.FieldChecker;
+import gribbit.model.util.JSONBinder;
 import gribbit.response.exception.BadRequestException;
-import gribbit.response.exception.InternalServerErrorException;
 import gribbit.response.exception.ResponseException;
 import gribbit.server.GribbitServer;
 import gribbit.util.JSON;
@@ -62,169 +59,40 @@ public abstract class DataModel {
      *             if any of the constraint annotations are not specified
      */
     public void bindFromPost(HttpServerRequest request) throws ResponseException {
+        // Bind the POST params using the binder that was created for this class when it was registered
+        GribbitServer.siteResources.getFormBinder(getClass()).bind(this, request);
 
-        // Match field names against POST param names, and set values of fields whenever there is a match
-        // HashSet<String> unusedPostParams = new HashSet<String>(request.getPostParamNames());
-        for (Field field : getClass().getFields()) {
-            String fieldName = field.getName();
-            // unusedPostParams.remove(fieldName);
-
-            if (FieldChecker.fieldIsPrivate(field, /* checkGet = */false, /* checkSet = */true)) {
-                // Ignore attempts to set fields annotated with @Private or @OnlySend,
-                // or where the field is a DBModel id field
-
-                // Log.warning("Attempt to bind POST param \"" + field.getName() + "\" to field marked @"
-                //         + Private.class.getName() + " or @" + OnlySend.class.getName()
-                //         + " (or an id field of a subclass of " + DBModel.class.getName() + ") in class "
-                //         + this.getClass().getName() + "; ignoring");
-
-            } else {
-                Class<?> fieldType = field.getType();
-
-                try {
-                    // For each field in class, look up field name in POST parameters and then
-                    // URL query parameters
-                    String postParamValForField = request.getParam(fieldName);
-                    if (postParamValForField == null) {
-
-                        // TODO
-                        // FileUpload postFileUploadForField = request.getPostFileUploadParam(fieldName);
-                        // if (postFileUploadForField != null) {
-
-                        //                            // There was a file uploaded
-                        //                            if (fieldType == FileUpload.class) {
-                        //                                // Save the FileUpload object in the field. This doesn't actually read the
-                        //                                // file contents (loading the file into RAM could kill the server). The
-                        //                                // request handler must read the file before responding, or increment the
-                        //                                // reference count if they want to keep the file after the request has been
-                        //                                // sent, because the file will otherwise be released.
-                        //                                field.set(this, postFileUploadForField);
-                        //                            }
-
-                        // } else {
-
-                        // There is a field in formModelInstance DataModel that is not in the
-                        // POST request
-                        if (FieldChecker.fieldIsRequired(field)) {
-                            throw new BadRequestException("Field " + getClass().getName() + "." + fieldName
-                                    + " required, but not sent in POST request");
-                        }
-                        // }
-
-                    } else {
-                        // Try binding POST request param to correspondingly-named field in
-                        // the formModelInstance DataModel
-
-                        if (fieldType == String.class) {
-                            field.set(this, postParamValForField);
-
-                        } else if (fieldType == Integer.class) {
-                            field.set(this, new Integer(postParamValForField));
-
-                        } else if (fieldType == Integer.TYPE) {
-                            field.setInt(this, Integer.parseInt(postParamValForField));
-
-                        } else if (fieldType == Long.class) {
-                            field.set(this, new Long(postParamValForField));
-
-                        } else if (fieldType == Long.TYPE) {
-                            field.setLong(this, Long.parseLong(postParamValForField));
-
-                        } else if (fieldType == Short.class) {
-                            field.set(this, new Short(postParamValForField));
-
-                        } else if (fieldType == Short.TYPE) {
-                            field.setShort(this, Short.parseShort(postParamValForField));
-
-                        } else if (fieldType == Float.class) {
-                            field.set(this, new Float(postParamValForField));
-
-                        } else if (fieldType == Float.TYPE) {
-                            field.setFloat(this, Float.parseFloat(postParamValForField));
-
-                        } else if (fieldType == Double.class) {
-                            field.set(this, new Double(postParamValForField));
-
-                        } else if (fieldType == Double.TYPE) {
-                            field.setDouble(this, Double.parseDouble(postParamValForField));
-
-                        } else if (fieldType == Boolean.class || fieldType == Boolean.TYPE) {
-                            // Boolean fields are bound from checkbox form inputs
-
-                            String lower = postParamValForField.toLowerCase();
-                            boolean checkboxVal = lower.equals("yes") || lower.equals("on") || lower.equals("1")
-                                    || lower.equals("true");
-                            if (fieldType == Boolean.class) {
-                                field.set(this, new Boolean(checkboxVal));
-                            } else if (fieldType == Boolean.TYPE) {
-                                field.setBoolean(this, checkboxVal);
-                            }
-
-                        } else if (fieldType == Character.class || fieldType == Character.TYPE) {
-                            // Character fields are bound from text, but limited to a length of 1
-
-                            if (postParamValForField.length() > 1) {
-                                throw new BadRequestException("Field " + getClass().getName() + "." + fieldName
-                                        + " requires a single character, got " + postParamValForField.length()
-                                        + " characters");
-                            } else if (postParamValForField.length() == 1) {
-                                char c = postParamValForField.charAt(0);
-                                if (fieldType == Character.class) {
-                                    field.set(this, new Character((char) c));
-                                } else if (fieldType == Character.TYPE) {
-                                    field.setChar(this, (char) c);
-                                }
-                            }
-
-                        } else if (fieldType == LocalDate.class) {
-                            // Dates must be in format yyyy-MM-dd
-                            field.set(this, LocalDate.parse(postParamValForField));
-
-                        } else if (fieldType.isEnum()) {
-                            // Enum-typed fields are bound from radio button inputs
-
-                            // If the field is an enum, try looking up the submitted form value as
-                            // one of the enum constants.
-                            try {
-                                @SuppressWarnings({ "unchecked", "rawtypes" })
-                                Enum<?> enumVal = Enum.valueOf((Class<Enum>) fieldType, postParamValForField);
-                                field.set(this, enumVal);
-                            } catch (IllegalArgumentException e) {
-                                throw new BadRequestException("Illegal value " + postParamValForField
-                                        + " for field " + getClass().getName() + "." + fieldName);
-                            }
-
-                        } else {
-                            throw new InternalServerErrorException(
-                                    "Unsupported field type " + fieldType.getSimpleName() + " for field "
-                                            + getClass().getName() + "." + fieldName);
-                        }
-                    }
-
-                } catch (NumberFormatException | DateTimeParseException e) {
-                    throw new BadRequestException("Could not parse value " + getClass().getName() + "." + fieldName
-                            + " from the request");
+        // Check that the values in the fields satisfy the constraints
+        checkConstraints();
+    }
 
-                } catch (IllegalArgumentException | IllegalAccessException e) {
-                    throw new InternalServerErrorException("Could not set field " + getClass().getName() + "."
-                            + fieldName + " to the value passed in the request", e);
-                }
-            }
-        }
+    /**
+     * Bind this DataModel from a JSON object, e.g. the body of a POST request with Content-Type application/json.
+     * Each key of the JSON object is matched against the public fields of the DataModel, and values are bound to
+     * fields subject to the same rules as for bindFromPost(): fields annotated with Private or PrivateSet, and
+     * DBModel id fields, are ignored, required fields must be present, and the field values are then checked
+     * against the constraint annotations of the DataModel. Strings, numbers, booleans and null can be bound, as
+     * well as enums, chars and LocalDates (yyyy-MM-dd) from strings.
+     * 
+     * @param jsonInputStream
+     *            The JSON object to bind.
+     * @throws BadRequestException
+     *             if the JSON is invalid, or the values do not match the fields or their constraints.
+     */
+    public void bindFromJSON(InputStream jsonInputStream) throws ResponseException {
+        // Bind the JSON object using the fields and setters of the binder that was created for this class when it
+        // was registered
+        JSONBinder.bind(this, GribbitServer.siteResources.getFormBinder(getClass()), jsonInputStream);
+        checkConstraints();
+    }
 
-        // Check that the values in the fields satisfy the constraints
+    /** Check that the values in the fields satisfy the constraints. */
+    private void checkConstraints() throws BadRequestException {
         try {
             GribbitServer.siteResources.checkFieldValuesAgainstConstraintAnnotations(this);
         } catch (Exception e) {
             throw new BadRequestException("Form values do not satisfy constraints: " + e.getMessage());
         }
-
-        //        for (String unusedParam : unusedPostParams) {
-        //            if (!unusedParam.equals(CSRF.CSRF_PARAM_NAME)) {
-        //                Log.warning("POST param \"" + unusedParam + "\" is not a public field in DataModel "
-        //                        + this.getClass().getName() + ", ignoring");
-        //            }
-        //        }
     }
 
     // -----------------------------------------------------------------------------------------------------------------
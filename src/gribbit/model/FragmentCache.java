@@ -0,0 +1,349 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gribbit.auth.CSRF;
+import gribbit.model.util.FieldChecker;
+import gribbit.server.siteresources.CacheExtension;
+
+/**
+ * A bounded cache of the rendered HTML of TemplateModels annotated with CacheFragment. The cache is split into
+ * segments by key hash to reduce lock contention, and each segment evicts its least recently used fragments once
+ * the total size of the fragments in the segment exceeds its share of the max size of the cache.
+ * 
+ * A fragment is cached in rendered (i.e. already escaped) form, so cached fragments have the same XSS protection
+ * as freshly-rendered templates. The positions of CSRF tokens in forms are recorded, so that the token of the
+ * current request can be inserted when the fragment is copied into the output. Since escaping and indentation
+ * depend on the end of the output that a template is rendered into, the trailing context of the output (see
+ * TemplateOutput.trailingContext()) is part of the key.
+ * If the fragment contains a relative URL, which is resolved against the request URL, then the fragment is cached
+ * separately for each request URL. If the fragment contains a local URL that may be rewritten into a hash URI, the
+ * fragment is re-rendered once the hash URIs change.
+ * 
+ * There is one cache per SiteResources instance, so the cache is discarded whenever the site resources are
+ * reloaded.
+ */
+public class FragmentCache {
+
+    /** The number of segments the cache is split into. */
+    private static final int NUM_SEGMENTS = 16;
+
+    /** The estimated size in bytes of a cache entry, excluding the fragment. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** Templates are rendered without using the cache if there's more trailing whitespace than this in the output. */
+    static final int MAX_TRAILING_CONTEXT_LENGTH = 256;
+
+    private final long maxSizeBytes;
+    private final Segment[] segments;
+
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+    private final AtomicLong numEvictions = new AtomicLong();
+
+    /** The fields of DataModel classes that can be sent to the user, for form models in cache keys. */
+    private final ConcurrentHashMap<Class<?>, Field[]> dataModelClassToFields = new ConcurrentHashMap<>();
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** A cache key. */
+    static class Key {
+        private final Object[] parts;
+        private final int hashCode;
+
+        Key(Object[] parts) {
+            this.parts = parts;
+            this.hashCode = Arrays.hashCode(parts);
+        }
+
+        /** Returns this key extended with the request URL, for fragments that depend on the request URL. */
+        Key withRequestURL(String reqURLPath) {
+            Object[] partsWithURL = Arrays.copyOf(parts, parts.length + 1);
+            partsWithURL[parts.length] = reqURLPath;
+            return new Key(partsWithURL);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).hashCode == hashCode && Arrays.equals(((Key) obj).parts, parts);
+        }
+    }
+
+    /** Placeholders in cache keys, so that keys of different structure can't be equal. */
+    static final Object NULL_PART = new Object();
+    static final Object TEMPLATE_START = new Object();
+    static final Object DATA_MODEL_START = new Object();
+    static final Object LIST_START = new Object();
+
+    /** A rendered fragment. */
+    static class Fragment {
+        /**
+         * The rendered HTML that follows the trailing context of the output, split at the positions where CSRF
+         * tokens need to be inserted.
+         */
+        private final String[] htmlParts;
+        private final byte[][] htmlPartsUTF8;
+
+        /** The number of chars of trailing whitespace removed from the output by indentation. */
+        private final int numTruncatedChars;
+
+        private final boolean wasIndented;
+        final boolean dependsOnRequestURL;
+        final boolean dependsOnHashURIs;
+        final long hashURIGeneration;
+        final long sizeBytes;
+
+        /**
+         * Create a fragment from rendered HTML, with placeholder CSRF tokens of length CSRF_TOKEN_PLACEHOLDER at
+         * the given positions.
+         */
+        Fragment(String html, List<Integer> csrfTokenPositions, int numTruncatedChars, boolean wasIndented,
+                boolean dependsOnRequestURL, boolean dependsOnHashURIs, long hashURIGeneration) {
+            long size = ENTRY_OVERHEAD_BYTES;
+            if (html == null) {
+                this.htmlParts = null;
+                this.htmlPartsUTF8 = null;
+            } else {
+                int numParts = csrfTokenPositions.size() + 1;
+                this.htmlParts = new String[numParts];
+                this.htmlPartsUTF8 = new byte[numParts][];
+                int partStart = 0;
+                for (int i = 0; i < numParts; i++) {
+                    int partEnd = i < numParts - 1 ? csrfTokenPositions.get(i) : html.length();
+                    htmlParts[i] = html.substring(partStart, partEnd);
+                    htmlPartsUTF8[i] = htmlParts[i].getBytes(StandardCharsets.UTF_8);
+                    size += htmlParts[i].length() * 2L + htmlPartsUTF8[i].length;
+                    partStart = partEnd + CSRF.CSRF_TOKEN_PLACEHOLDER.length();
+                }
+            }
+            this.numTruncatedChars = numTruncatedChars;
+            this.wasIndented = wasIndented;
+            this.dependsOnRequestURL = dependsOnRequestURL;
+            this.dependsOnHashURIs = dependsOnHashURIs;
+            this.hashURIGeneration = hashURIGeneration;
+            this.sizeBytes = size;
+        }
+
+        /** Write the fragment to the output, inserting the CSRF token of the output into any forms. */
+        boolean render(TemplateOutput out) {
+            if (numTruncatedChars > 0) {
+                out.deleteTrailingChars(numTruncatedChars);
+            }
+            for (int i = 0; i < htmlParts.length; i++) {
+                if (i > 0) {
+                    out.appendCsrfToken();
+                }
+                out.appendStatic(htmlParts[i], htmlPartsUTF8[i]);
+            }
+            out.dependsOnRequestURL |= dependsOnRequestURL;
+            out.dependsOnHashURIs |= dependsOnHashURIs;
+            return wasIndented;
+        }
+    }
+
+    /**
+     * Stored in place of a fragment that depends on the request URL, to show that the fragment is stored under the
+     * key extended with the request URL.
+     */
+    private static final Fragment REQUEST_URL_DEPENDENT = new Fragment(null, null, 0, false, true, false, 0);
+
+    /** A segment of the cache, in least recently used order. */
+    @SuppressWarnings("serial")
+    private static class Segment extends LinkedHashMap<Key, Fragment> {
+        private final long maxSizeBytes;
+        private long sizeBytes;
+
+        Segment(long maxSizeBytes) {
+            super(16, 0.75f, /* accessOrder = */true);
+            this.maxSizeBytes = maxSizeBytes;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Create a fragment cache. If maxSizeBytes is 0, nothing is cached. */
+    public FragmentCache(long maxSizeBytes) {
+        this.maxSizeBytes = Math.max(0, maxSizeBytes);
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(this.maxSizeBytes / NUM_SEGMENTS);
+        }
+    }
+
+    /** Returns true if the cache has a nonzero max size. */
+    boolean isEnabled() {
+        return maxSizeBytes > 0;
+    }
+
+    private Segment segmentFor(Key key) {
+        // Spread the high bits of the hash code into the bits used to select the segment
+        int h = key.hashCode;
+        return segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)];
+    }
+
+    /** Look up a key, discarding the fragment if it contains hash URIs that have changed since it was rendered. */
+    private Fragment lookup(Key key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Fragment fragment = segment.get(key);
+            if (fragment != null && fragment.dependsOnHashURIs
+                    && fragment.hashURIGeneration != CacheExtension.getHashURIGeneration()) {
+                segment.remove(key);
+                segment.sizeBytes -= fragment.sizeBytes;
+                fragment = null;
+            }
+            return fragment;
+        }
+    }
+
+    private void store(Key key, Fragment fragment) {
+        Segment segment = segmentFor(key);
+        if (fragment.sizeBytes > segment.maxSizeBytes) {
+            // Fragment is too large to cache
+            return;
+        }
+        synchronized (segment) {
+            Fragment oldFragment = segment.put(key, fragment);
+            if (oldFragment != null) {
+                segment.sizeBytes -= oldFragment.sizeBytes;
+            }
+            segment.sizeBytes += fragment.sizeBytes;
+            // Evict least recently used fragments until the segment fits within its max size
+            for (Iterator<Fragment> iter = segment.values().iterator(); segment.sizeBytes > segment.maxSizeBytes;) {
+                segment.sizeBytes -= iter.next().sizeBytes;
+                iter.remove();
+                numEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Get the fragment rendered for the given key and request URL, or return null if it's not in the cache. */
+    Fragment get(Key key, String reqURLPath) {
+        Fragment fragment = lookup(key);
+        if (fragment == REQUEST_URL_DEPENDENT) {
+            fragment = lookup(key.withRequestURL(reqURLPath));
+        }
+        (fragment == null ? numMisses : numHits).incrementAndGet();
+        return fragment;
+    }
+
+    /** Cache the fragment rendered for the given key and request URL. */
+    void put(Key key, String reqURLPath, Fragment fragment) {
+        if (fragment.dependsOnRequestURL) {
+            store(key, REQUEST_URL_DEPENDENT);
+            store(key.withRequestURL(reqURLPath), fragment);
+        } else {
+            store(key, fragment);
+        }
+    }
+
+    /** Get the fields of a DataModel that are included in the cache key of a form bound to the DataModel. */
+    Field[] getDataModelFields(Class<?> dataModelClass) {
+        Field[] fields = dataModelClassToFields.get(dataModelClass);
+        if (fields == null) {
+            ArrayList<Field> fieldList = new ArrayList<>();
+            for (Field field : dataModelClass.getFields()) {
+                if (!Modifier.isStatic(field.getModifiers())
+                        && !FieldChecker.fieldIsPrivate(field, /* checkGet = */true, /* checkSet = */false)) {
+                    fieldList.add(field);
+                }
+            }
+            fields = fieldList.toArray(new Field[fieldList.size()]);
+            dataModelClassToFields.put(dataModelClass, fields);
+        }
+        return fields;
+    }
+
+    /** Remove all fragments from the cache. */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.sizeBytes = 0;
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Returns the number of renders of cacheable templates that were served from the cache. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Returns the number of renders of cacheable templates that had to render the template. */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    /** Returns the number of fragments evicted from the cache to make room for other fragments. */
+    public long getNumEvictions() {
+        return numEvictions.get();
+    }
+
+    /** Returns the number of entries in the cache. */
+    public int getNumEntries() {
+        int numEntries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                numEntries += segment.size();
+            }
+        }
+        return numEntries;
+    }
+
+    /** Returns the estimated size of the cache in bytes. */
+    public long getSizeBytes() {
+        long sizeBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                sizeBytes += segment.sizeBytes;
+            }
+        }
+        return sizeBytes;
+    }
+
+    /** Returns the max size of the cache in bytes. */
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+}
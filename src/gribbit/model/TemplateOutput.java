@@ -0,0 +1,458 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import gribbit.auth.CSRF;
+import gribbit.server.config.GribbitProperties;
+import gribbit.util.StringUtils;
+import gribbit.util.WebUtils;
+import gribbit.util.WebUtils.EscapeAmpersand;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The output of a template render: either a StringBuilder, or a ByteBuf that the HTML is encoded into as UTF-8 as
+ * it is rendered, so that a rendered page never needs to exist as a String.
+ */
+abstract class TemplateOutput {
+
+    /** True if a relative URL was resolved against the request URL while rendering into this output. */
+    boolean dependsOnRequestURL;
+
+    /** True if a local URL was looked up in the hash URI cache while rendering into this output. */
+    boolean dependsOnHashURIs;
+
+    /** The CSRF token to render into forms, or null to render the CSRF token placeholder. */
+    String csrfTok;
+
+    /** If non-null, the positions in the output at which CSRF tokens were rendered are recorded here. */
+    ArrayList<Integer> csrfTokenPositions;
+
+    /** The length of the output, in chars for a StringBuilder, or in bytes for a ByteBuf. */
+    abstract int length();
+
+    /** Truncate the output to the given length. */
+    abstract void setLength(int length);
+
+    /** Return the output from the given position onwards as a String. */
+    abstract String substring(int start);
+
+    /**
+     * Returns true if the output is empty or ends in a space. (Escaping collapses a whitespace character into a
+     * preceding space, and drops it at the beginning of the output.)
+     */
+    abstract boolean isEmptyOrEndsWithSpace();
+
+    /** Append HTML to the output. */
+    abstract void append(CharSequence html);
+
+    /** Append static HTML that was encoded as UTF-8 when the template was compiled. */
+    abstract void appendStatic(String html, byte[] htmlUTF8);
+
+    /** Escape text for an HTML text node or attribute value, and append it to the output. */
+    abstract void appendEscaped(CharSequence unsafeStr, boolean turnNewlineIntoBreak);
+
+    /** Prettyprinting indentation, see StringUtils.indent(). */
+    abstract void indent(int indentDepth);
+
+    /** Append the value of the hidden CSRF token input of a form. */
+    void appendCsrfToken() {
+        if (csrfTokenPositions != null) {
+            csrfTokenPositions.add(length());
+        }
+        append(csrfTok == null ? CSRF.CSRF_TOKEN_PLACEHOLDER : csrfTok);
+    }
+
+    /** Remove the given number of chars from the end of the output. */
+    abstract void deleteTrailingChars(int numChars);
+
+    /**
+     * Returns the shortest string that, if it were the whole output, would affect rendering in the same way as the
+     * current output. Escaping only looks at whether the output is empty or ends in a space, and indentation only
+     * looks at (and may truncate) the trailing whitespace of the output, and at whether that whitespace is preceded
+     * by a newline or by the first char of the output, so the string consists of the trailing whitespace, preceded
+     * by "\n" or "xx" respectively, or by nothing if the output consists entirely of whitespace.
+     */
+    abstract String trailingContext();
+
+    /** Returns the trailing context, given the trailing whitespace and the char that precedes it. */
+    static String trailingContext(String trailingWhitespace, boolean isPrecededByNewline) {
+        return (isPrecededByNewline ? "\n" : "xx") + trailingWhitespace;
+    }
+
+    /**
+     * Mark the start of a region of the output that may be truncated and rewritten once it has been rendered (using
+     * setLength()), so it must not be flushed until endRewritableRegion() is called.
+     */
+    void beginRewritableRegion() {
+    }
+
+    /** Mark the end of a region of the output that may be rewritten. */
+    void endRewritableRegion() {
+    }
+
+    /** Called between ops. A streaming output flushes the output here once enough of it has been buffered. */
+    void checkpoint() {
+    }
+
+    /** Flush as much of the output as possible, if the output is streamed (e.g. at the end of the head element). */
+    void flush() {
+    }
+
+    private static void encodeForHTML(CharSequence unsafeStr, boolean turnNewlineIntoBreak, StringBuilder buf) {
+        WebUtils.encodeForHTML(unsafeStr, //
+                // See http://stackoverflow.com/questions/3705591/do-i-encode-ampersands-in-a-href
+                /* escapeAmpersand = */EscapeAmpersand.ALWAYS, //
+                /* preserveWhitespaceRuns = */false, /* preserveNewline = */false, //
+                turnNewlineIntoBreak, buf);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Renders into a StringBuilder. */
+    static class StringBuilderOutput extends TemplateOutput {
+        private final StringBuilder buf;
+
+        StringBuilderOutput(StringBuilder buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        int length() {
+            return buf.length();
+        }
+
+        @Override
+        void setLength(int length) {
+            buf.setLength(length);
+        }
+
+        @Override
+        String substring(int start) {
+            return buf.substring(start);
+        }
+
+        @Override
+        boolean isEmptyOrEndsWithSpace() {
+            return buf.length() == 0 || buf.charAt(buf.length() - 1) == ' ';
+        }
+
+        @Override
+        void append(CharSequence html) {
+            buf.append(html);
+        }
+
+        @Override
+        void appendStatic(String html, byte[] htmlUTF8) {
+            buf.append(html);
+        }
+
+        @Override
+        void appendEscaped(CharSequence unsafeStr, boolean turnNewlineIntoBreak) {
+            encodeForHTML(unsafeStr, turnNewlineIntoBreak, buf);
+        }
+
+        @Override
+        void indent(int indentDepth) {
+            StringUtils.indent(indentDepth, buf);
+        }
+
+        @Override
+        void deleteTrailingChars(int numChars) {
+            buf.setLength(buf.length() - numChars);
+        }
+
+        @Override
+        String trailingContext() {
+            int i = buf.length();
+            while (i > 0 && buf.charAt(i - 1) != '\n' && StringUtils.isUnicodeWhitespace(buf.charAt(i - 1))) {
+                i--;
+            }
+            String trailingWhitespace = buf.substring(i);
+            return i == 0 ? trailingWhitespace
+                    : trailingContext(trailingWhitespace, buf.charAt(i - 1) == '\n' || i == 1);
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Renders into a ByteBuf, encoding as UTF-8. The output consists of the readable bytes of the ByteBuf.
+     * 
+     * Since the UTF-8 encoding of a multibyte char never contains ASCII bytes, the space and newline lookbehind
+     * needed for escaping and indentation can be performed directly on the bytes of the output.
+     */
+    static class ByteBufOutput extends TemplateOutput {
+        protected ByteBuf buf;
+
+        /** Scratch buffer for escaping text before it is encoded into the ByteBuf. */
+        private final StringBuilder scratch;
+
+        ByteBufOutput(ByteBuf buf, StringBuilder scratch) {
+            this.buf = buf;
+            this.scratch = scratch;
+        }
+
+        @Override
+        int length() {
+            return buf.writerIndex() - buf.readerIndex();
+        }
+
+        @Override
+        void setLength(int length) {
+            buf.writerIndex(buf.readerIndex() + length);
+        }
+
+        @Override
+        String substring(int start) {
+            return buf.toString(buf.readerIndex() + start, length() - start, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        boolean isEmptyOrEndsWithSpace() {
+            return buf.writerIndex() == buf.readerIndex() || buf.getByte(buf.writerIndex() - 1) == ' ';
+        }
+
+        @Override
+        void append(CharSequence html) {
+            ByteBufUtil.writeUtf8(buf, html);
+        }
+
+        @Override
+        void appendStatic(String html, byte[] htmlUTF8) {
+            buf.writeBytes(htmlUTF8);
+        }
+
+        @Override
+        void appendEscaped(CharSequence unsafeStr, boolean turnNewlineIntoBreak) {
+            // Whether whitespace is collapsed depends on the end of the output, so start the scratch buffer with
+            // a char that stands in for the last char of the output
+            scratch.setLength(0);
+            boolean isEmpty = buf.writerIndex() == buf.readerIndex();
+            if (!isEmpty) {
+                scratch.append(buf.getByte(buf.writerIndex() - 1) == ' ' ? ' ' : 'x');
+            }
+            encodeForHTML(unsafeStr, turnNewlineIntoBreak, scratch);
+            if (!isEmpty) {
+                scratch.deleteCharAt(0);
+            }
+            ByteBufUtil.writeUtf8(buf, scratch);
+        }
+
+        /** Returns the index of the first byte of the UTF-8 char sequence whose last byte is at the given index. */
+        protected int charStart(int lastByteIdx) {
+            int idx = lastByteIdx;
+            while (idx > buf.readerIndex() && (buf.getByte(idx) & 0xc0) == 0x80) {
+                idx--;
+            }
+            return idx;
+        }
+
+        /**
+         * Decode the UTF-8 char sequence starting at the given index. Returns -1 for chars outside the Basic
+         * Multilingual Plane, which are neither newline nor whitespace.
+         */
+        protected int decodeChar(int startIdx) {
+            int b = buf.getByte(startIdx) & 0xff;
+            if (b < 0x80) {
+                return b;
+            } else if (b < 0xe0) {
+                return ((b & 0x1f) << 6) | (buf.getByte(startIdx + 1) & 0x3f);
+            } else if (b < 0xf0) {
+                return ((b & 0x0f) << 12) | ((buf.getByte(startIdx + 1) & 0x3f) << 6)
+                        | (buf.getByte(startIdx + 2) & 0x3f);
+            } else {
+                return -1;
+            }
+        }
+
+        @Override
+        void deleteTrailingChars(int numChars) {
+            int newEnd = buf.writerIndex();
+            for (int i = 0; i < numChars; i++) {
+                newEnd = charStart(newEnd - 1);
+            }
+            buf.writerIndex(newEnd);
+        }
+
+        @Override
+        String trailingContext() {
+            int start = buf.readerIndex();
+            int i = buf.writerIndex();
+            while (i > start) {
+                int charStart = charStart(i - 1);
+                int c = decodeChar(charStart);
+                if (c < 0 || c == '\n' || !StringUtils.isUnicodeWhitespace((char) c)) {
+                    String trailingWhitespace = buf.toString(i, buf.writerIndex() - i, StandardCharsets.UTF_8);
+                    // A char outside the BMP is never treated as the first char of the output by indent()
+                    return trailingContext(trailingWhitespace, c == '\n' || (c >= 0 && charStart == start));
+                }
+                i = charStart;
+            }
+            return buf.toString(start, buf.writerIndex() - start, StandardCharsets.UTF_8);
+        }
+
+        /** Byte-level equivalent of StringUtils.indent(). */
+        @Override
+        void indent(int indentDepth) {
+            if (GribbitProperties.PRETTY_PRINT_HTML) {
+                int start = buf.readerIndex();
+                int numTrailingSpaces = 0;
+                boolean hasNewline = buf.writerIndex() == start;
+                // See if the line is already sufficiently indented
+                for (int i = buf.writerIndex() - 1; i >= start;) {
+                    int charStart = charStart(i);
+                    int c = decodeChar(charStart);
+                    if (c < 0) {
+                        // Char outside the BMP (encoded as a surrogate pair in a String, so it is never the
+                        // first char of the output)
+                        break;
+                    } else if (c == '\n' || charStart == start) {
+                        hasNewline = true;
+                        break;
+                    } else if (!StringUtils.isUnicodeWhitespace((char) c)) {
+                        break;
+                    }
+                    numTrailingSpaces++;
+                    i = charStart - 1;
+                }
+                if (!hasNewline) {
+                    buf.writeByte('\n');
+                    numTrailingSpaces = 0;
+                }
+                if (numTrailingSpaces > indentDepth) {
+                    // Over-indented for element that turned out to be empty -- outdent again
+                    int newEnd = buf.writerIndex();
+                    for (int i = 0; i < numTrailingSpaces - indentDepth; i++) {
+                        newEnd = charStart(newEnd - 1);
+                    }
+                    buf.writerIndex(newEnd);
+                } else {
+                    for (int i = numTrailingSpaces; i < indentDepth; i++) {
+                        // Indent
+                        buf.writeByte(' ');
+                    }
+                }
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Renders into heap ByteBufs as UTF-8, passing each chunk of the output to a consumer once about chunkSize bytes
+     * have been buffered, or when the output is explicitly flushed. The chunks are not pooled, since a consumer that
+     * writes them to a Vert.x response can't release them.
+     * 
+     * Escaping and indentation need to look behind at the end of the output, and indentation may truncate trailing
+     * whitespace, so the trailing whitespace of the output and the two chars before it are never flushed until
+     * more output has been rendered. This keeps the result byte-identical to rendering into a single buffer.
+     */
+    static class StreamingOutput extends ByteBufOutput {
+        private final int chunkSize;
+        private final Consumer<ByteBuf> chunkConsumer;
+        private int rewritableRegionDepth;
+
+        StreamingOutput(int chunkSize, Consumer<ByteBuf> chunkConsumer, StringBuilder scratch) {
+            super(Unpooled.buffer(chunkSize), scratch);
+            this.chunkSize = chunkSize;
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        @Override
+        void beginRewritableRegion() {
+            rewritableRegionDepth++;
+        }
+
+        @Override
+        void endRewritableRegion() {
+            rewritableRegionDepth--;
+        }
+
+        @Override
+        void checkpoint() {
+            if (buf.readableBytes() >= chunkSize) {
+                flush();
+            }
+        }
+
+        /** Returns the index of the start of the part of the output that needs to be retained when flushing. */
+        private int retainedTailStart() {
+            int start = buf.readerIndex();
+            int i = buf.writerIndex();
+            // Skip back over trailing whitespace (other than newlines), which indentation may truncate
+            while (i > start) {
+                int charStart = charStart(i - 1);
+                int c = decodeChar(charStart);
+                i = charStart;
+                if (c < 0 || c == '\n' || !StringUtils.isUnicodeWhitespace((char) c)) {
+                    break;
+                }
+            }
+            // Retain one more char, so that indentation doesn't mistake the last char for the start of the output
+            return i > start ? charStart(i - 1) : start;
+        }
+
+        @Override
+        void flush() {
+            if (rewritableRegionDepth == 0) {
+                int retainedTailStart = retainedTailStart();
+                if (retainedTailStart > buf.readerIndex()) {
+                    ByteBuf newBuf = Unpooled.buffer(chunkSize);
+                    newBuf.writeBytes(buf, retainedTailStart, buf.writerIndex() - retainedTailStart);
+                    buf.writerIndex(retainedTailStart);
+                    ByteBuf chunk = buf;
+                    buf = newBuf;
+                    chunkConsumer.accept(chunk);
+                }
+            }
+        }
+
+        /** Pass the rest of the output to the consumer once rendering is complete. */
+        void finish() {
+            ByteBuf chunk = buf;
+            buf = null;
+            if (chunk.isReadable()) {
+                chunkConsumer.accept(chunk);
+            } else {
+                chunk.release();
+            }
+        }
+
+        /** Release the buffer if rendering fails. */
+        void releaseBuffer() {
+            if (buf != null) {
+                buf.release();
+                buf = null;
+            }
+        }
+    }
+}
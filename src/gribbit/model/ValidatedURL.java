@@ -0,0 +1,192 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+import gribbit.util.WebUtils;
+
+/**
+ * A URL attribute value that has been checked for safety, and the result of making it absolute. Checking a URL
+ * requires parsing it into a java.net.URI, and resolving it involves splitting its path, so the results are
+ * memoized in bounded concurrent maps, keyed by the URL for absolute URLs, or by the URL and the request URL for
+ * relative URLs.
+ * 
+ * Whether a local URL should be rewritten into a hash URI is not memoized, since hash URIs can be added at any
+ * time; that takes a single map lookup at render time.
+ */
+class ValidatedURL {
+
+    /** True if the URL uses the mailto: or tel: protocol, which is only allowed in a.href attributes. */
+    final boolean isMailtoOrTel;
+
+    /** True if the URL is local, and could therefore be rewritten into a hash URI. */
+    final boolean isLocal;
+
+    /** True if the URL is relative, so that it is resolved against the request URL. */
+    final boolean isRelative;
+
+    /** The URL made absolute, or null if it doesn't change. (Always null for relative URLs.) */
+    private final String resolvedURL;
+
+    /** The max number of entries in each memo. A memo is cleared when it is full. */
+    private static final int MAX_MEMO_SIZE = 16384;
+
+    private static final ConcurrentHashMap<String, ValidatedURL> urlToValidatedURL = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<RelativeURL, String> relativeURLToResolvedURL = new ConcurrentHashMap<>();
+
+    /** A relative URL and the request URL it is resolved against. */
+    private static class RelativeURL {
+        private final String url;
+        private final String reqURLPath;
+
+        RelativeURL(String url, String reqURLPath) {
+            this.url = url;
+            this.reqURLPath = reqURLPath;
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode() * 31 + reqURLPath.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RelativeURL && ((RelativeURL) obj).url.equals(url)
+                    && ((RelativeURL) obj).reqURLPath.equals(reqURLPath);
+        }
+    }
+
+    private ValidatedURL(boolean isMailtoOrTel, boolean isLocal, boolean isRelative, String resolvedURL) {
+        this.isMailtoOrTel = isMailtoOrTel;
+        this.isLocal = isLocal;
+        this.isRelative = isRelative;
+        this.resolvedURL = resolvedURL;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Check that a URL attribute value contains only valid characters and uses a safe protocol, throwing a
+     * RuntimeException if it doesn't.
+     */
+    private static ValidatedURL validate(String urlStr, String attrName) {
+        // This is a URL attribute -- check URL contains only valid characters.
+        //
+        // OWASP Rule #5:
+        //     URL Escape Before Inserting Untrusted Data into HTML URL Parameter Values.
+        //     See: http://goo.gl/PTX0ul
+        //
+        // We leave it up to the user to escape their URLs, so that we avoid double-escaping.
+        // StringUtils.encodeURI() can be used for this purpose. Instead, we run the URI through
+        // the Java URI parser class to validate the URL.
+        URI url = WebUtils.parseURI(urlStr);
+        if (url == null) {
+            throw new RuntimeException("String substituted into URI attr \"" + attrName + "\" is not a valid URI: "
+                    + urlStr);
+        }
+
+        boolean isMailtoOrTel = false;
+        boolean isLocal = false;
+        String scheme = url.getScheme();
+        if (scheme != null) {
+            scheme = scheme.toLowerCase();
+            // Specifically blacklist a few protocols.
+            // 
+            // OWASP Rule #5:
+            // "Including untrusted data in data: URLs should not be allowed as there is no good way
+            // to disable attacks with escaping to prevent switching out of the URL. [...]
+            // If untrusted input is meant to be placed into href, src or other URL-based
+            // attributes, it should be validated to make sure it does not point to an unexpected
+            // protocol, especially Javascript links."
+            // See also: http://goo.gl/UcO36V
+            if (scheme.equals("javascript") || scheme.equals("data") || scheme.equals("mhtml")
+                    || scheme.equals("file")) {
+                throw new RuntimeException("URL " + urlStr + " uses an unsafe protocol");
+
+            } else if (scheme.equals("mailto") || scheme.equals("tel")) {
+                // OWASP Rule #6:
+                //     See http://goo.gl/cqealh
+                isMailtoOrTel = true;
+
+            } else if (!(scheme.equals("http") || scheme.equals("https"))) {
+                // If it's not http: or https:, it's probably unsafe
+                throw new RuntimeException("URL " + urlStr + " uses an unsupported URL protocol");
+            }
+
+        } else if (url.getHost() == null && url.getPort() == -1) {
+            // For local URIs, see if there is an MD5-hashed version of the URL at render time
+            isLocal = true;
+        }
+
+        // Make URLs absolute (this is important for hash URIs to be able to be properly resolved). Relative URLs
+        // depend on the request URL, so they are resolved separately.
+        boolean isRelative = !urlStr.startsWith("/") && WebUtils.isLocalURL(urlStr);
+        String resolvedURL = null;
+        if (!isRelative) {
+            String urlStrResolved = WebUtils.resolveHREF(urlStr, "");
+            if (!urlStrResolved.equals(urlStr)) {
+                resolvedURL = urlStrResolved;
+            }
+        }
+        return new ValidatedURL(isMailtoOrTel, isLocal, isRelative, resolvedURL);
+    }
+
+    /**
+     * Get the validated URL for a URL attribute value, throwing a RuntimeException if the URL is not valid or
+     * uses an unsafe protocol.
+     */
+    static ValidatedURL get(String urlStr, String attrName) {
+        ValidatedURL validatedURL = urlToValidatedURL.get(urlStr);
+        if (validatedURL == null) {
+            validatedURL = validate(urlStr, attrName);
+            if (urlToValidatedURL.size() >= MAX_MEMO_SIZE) {
+                urlToValidatedURL.clear();
+            }
+            urlToValidatedURL.put(urlStr, validatedURL);
+        }
+        return validatedURL;
+    }
+
+    /** Returns the URL made absolute, or null if it doesn't change. */
+    String getResolvedURL(String urlStr, String reqURLPath) {
+        if (!isRelative) {
+            return resolvedURL;
+        }
+        RelativeURL relativeURL = new RelativeURL(urlStr, reqURLPath);
+        String urlStrResolved = relativeURLToResolvedURL.get(relativeURL);
+        if (urlStrResolved == null) {
+            urlStrResolved = WebUtils.resolveHREF(urlStr, reqURLPath);
+            if (relativeURLToResolvedURL.size() >= MAX_MEMO_SIZE) {
+                relativeURLToResolvedURL.clear();
+            }
+            relativeURLToResolvedURL.put(relativeURL, urlStrResolved);
+        }
+        return urlStrResolved.equals(urlStr) ? null : urlStrResolved;
+    }
+}
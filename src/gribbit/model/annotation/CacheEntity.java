@@ -0,0 +1,49 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches instances of a DBModel subclass in memory, so that Database.findOneById() only needs to query the
+ * database the first time an object is looked up. Saving or removing an object through DBModel or Database updates
+ * or removes the cached copy, but changes made to the database by other processes are not seen until the cached
+ * copy expires, after ttlSeconds (or, if ttlSeconds is 0, until the copy is evicted to make room for other
+ * objects).
+ * 
+ * Each lookup returns a new copy of the cached object, so modifying the returned object does not modify the cached
+ * copy. Only use this for classes whose fields are public, and hold immutable values (e.g. Strings, numbers,
+ * enums, ObjectIds or java.time values), arrays, collections, maps, or objects of public classes with a
+ * zero-argument constructor whose fields are of these types.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CacheEntity {
+    int ttlSeconds() default 60;
+}
@@ -0,0 +1,49 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the rendered HTML of a TemplateModel subclass, so that rendering an instance whose cache key is equal to
+ * that of a previously-rendered instance copies the previously-rendered HTML rather than re-rendering the
+ * template. Only use this for templates that are rendered identically many times, e.g. navigation bars or
+ * footers.
+ * 
+ * By default, the cache key consists of the values of the fields referenced by the template, including
+ * (recursively) the field values of nested TemplateModels and of DataModels bound to forms. If keyMethod is set,
+ * it names a public no-arg method of the TemplateModel whose return value is used as the cache key instead. The
+ * key must implement equals() and hashCode(), and must distinguish between any two instances that would render
+ * differently. If the method returns null, the template is rendered without using the cache.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CacheFragment {
+    String keyMethod() default "";
+}
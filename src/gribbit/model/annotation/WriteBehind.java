@@ -0,0 +1,56 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Gives a DBModel subclass a write-behind queue, so that objects saved with DBModel.saveLater() are written to the
+ * database in the background, in unordered bulk writes, rather than in one round trip per object. If an object is
+ * saved again before it has been written, only the latest version is written. The queue is flushed once it holds
+ * maxBatchSize objects, or maxDelayMillis after the first object was added to it, and when the JVM shuts down.
+ * 
+ * A synchronous write of an object (DBModel.save(), Database.saveAll()) or a removal of an object (DBModel.remove(),
+ * Database.removeById()) always wins over a write of the same object that is still waiting in the queue: the queued
+ * write is discarded, and any queued write of the object that has already started is waited for, before the
+ * synchronous write or removal is made. The onWritten callbacks of a discarded write are called with the result of
+ * the synchronous write that superseded it, or with a CancellationException if the object was removed.
+ * 
+ * If journaled is true, writes are only acknowledged once they have been written to the database journal, so that
+ * they will survive a restart of the database server.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface WriteBehind {
+    int maxBatchSize() default 1000;
+
+    int maxDelayMillis() default 1000;
+
+    boolean journaled() default true;
+}
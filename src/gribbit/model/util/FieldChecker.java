@@ -26,10 +26,15 @@
 package gribbit.model.util;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -54,14 +59,162 @@ import io.netty.handler.codec.http.multipart.FileUpload;
 
 public class FieldChecker {
 
-    private ConcurrentHashMap<Class<?>, ArrayList<FieldValueConstraintChecker>> constraintCheckersForClass = new ConcurrentHashMap<>();
+    /** The constraint checkers for the constrained fields of each registered class. */
+    private ConcurrentHashMap<Class<?>, FieldConstraintChecker[]> constraintCheckersForClass = //
+            new ConcurrentHashMap<>();
+
+    /**
+     * Checks the value of one field against the constraint annotations of the field, which are read once, when the
+     * class is registered. The field is read (and, if normalization changes its value, written) through method
+     * handles rather than through reflection.
+     */
+    private static class FieldConstraintChecker {
+        private final String className;
+        private final String fieldName;
+        private final boolean isString;
+        private final boolean isPrimitiveInt;
+        private final boolean isRequired;
+        private final boolean normalizeSpacing;
+        private final boolean needToTrim;
+        private final boolean isEmail;
+        private final Pattern regex;
+        private final boolean checkMinLength;
+        private final int minLength;
+        private final boolean checkMaxLength;
+        private final int maxLength;
+        private final boolean checkMinIntValue;
+        private final int minIntValue;
+        private final boolean checkMaxIntValue;
+        private final int maxIntValue;
+
+        /** Of type (Object) -> int for int fields, or (Object) -> Object otherwise. */
+        private final MethodHandle getter;
+
+        /** Of type (Object, Object) -> void, for String fields only. */
+        private final MethodHandle setter;
+
+        FieldConstraintChecker(String className, Field field, boolean isRequired, boolean normalizeSpacing,
+                boolean needToTrim, boolean isEmail, Pattern regex, boolean checkMinLength, int minLength,
+                boolean checkMaxLength, int maxLength, boolean checkMinIntValue, int minIntValue,
+                boolean checkMaxIntValue, int maxIntValue) {
+            this.className = className;
+            this.fieldName = field.getName();
+            this.isString = field.getType() == String.class;
+            this.isPrimitiveInt = field.getType() == Integer.TYPE;
+            this.isRequired = isRequired;
+            this.normalizeSpacing = normalizeSpacing;
+            this.needToTrim = needToTrim;
+            this.isEmail = isEmail;
+            this.regex = regex;
+            this.checkMinLength = checkMinLength;
+            this.minLength = minLength;
+            this.checkMaxLength = checkMaxLength;
+            this.maxLength = maxLength;
+            this.checkMinIntValue = checkMinIntValue;
+            this.minIntValue = minIntValue;
+            this.checkMaxIntValue = checkMaxIntValue;
+            this.maxIntValue = maxIntValue;
+            try {
+                field.setAccessible(true);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                this.getter = lookup.unreflectGetter(field).asType(
+                        MethodType.methodType(isPrimitiveInt ? int.class : Object.class, Object.class));
+                this.setter = isString ? lookup.unreflectSetter(field)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class)) : null;
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not access field " + className + "." + fieldName, e);
+            }
+        }
 
-    private static abstract class FieldValueConstraintChecker {
         /**
-         * Check the field values of the DataModel against the constraint annotations for its class, possibly
-         * modifying the value of the field so that constraints are satisfied (e.g. normalizing spacing).
+         * Check the value of the field against its constraints, possibly modifying the value of the field so that
+         * constraints are satisfied (e.g. normalizing spacing). Returns null if the constraints are satisfied,
+         * otherwise returns a description of the first constraint that was violated.
          */
-        public abstract void checkFieldsAgainstConstraints(Object object);
+        String check(Object instance) {
+            try {
+                return isString ? checkString(instance) : checkInt(instance);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Could not read field " + className + "." + fieldName, e);
+            }
+        }
+
+        private String checkString(Object instance) throws Throwable {
+            String origValue = (String) (Object) getter.invokeExact(instance);
+            String strValue = origValue;
+
+            if (isRequired && (strValue == null || strValue.isEmpty())) {
+                return "Required field " + className + "." + fieldName + " is null or empty";
+            }
+
+            // Handle constraints, trimming and normalization on String-typed fields
+            if (strValue != null) {
+                if (normalizeSpacing) {
+                    strValue = StringUtils.normalizeSpacing(strValue);
+                }
+                if (needToTrim) {
+                    strValue = StringUtils.unicodeTrim(strValue);
+                }
+                if (isEmail) {
+                    strValue = strValue.toLowerCase();
+                }
+            }
+            if (isEmail) {
+                // If there's an @Email annotation, the field cannot be null
+                if (strValue == null
+                        // Validate email addresses
+                        || !WebUtils.isValidEmailAddr(strValue)) {
+                    return "Value of field " + className + "." + fieldName + " is not a valid email address"
+                            + (strValue == null ? ", its value is null" : "");
+                }
+            }
+            // Check regex after normalizing spacing and trimming
+            if (regex != null && (strValue == null || !regex.matcher(strValue).matches())) {
+                return "Value for parameter " + fieldName + " does not match the regex constraint";
+            }
+            // Check min/max len after normalizing spacing and trimming
+            if (checkMinLength && (strValue == null || strValue.length() < minLength)) {
+                return "Value of field " + className + "." + fieldName + " must have minimum length "
+                        + (needToTrim ? "(after trimming) " : "") + "of " + minLength;
+            } else if (checkMaxLength && (strValue == null || strValue.length() > maxLength)) {
+                return "Value of field " + className + "." + fieldName + " must have maximum length "
+                        + (needToTrim ? "(after trimming) " : "") + "of " + maxLength
+                        + (strValue == null ? ", but the value is null" : "");
+            }
+
+            // If value of field has changed, update field
+            // This has a side-effect (i.e. it modifies the field value in-place)
+            if (strValue != null && !strValue.equals(origValue)) {
+                setter.invokeExact(instance, (Object) strValue);
+            }
+            return null;
+        }
+
+        private String checkInt(Object instance) throws Throwable {
+            int intValue;
+            if (isPrimitiveInt) {
+                intValue = (int) getter.invokeExact(instance);
+            } else {
+                Object fieldValue = getter.invokeExact(instance);
+                // All of @Required, @MinIntegerValue and @MaxIntegerValue require non-null values
+                if (fieldValue == null) {
+                    return "Required field " + className + "." + fieldName + " is null";
+                }
+                intValue = (Integer) fieldValue;
+            }
+
+            // Handle min/max value constraint on int-typed field
+            if (checkMinIntValue && intValue < minIntValue) {
+                return "Parameter " + className + "." + fieldName + " must have minimum value " + minIntValue
+                        + ", but has value " + intValue;
+            } else if (checkMaxIntValue && intValue > maxIntValue) {
+                return "Parameter " + className + "." + fieldName + " must have maximum value " + maxIntValue
+                        + ", but has value " + intValue;
+            }
+            return null;
+        }
     }
 
     // -----------------------------------------------------------------------------------------------------------------
@@ -69,14 +222,14 @@ public class FieldChecker {
     /**
      * Statically check types of the class' public fields against their data constraint annotations to make sure the
      * annotations make sense given the types. Called during resource loading on all DataModel and TemplateModel
-     * objects found on the classpath. Also sets up constraint checkers for fast runtime checking of field values
-     * against constraints.
+     * objects found on the classpath. Also compiles the constraint annotations of the class into constraint
+     * checkers for fast runtime checking of field values against constraints.
      * 
      * @throws RuntimeException
      *             if constraints don't match field types.
      */
     public void registerClassForConstraintChecking(Class<?> klass) throws RuntimeException {
-        ArrayList<FieldValueConstraintChecker> valueCheckers = new ArrayList<>();
+        ArrayList<FieldConstraintChecker> valueCheckers = new ArrayList<>();
         for (Field field : klass.getFields()) {
             Annotation[] fieldAnnotations = field.getAnnotations();
             Class<?> fieldType = field.getType();
@@ -147,125 +300,22 @@ public class FieldChecker {
                 boolean checkMinIntValue = isInt && field.isAnnotationPresent(MinIntegerValue.class);
                 int minIntValue = checkMinIntValue
                         ? ((MinIntegerValue) field.getAnnotation(MinIntegerValue.class)).value() : 0;
-                boolean checkMaxIntValue = isInt && field.isAnnotationPresent(MinIntegerValue.class);
+                boolean checkMaxIntValue = isInt && field.isAnnotationPresent(MaxIntegerValue.class);
                 int maxIntValue = checkMaxIntValue
                         ? ((MaxIntegerValue) field.getAnnotation(MaxIntegerValue.class)).value() : 0;
 
                 // Add one value checker per constrained field
-                if (isString && (isRequired || normalizeSpacing || needToTrim || toLowerCase || checkMinLength
-                        || checkMaxLength)) {
-                    valueCheckers.add(new FieldValueConstraintChecker() {
-                        @Override
-                        public void checkFieldsAgainstConstraints(Object instance) {
-                            String strValue = null;
-                            try {
-                                Object fieldValue = field.get(instance);
-                                strValue = (String) fieldValue;
-                            } catch (IllegalArgumentException | IllegalAccessException e) {
-                                throw new RuntimeException(e);
-                            }
-
-                            if (isRequired && (strValue == null || (isString && strValue.isEmpty()))) {
-                                throw new RuntimeException("Required field " + klass.getName() + "." + fieldName
-                                        + " is null or empty");
-                            }
-
-                            // Handle constraints, trimming and normalization on String-typed fields
-                            if (normalizeSpacing && strValue != null) {
-                                strValue = StringUtils.normalizeSpacing(strValue);
-                            }
-                            if (needToTrim && strValue != null) {
-                                strValue = StringUtils.unicodeTrim(strValue);
-                            }
-                            if (toLowerCase && strValue != null) {
-                                String lower = strValue.toLowerCase();
-                                if (!lower.equals(strValue)) {
-                                    strValue = lower;
-                                }
-                            }
-                            if (isEmail) {
-                                // If there's an @Email annotation, the field cannot be null
-                                if (strValue == null
-                                        // Validate email addresses
-                                        || !WebUtils.isValidEmailAddr(strValue)) {
-                                    throw new RuntimeException("Value of field " + klass.getName() + "." + fieldName
-                                            + " is not a valid email address"
-                                            + (strValue == null ? ", its value is null" : ""));
-                                }
-                            }
-                            // Check regex after normalizing spacing and trimming
-                            if (isRegex) {
-                                if (!regex.matcher(strValue).matches()) {
-                                    throw new RuntimeException("Value for parameter " + fieldName
-                                            + " does not match the regex constraint");
-                                }
-                            }
-                            // Check min/max len after normalizing spacing and trimming
-                            if (checkMinLength && (strValue == null || strValue.length() < minLength)) {
-                                throw new RuntimeException("Value of field " + klass.getName() + "." + fieldName
-                                        + " must have minimum length " + (needToTrim ? "(after trimming) " : "")
-                                        + "of " + minLength);
-                            } else if (checkMaxLength && (strValue == null || strValue.length() > maxLength)) {
-                                throw new RuntimeException("Value of field " + klass.getName() + "." + fieldName
-                                        + " must have maximum length " + (needToTrim ? "(after trimming) " : "")
-                                        + "of " + maxLength + (strValue == null ? ", but the value is null" : ""));
-                            }
-
-                            // If value of field has changed; update field
-                            // This has a side-effect (i.e. it modifies the field value in-place)
-                            if (strValue != null && !strValue.equals(strValue)) {
-                                try {
-                                    field.set(instance, strValue);
-                                } catch (IllegalArgumentException | IllegalAccessException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            }
-                        }
-                    });
-
-                } else if (isInt && (isRequired || checkMinIntValue || checkMaxIntValue)) {
-                    valueCheckers.add(new FieldValueConstraintChecker() {
-                        @Override
-                        public void checkFieldsAgainstConstraints(Object instance) {
-                            int intValue = 0;
-                            if (fieldIsPrimitiveType) {
-                                try {
-                                    intValue = field.getInt(instance);
-                                } catch (IllegalArgumentException | IllegalAccessException e) {
-                                    throw new RuntimeException(
-                                            "Could not read field " + klass.getName() + "." + fieldName, e);
-                                }
-                            } else {
-                                Object fieldValue;
-                                try {
-                                    fieldValue = field.get(instance);
-                                } catch (IllegalArgumentException | IllegalAccessException e) {
-                                    throw new RuntimeException(e);
-                                }
-                                // All of @Required, @MinIntegerValue and @MaxIntegerValue require non-null values
-                                if (fieldValue == null) {
-                                    throw new RuntimeException(
-                                            "Required field " + klass.getName() + "." + fieldName + " is null");
-                                }
-                                intValue = (Integer) fieldValue;
-                            }
-
-                            // Handle min/max value constraint on int-typed field
-                            if (checkMinIntValue && intValue < minIntValue) {
-                                throw new RuntimeException("Parameter " + klass.getName() + "." + fieldName
-                                        + " must have minimum value " + minIntValue + ", but has value "
-                                        + intValue);
-                            } else if (checkMaxIntValue && intValue > maxIntValue) {
-                                throw new RuntimeException("Parameter " + klass.getName() + "." + fieldName
-                                        + " must have maximum value " + maxIntValue + ", but has value "
-                                        + intValue);
-                            }
-                        }
-                    });
+                if ((isString && (isRequired || normalizeSpacing || needToTrim || toLowerCase || isRegex
+                        || checkMinLength || checkMaxLength))
+                        || (isInt && (isRequired || checkMinIntValue || checkMaxIntValue))) {
+                    valueCheckers.add(new FieldConstraintChecker(klass.getName(), field, isRequired,
+                            normalizeSpacing, needToTrim, isEmail, regex, checkMinLength, minLength, checkMaxLength,
+                            maxLength, checkMinIntValue, minIntValue, checkMaxIntValue, maxIntValue));
                 }
             }
         }
-        constraintCheckersForClass.put(klass, valueCheckers);
+        constraintCheckersForClass.put(klass,
+                valueCheckers.toArray(new FieldConstraintChecker[valueCheckers.size()]));
     }
 
     /**
@@ -279,12 +329,38 @@ public class FieldChecker {
      *             if one or more constraints are violated by the values in this object instance.
      */
     public void checkFieldValuesAgainstConstraintAnnotations(Object instance) throws RuntimeException {
-        ArrayList<FieldValueConstraintChecker> valueCheckers = constraintCheckersForClass.get(instance.getClass());
+        FieldConstraintChecker[] valueCheckers = constraintCheckersForClass.get(instance.getClass());
         if (valueCheckers != null) {
-            for (FieldValueConstraintChecker checker : valueCheckers) {
-                checker.checkFieldsAgainstConstraints(instance);
+            for (FieldConstraintChecker checker : valueCheckers) {
+                String violation = checker.check(instance);
+                if (violation != null) {
+                    throw new RuntimeException(violation);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the values of all fields against the constraint annotations in a single pass, rather than stopping at
+     * the first violation, and return a description of each violated constraint (at most one per field). Returns
+     * an empty list if all constraints are satisfied. Has the same side-effects as
+     * checkFieldValuesAgainstConstraintAnnotations().
+     */
+    public List<String> getConstraintViolations(Object instance) {
+        FieldConstraintChecker[] valueCheckers = constraintCheckersForClass.get(instance.getClass());
+        List<String> violations = null;
+        if (valueCheckers != null) {
+            for (FieldConstraintChecker checker : valueCheckers) {
+                String violation = checker.check(instance);
+                if (violation != null) {
+                    if (violations == null) {
+                        violations = new ArrayList<>();
+                    }
+                    violations.add(violation);
+                }
             }
         }
+        return violations == null ? Collections.<String> emptyList() : violations;
     }
 
     // -----------------------------------------------------------------------------------------------------------------
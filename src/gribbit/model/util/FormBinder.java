@@ -0,0 +1,374 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.regex.Pattern;
+
+import gribbit.model.DataModel;
+import gribbit.response.exception.BadRequestException;
+import gribbit.response.exception.InternalServerErrorException;
+import gribbit.response.exception.ResponseException;
+import io.vertx.core.http.HttpServerRequest;
+
+/**
+ * Binds the params of a POST request to the fields of a DataModel. A FormBinder is created once per DataModel
+ * class, when the class is registered, so that binding a request doesn't need to use reflection: the fields that
+ * can be bound (i.e. public fields that are not annotated with Private or PrivateSet, and are not DBModel id
+ * fields), whether each field is required, and a setter of the right type for each field are all looked up ahead
+ * of time. Numbers are parsed without throwing NumberFormatException for invalid values, and enum values are
+ * looked up in a map. The same fields and setters are used by JSONBinder to bind a JSON object in the body of a
+ * request.
+ */
+public class FormBinder {
+
+    /** The fields that can be bound from a request. */
+    final FieldBinder[] fieldBinders;
+
+    /** The fields that can be bound from a request, indexed by name. */
+    final HashMap<String, FieldBinder> fieldNameToBinder = new HashMap<>();
+
+    /** The kind of value that a field is bound to. */
+    static enum Kind {
+        STRING, INTEGER, INT, LONG_BOXED, LONG, SHORT_BOXED, SHORT, FLOAT_BOXED, FLOAT, DOUBLE_BOXED, DOUBLE,
+        BOOLEAN_BOXED, BOOLEAN, CHARACTER, CHAR, LOCAL_DATE, ENUM, UNSUPPORTED;
+    }
+
+    /** The kind of each supported field type, other than enums. */
+    private static final IdentityHashMap<Class<?>, Kind> KIND_OF_TYPE = new IdentityHashMap<>();
+
+    static {
+        KIND_OF_TYPE.put(String.class, Kind.STRING);
+        KIND_OF_TYPE.put(Integer.class, Kind.INTEGER);
+        KIND_OF_TYPE.put(Integer.TYPE, Kind.INT);
+        KIND_OF_TYPE.put(Long.class, Kind.LONG_BOXED);
+        KIND_OF_TYPE.put(Long.TYPE, Kind.LONG);
+        KIND_OF_TYPE.put(Short.class, Kind.SHORT_BOXED);
+        KIND_OF_TYPE.put(Short.TYPE, Kind.SHORT);
+        KIND_OF_TYPE.put(Float.class, Kind.FLOAT_BOXED);
+        KIND_OF_TYPE.put(Float.TYPE, Kind.FLOAT);
+        KIND_OF_TYPE.put(Double.class, Kind.DOUBLE_BOXED);
+        KIND_OF_TYPE.put(Double.TYPE, Kind.DOUBLE);
+        KIND_OF_TYPE.put(Boolean.class, Kind.BOOLEAN_BOXED);
+        KIND_OF_TYPE.put(Boolean.TYPE, Kind.BOOLEAN);
+        KIND_OF_TYPE.put(Character.class, Kind.CHARACTER);
+        KIND_OF_TYPE.put(Character.TYPE, Kind.CHAR);
+        KIND_OF_TYPE.put(LocalDate.class, Kind.LOCAL_DATE);
+    }
+
+    static class FieldBinder {
+        final String className;
+        final String fieldName;
+        final Class<?> fieldType;
+        final Kind kind;
+        final boolean isRequired;
+
+        /** The index of the field in fieldBinders. */
+        final int idx;
+
+        /**
+         * The setter for the field, of type (Object, fieldType) -> void for primitive fields, or (Object, Object)
+         * -> void otherwise.
+         */
+        final MethodHandle setter;
+
+        /** For enum fields, the enum constants, indexed by name. */
+        final HashMap<String, Object> enumConstants;
+
+        FieldBinder(String className, Field field, int idx) {
+            this.className = className;
+            this.fieldName = field.getName();
+            this.fieldType = field.getType();
+            if (KIND_OF_TYPE.containsKey(fieldType)) {
+                this.kind = KIND_OF_TYPE.get(fieldType);
+            } else if (fieldType.isEnum()) {
+                this.kind = Kind.ENUM;
+            } else {
+                this.kind = Kind.UNSUPPORTED;
+            }
+            this.isRequired = FieldChecker.fieldIsRequired(field);
+            this.idx = idx;
+            try {
+                field.setAccessible(true);
+                this.setter = MethodHandles.lookup().unreflectSetter(field).asType(MethodType.methodType(
+                        void.class, Object.class, fieldType.isPrimitive() ? fieldType : Object.class));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not access field " + className + "." + fieldName, e);
+            }
+            if (kind == Kind.ENUM) {
+                enumConstants = new HashMap<>();
+                for (Object enumConstant : fieldType.getEnumConstants()) {
+                    enumConstants.put(((Enum<?>) enumConstant).name(), enumConstant);
+                }
+            } else {
+                enumConstants = null;
+            }
+        }
+
+        /** Parse the param value and store it in the field. */
+        void bind(DataModel dataModel, String val) throws Throwable {
+            switch (kind) {
+            case STRING:
+                setter.invokeExact((Object) dataModel, (Object) val);
+                break;
+            case INTEGER:
+                setter.invokeExact((Object) dataModel, (Object) Integer.valueOf((int) parseInteger(val,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE)));
+                break;
+            case INT:
+                setter.invokeExact((Object) dataModel, (int) parseInteger(val, Integer.MIN_VALUE, Integer.MAX_VALUE));
+                break;
+            case LONG_BOXED:
+                setter.invokeExact((Object) dataModel, (Object) Long.valueOf(parseInteger(val, Long.MIN_VALUE,
+                        Long.MAX_VALUE)));
+                break;
+            case LONG:
+                setter.invokeExact((Object) dataModel, parseInteger(val, Long.MIN_VALUE, Long.MAX_VALUE));
+                break;
+            case SHORT_BOXED:
+                setter.invokeExact((Object) dataModel, (Object) Short.valueOf((short) parseInteger(val,
+                        Short.MIN_VALUE, Short.MAX_VALUE)));
+                break;
+            case SHORT:
+                setter.invokeExact((Object) dataModel, (short) parseInteger(val, Short.MIN_VALUE, Short.MAX_VALUE));
+                break;
+            case FLOAT_BOXED:
+                setter.invokeExact((Object) dataModel, (Object) Float.valueOf(Float.parseFloat(checkFloat(val))));
+                break;
+            case FLOAT:
+                setter.invokeExact((Object) dataModel, Float.parseFloat(checkFloat(val)));
+                break;
+            case DOUBLE_BOXED:
+                setter.invokeExact((Object) dataModel, (Object) Double.valueOf(Double.parseDouble(checkFloat(val))));
+                break;
+            case DOUBLE:
+                setter.invokeExact((Object) dataModel, Double.parseDouble(checkFloat(val)));
+                break;
+            case BOOLEAN_BOXED:
+                // Boolean fields are bound from checkbox form inputs
+                setter.invokeExact((Object) dataModel, (Object) Boolean.valueOf(parseCheckbox(val)));
+                break;
+            case BOOLEAN:
+                setter.invokeExact((Object) dataModel, parseCheckbox(val));
+                break;
+            case CHARACTER:
+            case CHAR:
+                // Character fields are bound from text, but limited to a length of 1
+                if (val.length() > 1) {
+                    throw new BadRequestException("Field " + className + "." + fieldName
+                            + " requires a single character, got " + val.length() + " characters");
+                } else if (val.length() == 1) {
+                    if (kind == Kind.CHARACTER) {
+                        setter.invokeExact((Object) dataModel, (Object) Character.valueOf(val.charAt(0)));
+                    } else {
+                        setter.invokeExact((Object) dataModel, val.charAt(0));
+                    }
+                }
+                break;
+            case LOCAL_DATE:
+                // Dates must be in format yyyy-MM-dd
+                try {
+                    setter.invokeExact((Object) dataModel, (Object) LocalDate.parse(val));
+                } catch (DateTimeParseException e) {
+                    throw parseError();
+                }
+                break;
+            case ENUM:
+                // Enum-typed fields are bound from radio button inputs, by looking up the submitted form value as
+                // one of the enum constants
+                Object enumVal = enumConstants.get(val);
+                if (enumVal == null) {
+                    throw new BadRequestException("Illegal value " + val + " for field " + className + "."
+                            + fieldName);
+                }
+                setter.invokeExact((Object) dataModel, enumVal);
+                break;
+            default:
+                throw new InternalServerErrorException("Unsupported field type " + fieldType.getSimpleName()
+                        + " for field " + className + "." + fieldName);
+            }
+        }
+
+        BadRequestException parseError() {
+            return new BadRequestException("Could not parse value " + className + "." + fieldName
+                    + " from the request");
+        }
+
+        /**
+         * Parse a decimal integer in the range [min, max], accepting the same strings as Long.parseLong(), without
+         * throwing NumberFormatException if the string is invalid.
+         */
+        private long parseInteger(String str, long min, long max) throws BadRequestException {
+            int n = str.length();
+            int i = 0;
+            boolean negative = false;
+            if (n > 0 && (str.charAt(0) == '-' || str.charAt(0) == '+')) {
+                negative = str.charAt(0) == '-';
+                i++;
+            }
+            if (i == n) {
+                throw parseError();
+            }
+            // Accumulate negatively, like Long.parseLong(), so that Long.MIN_VALUE can be parsed
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long multMin = limit / 10;
+            long result = 0;
+            for (; i < n; i++) {
+                int digit = Character.digit(str.charAt(i), 10);
+                if (digit < 0 || result < multMin) {
+                    throw parseError();
+                }
+                result *= 10;
+                if (result < limit + digit) {
+                    throw parseError();
+                }
+                result -= digit;
+            }
+            long val = negative ? result : -result;
+            if (val < min || val > max) {
+                throw parseError();
+            }
+            return val;
+        }
+
+        /**
+         * Check that a string can be parsed by Float.parseFloat() and Double.parseDouble() (which accept the same
+         * strings), so that NumberFormatException is not thrown for invalid strings.
+         */
+        private String checkFloat(String str) throws BadRequestException {
+            if (!isSimpleDecimal(str) && !FLOATING_POINT.matcher(str).matches()) {
+                throw parseError();
+            }
+            return str;
+        }
+
+        /** Returns true for the common case of a decimal number with no exponent, e.g. "-12.5". */
+        private static boolean isSimpleDecimal(String str) {
+            int n = str.length();
+            int i = n > 0 && (str.charAt(0) == '-' || str.charAt(0) == '+') ? 1 : 0;
+            boolean hasDigit = false, hasPoint = false;
+            for (; i < n; i++) {
+                char c = str.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    hasDigit = true;
+                } else if (c == '.' && !hasPoint) {
+                    hasPoint = true;
+                } else {
+                    return false;
+                }
+            }
+            return hasDigit;
+        }
+
+        /** Returns true if the value of a checkbox is "yes", "on", "1" or "true" (ignoring case). */
+        private static boolean parseCheckbox(String val) {
+            return lowerCaseEquals(val, "yes") || lowerCaseEquals(val, "on") || lowerCaseEquals(val, "1")
+                    || lowerCaseEquals(val, "true");
+        }
+
+        /** Returns true if str.toLowerCase().equals(lowerCaseStr), without creating a lowercase string. */
+        private static boolean lowerCaseEquals(String str, String lowerCaseStr) {
+            int n = str.length();
+            if (n != lowerCaseStr.length()) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (Character.toLowerCase(str.charAt(i)) != lowerCaseStr.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The strings accepted by Double.parseDouble(), from the documentation of Double.valueOf(). */
+    private static final Pattern FLOATING_POINT;
+
+    static {
+        final String digits = "(\\p{Digit}+)";
+        final String hexDigits = "(\\p{XDigit}+)";
+        final String exp = "[eE][+-]?" + digits;
+        FLOATING_POINT = Pattern.compile("[\\x00-\\x20]*[+-]?(NaN|Infinity|(((" + digits + "(\\.)?(" + digits
+                + "?)(" + exp + ")?)|(\\.(" + digits + ")(" + exp + ")?)|(((0[xX]" + hexDigits + "(\\.)?)|(0[xX]"
+                + hexDigits + "?(\\.)" + hexDigits + "))[pP][+-]?" + digits + "))[fFdD]?))[\\x00-\\x20]*");
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Create a binder for a DataModel class. */
+    public FormBinder(Class<? extends DataModel> klass) {
+        ArrayList<FieldBinder> fieldBinderList = new ArrayList<>();
+        for (Field field : klass.getFields()) {
+            // Fields annotated with @Private or @PrivateSet, and DBModel id fields, cannot be set from a request
+            if (!FieldChecker.fieldIsPrivate(field, /* checkGet = */false, /* checkSet = */true)) {
+                FieldBinder fieldBinder = new FieldBinder(klass.getName(), field, fieldBinderList.size());
+                fieldBinderList.add(fieldBinder);
+                fieldNameToBinder.put(field.getName(), fieldBinder);
+            }
+        }
+        fieldBinders = fieldBinderList.toArray(new FieldBinder[fieldBinderList.size()]);
+    }
+
+    /**
+     * Bind the DataModel from the params of a request. Doesn't check the field values against the constraint
+     * annotations of the DataModel.
+     * 
+     * @throws BadRequestException
+     *             if a required field is missing, or a value can't be parsed.
+     */
+    public void bind(DataModel dataModel, HttpServerRequest request) throws ResponseException {
+        for (FieldBinder fieldBinder : fieldBinders) {
+            // Look up field name in POST parameters and then URL query parameters
+            String val = request.getParam(fieldBinder.fieldName);
+            if (val == null) {
+                // TODO: bind FileUpload fields from file uploads
+
+                // There is a field in the DataModel that is not in the POST request
+                if (fieldBinder.isRequired) {
+                    throw new BadRequestException("Field " + fieldBinder.className + "." + fieldBinder.fieldName
+                            + " required, but not sent in POST request");
+                }
+            } else {
+                try {
+                    fieldBinder.bind(dataModel, val);
+                } catch (ResponseException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new InternalServerErrorException("Could not set field " + fieldBinder.className + "."
+                            + fieldBinder.fieldName + " to the value passed in the request", e);
+                }
+            }
+        }
+    }
+}
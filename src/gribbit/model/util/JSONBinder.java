@@ -0,0 +1,248 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import gribbit.model.DataModel;
+import gribbit.model.util.FormBinder.FieldBinder;
+import gribbit.response.exception.BadRequestException;
+import gribbit.response.exception.InternalServerErrorException;
+import gribbit.response.exception.ResponseException;
+import gribbit.util.JSONJackson;
+
+/**
+ * Binds a JSON object in the body of a POST request to the fields of a DataModel, using a streaming parser, so that
+ * the JSON never needs to be turned into a tree of intermediate objects. The fields that can be bound, and their
+ * setters, are taken from the FormBinder of the DataModel class, so as with form binding, fields annotated with
+ * Private or PrivateSet, and DBModel id fields, are never set from the request, and JSON keys that don't match a
+ * public field are ignored. Only the check that each JSON value has the right type for its field is specific to
+ * JSON.
+ */
+public class JSONBinder {
+
+    /**
+     * Set a field from the current JSON value, which has token type tok.
+     * 
+     * @throws BadRequestException
+     *             if the JSON value has the wrong type for the field.
+     */
+    private static void bindField(FieldBinder fieldBinder, DataModel dataModel, JsonParser parser, JsonToken tok)
+            throws Throwable {
+        MethodHandle setter = fieldBinder.setter;
+        if (tok == JsonToken.VALUE_NULL) {
+            if (fieldBinder.fieldType.isPrimitive()) {
+                throw new BadRequestException("Field " + fieldBinder.className + "." + fieldBinder.fieldName
+                        + " cannot be set to null");
+            }
+            setter.invokeExact((Object) dataModel, (Object) null);
+            return;
+        }
+        switch (fieldBinder.kind) {
+        case STRING:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_STRING);
+            setter.invokeExact((Object) dataModel, (Object) parser.getText());
+            break;
+        case INTEGER:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, (Object) Integer.valueOf(parser.getIntValue()));
+            break;
+        case INT:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, parser.getIntValue());
+            break;
+        case LONG_BOXED:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, (Object) Long.valueOf(parser.getLongValue()));
+            break;
+        case LONG:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, parser.getLongValue());
+            break;
+        case SHORT_BOXED:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, (Object) Short.valueOf(parser.getShortValue()));
+            break;
+        case SHORT:
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+            setter.invokeExact((Object) dataModel, parser.getShortValue());
+            break;
+        case FLOAT_BOXED:
+            checkNumberTokenType(fieldBinder, tok);
+            setter.invokeExact((Object) dataModel, (Object) Float.valueOf(parser.getFloatValue()));
+            break;
+        case FLOAT:
+            checkNumberTokenType(fieldBinder, tok);
+            setter.invokeExact((Object) dataModel, parser.getFloatValue());
+            break;
+        case DOUBLE_BOXED:
+            checkNumberTokenType(fieldBinder, tok);
+            setter.invokeExact((Object) dataModel, (Object) Double.valueOf(parser.getDoubleValue()));
+            break;
+        case DOUBLE:
+            checkNumberTokenType(fieldBinder, tok);
+            setter.invokeExact((Object) dataModel, parser.getDoubleValue());
+            break;
+        case BOOLEAN_BOXED:
+        case BOOLEAN:
+            if (tok != JsonToken.VALUE_TRUE) {
+                checkTokenType(fieldBinder, tok, JsonToken.VALUE_FALSE);
+            }
+            if (fieldBinder.kind == FormBinder.Kind.BOOLEAN_BOXED) {
+                setter.invokeExact((Object) dataModel, (Object) Boolean.valueOf(tok == JsonToken.VALUE_TRUE));
+            } else {
+                setter.invokeExact((Object) dataModel, tok == JsonToken.VALUE_TRUE);
+            }
+            break;
+        case CHARACTER:
+        case CHAR:
+            // Character fields are bound from strings, but limited to a length of 1
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_STRING);
+            String str = parser.getText();
+            if (str.length() > 1) {
+                throw new BadRequestException("Field " + fieldBinder.className + "." + fieldBinder.fieldName
+                        + " requires a single character, got " + str.length() + " characters");
+            } else if (str.length() == 1) {
+                if (fieldBinder.kind == FormBinder.Kind.CHARACTER) {
+                    setter.invokeExact((Object) dataModel, (Object) Character.valueOf(str.charAt(0)));
+                } else {
+                    setter.invokeExact((Object) dataModel, str.charAt(0));
+                }
+            }
+            break;
+        case LOCAL_DATE:
+            // Dates must be in format yyyy-MM-dd
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_STRING);
+            try {
+                setter.invokeExact((Object) dataModel, (Object) LocalDate.parse(parser.getText()));
+            } catch (DateTimeParseException e) {
+                throw fieldBinder.parseError();
+            }
+            break;
+        case ENUM:
+            // Enum-typed fields are bound from the name of an enum constant
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_STRING);
+            Object enumVal = fieldBinder.enumConstants.get(parser.getText());
+            if (enumVal == null) {
+                throw new BadRequestException("Illegal value " + parser.getText() + " for field "
+                        + fieldBinder.className + "." + fieldBinder.fieldName);
+            }
+            setter.invokeExact((Object) dataModel, enumVal);
+            break;
+        default:
+            throw new InternalServerErrorException("Unsupported field type " + fieldBinder.fieldType.getSimpleName()
+                    + " for field " + fieldBinder.className + "." + fieldBinder.fieldName);
+        }
+    }
+
+    private static void checkTokenType(FieldBinder fieldBinder, JsonToken tok, JsonToken expectedTok)
+            throws BadRequestException {
+        if (tok != expectedTok) {
+            throw new BadRequestException("Field " + fieldBinder.className + "." + fieldBinder.fieldName
+                    + " cannot be bound from a JSON value of type " + tok);
+        }
+    }
+
+    /** Floating point fields can be bound from both integer and floating point JSON numbers. */
+    private static void checkNumberTokenType(FieldBinder fieldBinder, JsonToken tok) throws BadRequestException {
+        if (tok != JsonToken.VALUE_NUMBER_FLOAT) {
+            checkTokenType(fieldBinder, tok, JsonToken.VALUE_NUMBER_INT);
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Bind the JSON object in the given stream to the fields of the DataModel, using the FormBinder for the class of
+     * the DataModel. Doesn't check the field values against the constraint annotations of the DataModel.
+     * 
+     * @throws BadRequestException
+     *             if the JSON is invalid, is not an object, has a value of the wrong type for a field, or is missing
+     *             a required field.
+     */
+    public static void bind(DataModel dataModel, FormBinder formBinder, InputStream jsonInputStream)
+            throws ResponseException {
+        boolean[] fieldWasBound = new boolean[formBinder.fieldBinders.length];
+        String fieldName = null;
+        try (JsonParser parser = JSONJackson.createParser(jsonInputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new BadRequestException("Expected a JSON object in the request body");
+            }
+            for (JsonToken tok; (tok = parser.nextToken()) != JsonToken.END_OBJECT;) {
+                if (tok != JsonToken.FIELD_NAME) {
+                    throw new BadRequestException("Invalid JSON in the request body");
+                }
+                fieldName = parser.getCurrentName();
+                tok = parser.nextToken();
+                FieldBinder fieldBinder = formBinder.fieldNameToBinder.get(fieldName);
+                if (fieldBinder == null) {
+                    // Ignore values that don't correspond to a public, non-private field (including nested
+                    // objects and arrays)
+                    parser.skipChildren();
+                } else {
+                    bindField(fieldBinder, dataModel, parser, tok);
+                    fieldWasBound[fieldBinder.idx] = true;
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new BadRequestException("Unexpected content after JSON object in the request body");
+            }
+
+        } catch (ResponseException e) {
+            throw e;
+
+        } catch (JsonParseException e) {
+            // Includes numbers that are out of range for the field type
+            throw new BadRequestException("Could not parse JSON in the request body: " + e.getOriginalMessage());
+
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException("Invalid JSON in the request body: " + e.getOriginalMessage());
+
+        } catch (IOException e) {
+            throw new BadRequestException("Could not read the request body");
+
+        } catch (Throwable e) {
+            throw new InternalServerErrorException("Could not set field " + dataModel.getClass().getName() + "."
+                    + fieldName + " to the value passed in the request", e);
+        }
+
+        for (FieldBinder fieldBinder : formBinder.fieldBinders) {
+            if (fieldBinder.isRequired && !fieldWasBound[fieldBinder.idx]) {
+                throw new BadRequestException("Field " + fieldBinder.className + "." + fieldBinder.fieldName
+                        + " required, but not sent in POST request");
+            }
+        }
+    }
+}
@@ -25,9 +25,18 @@
  */
 package gribbit.model.util;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Attribute;
@@ -35,6 +44,7 @@ import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
 
+import gribbit.server.config.GribbitProperties;
 import gribbit.util.StringUtils;
 import gribbit.util.WebUtils;
 import gribbit.util.WebUtils.EscapeAmpersand;
@@ -47,7 +57,9 @@ import gribbit.util.WebUtils.EscapeAmpersand;
  * Can also be used to render custom dynamic HTML directly into a template if needed, although:
  * 
  * (1) Using sanitized HTML is slower than template rendering, because the HTML has to be parsed by Jsoup, cleaned
- * of illegal tags and escaped before it can be rendered into the template in string format.
+ * of illegal tags and escaped before it can be rendered into the template in string format. (Plain text is escaped
+ * without being parsed, and the sanitized form of HTML that had to be parsed is cached, so sanitizing the same HTML
+ * again is fast.)
  * 
  * (2) Custom-generating dynamic HTML rather than creating a template is akin to the failure to separate content and
  * presentation (in this case, the failure to separate model and view). It is almost always better to create a new
@@ -71,12 +83,32 @@ public class SanitizedHTML {
      *            users on the site that view their content.
      */
     public SanitizedHTML(String unsafeHTML, String[] tagAttrWhitelist) {
-        HashMap<String, HashSet<String>> whitelist = tagAttrWhitelist == null ? defaultWhitelist
-                : createWhitelist(tagAttrWhitelist);
-        StringBuilder buf = new StringBuilder();
-        List<Node> nodes = Jsoup.parseBodyFragment(unsafeHTML).body().childNodes();
-        sanitize(nodes, whitelist, buf);
-        sanitizedHTML = buf.toString();
+        Whitelist whitelist = tagAttrWhitelist == null ? defaultWhitelist : getWhitelist(tagAttrWhitelist);
+        if (isPlainText(unsafeHTML)) {
+            // Plain text parses into a single text node, so there's no need to build a DOM
+            StringBuilder buf = new StringBuilder(unsafeHTML.length() + 16);
+            WebUtils.encodeForHTML(unsafeHTML, //
+                    // There are no ampersands in the text
+                    /* escapeAmpersand = */EscapeAmpersand.IF_NOT_VALID_ENTITY, //
+                    /* preserveWhitespaceRuns = */false, //
+                    // The text of a text node has its whitespace normalized, so newlines are not turned into <br>
+                    /* preserveNewline = */false, /* turnNewlineIntoBreak = */false, buf);
+            sanitizedHTML = buf.toString();
+        } else {
+            CacheKey cacheKey = MAX_CACHE_SIZE_BYTES > 0 ? new CacheKey(whitelist, unsafeHTML) : null;
+            String cached = cacheKey == null ? null : cacheGet(cacheKey);
+            if (cached != null) {
+                sanitizedHTML = cached;
+            } else {
+                StringBuilder buf = new StringBuilder();
+                List<Node> nodes = Jsoup.parseBodyFragment(unsafeHTML).body().childNodes();
+                sanitize(nodes, whitelist.tagToAttrs, buf);
+                sanitizedHTML = buf.toString();
+                if (cacheKey != null) {
+                    cachePut(cacheKey, sanitizedHTML);
+                }
+            }
+        }
     }
 
     /**
@@ -90,10 +122,62 @@ public class SanitizedHTML {
         this(unsafeHTML, null);
     }
 
-    private static HashMap<String, HashSet<String>> defaultWhitelist = //
-            createWhitelist(new String[] { "a.href", "br", "b", "i" });
+    /**
+     * Returns true if the HTML contains no elements, comments or entity references, i.e. if it would parse into a
+     * single text node with the same text as the HTML, modulo whitespace. (Null chars and non-breaking spaces are
+     * also excluded, since they are not treated the same way by all versions of Jsoup.)
+     */
+    private static boolean isPlainText(String html) {
+        for (int i = 0, n = html.length(); i < n; i++) {
+            char c = html.charAt(i);
+            if (c == '<' || c == '&' || c == StringUtils.NBSP_CHAR || c == '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** A whitelist of elements and their attributes. */
+    private static class Whitelist {
+        /** A unique id for the whitelist, for use in cache keys. */
+        private final int id;
+
+        private final HashMap<String, HashSet<String>> tagToAttrs;
+
+        public Whitelist(int id, List<String> tagAttrWhitelist) {
+            this.id = id;
+            this.tagToAttrs = createWhitelist(tagAttrWhitelist);
+        }
+    }
+
+    private static final AtomicInteger nextWhitelistId = new AtomicInteger();
+
+    private static final Whitelist defaultWhitelist = new Whitelist(nextWhitelistId.getAndIncrement(),
+            Arrays.asList("a.href", "br", "b", "i"));
+
+    /** Whitelists are only created once for each list of elements and attributes. */
+    private static final ConcurrentHashMap<List<String>, Whitelist> tagAttrWhitelistToWhitelist = //
+            new ConcurrentHashMap<>();
+
+    /** The max number of whitelists to keep -- if exceeded, whitelists are created again. */
+    private static final int MAX_WHITELISTS = 1024;
+
+    private static Whitelist getWhitelist(String[] tagAttrWhitelist) {
+        List<String> key = Arrays.asList(tagAttrWhitelist.clone());
+        Whitelist whitelist = tagAttrWhitelistToWhitelist.get(key);
+        if (whitelist == null) {
+            if (tagAttrWhitelistToWhitelist.size() >= MAX_WHITELISTS) {
+                tagAttrWhitelistToWhitelist.clear();
+            }
+            whitelist = tagAttrWhitelistToWhitelist.computeIfAbsent(key,
+                    k -> new Whitelist(nextWhitelistId.getAndIncrement(), k));
+        }
+        return whitelist;
+    }
 
-    private static HashMap<String, HashSet<String>> createWhitelist(String[] strings) {
+    private static HashMap<String, HashSet<String>> createWhitelist(List<String> strings) {
         HashMap<String, HashSet<String>> whitelist = new HashMap<>();
         for (String str : strings) {
             String[] parts = StringUtils.split(str, ".");
@@ -110,6 +194,108 @@ public class SanitizedHTML {
         return whitelist;
     }
 
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * The max total size of the sanitized HTML to cache (if the HTML had to be parsed). Each entry is keyed by a
+     * SHA-256 hash of the unsafe HTML, rather than by the unsafe HTML itself, so that the unsafe HTML doesn't have
+     * to be kept. A cryptographic hash is used so that a user can't craft HTML whose key collides with the key of
+     * someone else's HTML.
+     */
+    private static final long MAX_CACHE_SIZE_BYTES = GribbitProperties.SANITIZED_HTML_CACHE_MAX_BYTES;
+
+    /** The estimated size in bytes of a cache entry, excluding the sanitized HTML. */
+    private static final int CACHE_ENTRY_OVERHEAD_BYTES = 128;
+
+    /** Least recently used sanitized HTML, keyed by the whitelist and a hash of the unsafe HTML. */
+    private static final LinkedHashMap<CacheKey, String> cache = new LinkedHashMap<>(256, 0.75f,
+            /* accessOrder = */true);
+    private static long cacheSizeBytes;
+
+    private static final AtomicLong numCacheHits = new AtomicLong();
+    private static final AtomicLong numCacheMisses = new AtomicLong();
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private static class CacheKey {
+        private final int whitelistId;
+        private final long hash0, hash1, hash2, hash3;
+
+        CacheKey(Whitelist whitelist, String unsafeHTML) {
+            this.whitelistId = whitelist.id;
+            // Hash the UTF-16 chars rather than the UTF-8 encoding, which maps all unpaired surrogates to '?'
+            byte[] chars = new byte[unsafeHTML.length() * 2];
+            ByteBuffer.wrap(chars).asCharBuffer().put(unsafeHTML);
+            ByteBuffer hash = ByteBuffer.wrap(sha256.get().digest(chars));
+            this.hash0 = hash.getLong();
+            this.hash1 = hash.getLong();
+            this.hash2 = hash.getLong();
+            this.hash3 = hash.getLong();
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash0 ^ whitelistId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return other.whitelistId == whitelistId && other.hash0 == hash0 && other.hash1 == hash1
+                    && other.hash2 == hash2 && other.hash3 == hash3;
+        }
+    }
+
+    private static String cacheGet(CacheKey key) {
+        String sanitized;
+        synchronized (cache) {
+            sanitized = cache.get(key);
+        }
+        (sanitized == null ? numCacheMisses : numCacheHits).incrementAndGet();
+        return sanitized;
+    }
+
+    private static void cachePut(CacheKey key, String sanitized) {
+        long sizeBytes = CACHE_ENTRY_OVERHEAD_BYTES + 2L * sanitized.length();
+        if (sizeBytes > MAX_CACHE_SIZE_BYTES / 4) {
+            // Too large to cache
+            return;
+        }
+        synchronized (cache) {
+            String oldSanitized = cache.put(key, sanitized);
+            if (oldSanitized != null) {
+                cacheSizeBytes -= CACHE_ENTRY_OVERHEAD_BYTES + 2L * oldSanitized.length();
+            }
+            cacheSizeBytes += sizeBytes;
+            // Evict least recently used entries until the cache fits within its max size
+            for (Iterator<String> iter = cache.values().iterator(); cacheSizeBytes > MAX_CACHE_SIZE_BYTES;) {
+                cacheSizeBytes -= CACHE_ENTRY_OVERHEAD_BYTES + 2L * iter.next().length();
+                iter.remove();
+            }
+        }
+    }
+
+    /** Returns the number of times sanitized HTML was found in the cache. */
+    public static long getNumCacheHits() {
+        return numCacheHits.get();
+    }
+
+    /** Returns the number of times HTML had to be parsed and sanitized because it was not in the cache. */
+    public static long getNumCacheMisses() {
+        return numCacheMisses.get();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
     private static void sanitize(List<Node> nodes, HashMap<String, HashSet<String>> whitelist, StringBuilder buf) {
         for (Node node : nodes) {
             if (node instanceof TextNode) {
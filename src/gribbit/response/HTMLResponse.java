@@ -29,14 +29,26 @@ import java.util.List;
 
 import gribbit.auth.CSRF;
 import gribbit.model.TemplateModel;
+import gribbit.server.config.GribbitProperties;
 import gribbit.util.JSON;
+import gribbit.util.Log;
+import gribbit.util.RenderBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 
 public class HTMLResponse extends Response {
 
     protected TemplateModel content;
     private String csrfTok;
+    private boolean streaming = GribbitProperties.HTML_STREAMING;
+
+    /** The initial size of the buffer that HTML is rendered into. */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
 
     public HTMLResponse(HttpResponseStatus status, TemplateModel content) {
         super(status);
@@ -57,6 +69,15 @@ public class HTMLResponse extends Response {
         this.csrfTok = csrfTok;
     }
 
+    /**
+     * Set whether the HTML should be streamed to the client in chunks as it is rendered (defaults to the value of
+     * the "html.streaming" property).
+     */
+    public HTMLResponse setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
     /**
      * Returns the UTF-8 byte encoding of the HTML content of the response, or the UTF-8 byte encoding of the JSON
      * representation of the model behind the HTML content if isGetModelRequest is true.
@@ -64,20 +85,72 @@ public class HTMLResponse extends Response {
     @Override
     public void send(RoutingContext routingContext) {
         boolean isGetModelRequest = routingContext.request().getParam("_getModel") != null;
-        String contentStr =
-                // Return empty string for null content
-                content == null ? "" //
-                        : isGetModelRequest
-                                // Render as JSON if ?_getmodel is appended to the URL
-                                ? JSON.toJSON(content)
-                                // Render as HTML otherwise
-                                : content.renderTemplate(routingContext.request().uri());
         String contentType = isGetModelRequest ? "application/json;charset=utf-8" : "text/html;charset=utf-8";
+        if (content == null) {
+            // Return empty string for null content
+            sendHeaders(routingContext, contentType);
+            routingContext.response().end("");
+
+        } else if (isGetModelRequest) {
+            // Render as JSON if ?_getmodel is appended to the URL
+            StringBuilder buf = RenderBuffer.acquire();
+            Buffer contentBuf;
+            try {
+                JSON.toJSON(content, GribbitProperties.PRETTY_PRINT_JSON, buf);
+                if (csrfTok != null) {
+                    for (int idx = buf.indexOf(CSRF.CSRF_TOKEN_PLACEHOLDER); idx >= 0; //
+                            idx = buf.indexOf(CSRF.CSRF_TOKEN_PLACEHOLDER, idx + csrfTok.length())) {
+                        buf.replace(idx, idx + CSRF.CSRF_TOKEN_PLACEHOLDER.length(), csrfTok);
+                    }
+                }
+                contentBuf = utf8Buffer(buf);
+            } finally {
+                RenderBuffer.release(buf);
+            }
+            sendHeaders(routingContext, contentType);
+            routingContext.response().end(contentBuf);
 
-        if (contentStr.indexOf(CSRF.CSRF_TOKEN_PLACEHOLDER) >= 0 && csrfTok != null) {
-            contentStr = contentStr.replace(CSRF.CSRF_TOKEN_PLACEHOLDER, csrfTok);
+        } else if (streaming && !Context.isOnEventLoopThread()) {
+            // Stream HTML in chunks as it is rendered. Streaming may block the thread waiting for the client to
+            // catch up, so it is not performed on the event loop.
+            sendHeaders(routingContext, contentType);
+            sendStreaming(routingContext);
+
+        } else {
+            // Render as HTML otherwise. Render straight into a heap buffer as UTF-8, with the CSRF token written
+            // into forms as they are rendered, so that the page is never copied into a String or a byte array.
+            // The buffer must not be pooled, since Vert.x never releases it (see utf8Buffer()).
+            ByteBuf contentBuf = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+            try {
+                content.renderTemplate(routingContext.request().uri(), GribbitProperties.PRETTY_PRINT_HTML, csrfTok,
+                        contentBuf);
+            } catch (RuntimeException | Error e) {
+                contentBuf.release();
+                throw e;
+            }
+            sendHeaders(routingContext, contentType);
+            routingContext.response().end(Buffer.buffer(contentBuf));
+        }
+    }
+
+    /**
+     * Render the HTML content into a chunked response, writing each chunk as soon as it has been rendered. If the
+     * write queue of the response fills up, blocks until the client has caught up.
+     */
+    private void sendStreaming(RoutingContext routingContext) {
+        HttpServerResponse response = routingContext.response();
+        response.setChunked(true);
+        try {
+            content.renderTemplate(routingContext.request().uri(), GribbitProperties.PRETTY_PRINT_HTML, csrfTok,
+                    GribbitProperties.HTML_STREAMING_CHUNK_SIZE, chunk -> writeChunk(response, chunk));
+        } catch (RuntimeException | Error e) {
+            // The status and headers have already been sent, so the only option is to close the connection
+            Log.exception("Exception while streaming response", e);
+            if (!response.closed()) {
+                response.close();
+            }
+            return;
         }
-        sendHeaders(routingContext, contentType);
-        routingContext.response().end(contentStr);
+        response.end();
     }
 }
@@ -25,16 +25,35 @@
  */
 package gribbit.response;
 
+import java.util.Iterator;
+
+import gribbit.server.config.GribbitProperties;
 import gribbit.util.JSON;
+import gribbit.util.JSONWriter;
+import gribbit.util.Log;
+import gribbit.util.RenderBuffer;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 
 public class JSONResponse extends Response {
 
+    /** The JSON content, if it was already encoded by Vert.x. */
     private String contentStr;
 
+    /** The object to render as JSON when the response is sent. */
+    private Object content;
+
+    /** The elements to stream as a JSON array when the response is sent. */
+    private Iterable<?> contentIterable;
+    private Iterator<?> contentIterator;
+
+    private boolean streaming = GribbitProperties.JSON_STREAMING;
+
     public JSONResponse(HttpResponseStatus status, JsonObject jsonObject) {
         super(status);
         this.contentStr = jsonObject.encode();
@@ -45,9 +64,29 @@ public class JSONResponse extends Response {
         this.contentStr = jsonArray.encode();
     }
 
+    /** The object is rendered as JSON when the response is sent. */
     public JSONResponse(HttpResponseStatus status, Object obj) {
         super(status);
-        this.contentStr = JSON.toJSON(obj);
+        this.content = obj;
+    }
+
+    /**
+     * The elements of the Iterable (e.g. a database cursor) are streamed to the client as a JSON array when the
+     * response is sent, each element being rendered as it is returned, so that the elements never need to be held
+     * in memory all at once.
+     */
+    public JSONResponse(HttpResponseStatus status, Iterable<?> elements) {
+        super(status);
+        this.contentIterable = elements;
+    }
+
+    /**
+     * The elements returned by the Iterator (e.g. a database cursor) are streamed to the client as a JSON array
+     * when the response is sent. If the Iterator is AutoCloseable, it is closed once the response has been sent.
+     */
+    public JSONResponse(HttpResponseStatus status, Iterator<?> elements) {
+        super(status);
+        this.contentIterator = elements;
     }
 
     public JSONResponse(JsonObject jsonObject) {
@@ -62,9 +101,101 @@ public class JSONResponse extends Response {
         this(HttpResponseStatus.OK, obj);
     }
 
+    public JSONResponse(Iterable<?> elements) {
+        this(HttpResponseStatus.OK, elements);
+    }
+
+    public JSONResponse(Iterator<?> elements) {
+        this(HttpResponseStatus.OK, elements);
+    }
+
+    /**
+     * Set whether an object should be streamed to the client in chunks as it is rendered as JSON (defaults to the
+     * value of the "json.streaming" property). Iterable and Iterator content is always streamed. Objects are not
+     * streamed when the response is sent from the event loop.
+     */
+    public JSONResponse setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
     @Override
     public void send(RoutingContext routingContext) {
+        if (contentIterable != null || contentIterator != null) {
+            sendHeaders(routingContext, "application/json;charset=utf-8");
+            if (Context.isOnEventLoopThread()) {
+                // Reading the elements may block (e.g. while a database cursor fetches the next batch), and
+                // streaming blocks while the client catches up, so stream from a worker thread
+                routingContext.vertx().<Void> executeBlocking(future -> {
+                    sendStreaming(routingContext);
+                    future.complete();
+                }, /* ordered = */ false, res -> {
+                    if (res.failed()) {
+                        Log.exception("Exception while streaming response", res.cause());
+                    }
+                });
+            } else {
+                sendStreaming(routingContext);
+            }
+            return;
+        } else if (streaming && contentStr == null && !Context.isOnEventLoopThread()) {
+            sendHeaders(routingContext, "application/json;charset=utf-8");
+            sendStreaming(routingContext);
+            return;
+        }
+        Buffer contentBuf;
+        if (contentStr != null) {
+            contentBuf = utf8Buffer(contentStr);
+        } else {
+            // Render into a reusable buffer, and encode the buffer straight to UTF-8
+            StringBuilder buf = RenderBuffer.acquire();
+            try {
+                JSON.toJSON(content, GribbitProperties.PRETTY_PRINT_JSON, buf);
+                contentBuf = utf8Buffer(buf);
+            } finally {
+                RenderBuffer.release(buf);
+            }
+        }
         sendHeaders(routingContext, "application/json;charset=utf-8");
-        routingContext.response().end(contentStr);
+        routingContext.response().end(contentBuf);
+    }
+
+    /**
+     * Render the content into a chunked response, writing each chunk as soon as it has been rendered. If the write
+     * queue of the response fills up, blocks until the client has caught up, so must not be called on the event loop.
+     */
+    private void sendStreaming(RoutingContext routingContext) {
+        HttpServerResponse response = routingContext.response();
+        response.setChunked(true);
+        JSONWriter writer = new JSONWriter(GribbitProperties.PRETTY_PRINT_JSON,
+                GribbitProperties.JSON_STREAMING_CHUNK_SIZE, chunk -> writeChunk(response, chunk));
+        try {
+            if (contentIterable != null || contentIterator != null) {
+                Iterator<?> iterator = contentIterable != null ? contentIterable.iterator() : contentIterator;
+                try {
+                    writer.writeArray(iterator);
+                } finally {
+                    if (iterator instanceof AutoCloseable) {
+                        try {
+                            ((AutoCloseable) iterator).close();
+                        } catch (Exception e) {
+                            Log.exception("Could not close iterator", e);
+                        }
+                    }
+                }
+            } else {
+                writer.write(content);
+            }
+            writer.finish();
+        } catch (RuntimeException | Error e) {
+            writer.release();
+            // The status and headers have already been sent, so the only option is to close the connection
+            Log.exception("Exception while streaming response", e);
+            if (!response.closed()) {
+                response.close();
+            }
+            return;
+        }
+        response.end();
     }
 }
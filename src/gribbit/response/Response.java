@@ -27,11 +27,17 @@ package gribbit.response;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import gribbit.auth.User;
+import gribbit.server.config.GribbitProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.Cookie;
@@ -175,6 +181,7 @@ public abstract class Response {
         HttpServerResponse response = request.response();
         MultiMap headers = response.headers();
 
+        response.setStatusCode(status.code());
         headers.add("Content-Type", contentType);
 
         if (customHeaders != null) {
@@ -196,6 +203,77 @@ public abstract class Response {
         }
     }
 
+    /**
+     * Encode content as UTF-8 straight into a heap buffer of the exact size, without going via an intermediate byte
+     * array. Buffer.buffer(ByteBuf) wraps the buffer so that it is never released, so buffers passed to Vert.x must
+     * not come from a pool (they are reclaimed by the garbage collector once the response has been written).
+     */
+    protected static Buffer utf8Buffer(CharSequence content) {
+        ByteBuf buf = Unpooled.buffer(ByteBufUtil.utf8Bytes(content));
+        ByteBufUtil.writeUtf8(buf, content);
+        return Buffer.buffer(buf);
+    }
+
+    /**
+     * Write a chunk of a chunked response, taking ownership of the chunk. The chunk must not be a pooled buffer,
+     * since Vert.x never releases it (see utf8Buffer()). If the write queue of the response fills up, blocks until
+     * the client has caught up, so that chunks are never queued without bound, and throws an exception if the client
+     * doesn't catch up within the drain timeout. Must not be called on the event loop.
+     */
+    protected static void writeChunk(HttpServerResponse response, ByteBuf chunk) {
+        if (response.closed()) {
+            chunk.release();
+            throw new RuntimeException("Connection closed while streaming response");
+        }
+        response.write(Buffer.buffer(chunk));
+        awaitDrain(response);
+    }
+
+    /** How often a streaming response that is waiting for the client to catch up checks for a closed connection. */
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    /**
+     * If the write queue of the response is full, block until it has drained. If the connection closes, or if the
+     * queue doesn't drain within the drain timeout (i.e. the client has stopped reading but kept the connection
+     * open), close the response and throw an exception, so that a stalled client can't hold a thread and an
+     * admission slot forever.
+     * 
+     * The drain handler of the response is replaced while waiting (a streaming response is only written by the
+     * streaming code), but the close handler is left alone, so that a close handler set by the route still runs.
+     * Instead, the connection is checked for closure every DRAIN_POLL_MILLIS.
+     */
+    private static void awaitDrain(HttpServerResponse response) {
+        if (!response.writeQueueFull()) {
+            return;
+        }
+        Object drained = new Object();
+        response.drainHandler(v -> {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(GribbitProperties.STREAMING_DRAIN_TIMEOUT_SECONDS);
+        synchronized (drained) {
+            // The queue can only drain while the lock is released in wait(), so no drain notification is missed
+            while (response.writeQueueFull()) {
+                if (response.closed()) {
+                    throw new RuntimeException("Connection closed while streaming response");
+                }
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    response.close();
+                    throw new RuntimeException("Timed out waiting for the client to read the streamed response");
+                }
+                try {
+                    drained.wait(Math.min(remainingMillis, DRAIN_POLL_MILLIS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while streaming response", e);
+                }
+            }
+        }
+    }
+
     /** Send the response. Should call sendHeaders() first. */
     public abstract void send(RoutingContext routingContext);
 }
@@ -43,6 +43,6 @@ public class TextResponse extends Response {
     @Override
     public void send(RoutingContext routingContext) {
         sendHeaders(routingContext, "text/plain;charset=utf-8");
-        routingContext.response().end(content);
+        routingContext.response().end(utf8Buffer(content));
     }
 }
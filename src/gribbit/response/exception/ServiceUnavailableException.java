@@ -0,0 +1,54 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.response.exception;
+
+import gribbit.response.ErrorResponse;
+import gribbit.response.Response;
+import gribbit.server.siteresources.SiteResources;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * This exception is thrown when the server is overloaded and cannot accept the request. The response is generated
+ * without calling a custom error handler, so that it can be sent quickly and without blocking.
+ */
+public class ServiceUnavailableException extends LightweightResponseException {
+    private int retryAfterSeconds;
+
+    public ServiceUnavailableException(int retryAfterSeconds) {
+        super(HttpResponseStatus.SERVICE_UNAVAILABLE);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public Response generateErrorResponse(RoutingContext routingContext, SiteResources siteResources) {
+        Response response = new ErrorResponse(responseStatus, getResponseMessage());
+        if (retryAfterSeconds > 0) {
+            response.addHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        }
+        return response;
+    }
+}
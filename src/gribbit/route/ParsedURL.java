@@ -2,6 +2,7 @@ package gribbit.route;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -11,71 +12,170 @@ import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.QueryStringEncoder;
 
 public class ParsedURL {
-    private final ArrayList<String> unescapedURLParts;
-    private final Map<String, List<String>> unescapedQueryParams;
+    /** The raw (escaped) URL, including any query string. */
+    private final String url;
+
+    /** The index of the end of the URL path, i.e. the index of '?', or the length of the URL. */
+    private final int pathEnd;
+
+    /** Pairs of (start, end) indices of the path segments in url, after normalization. */
+    private final int[] segmentRanges;
+    private int numSegments;
+
+    /**
+     * The unescaped path segments, created lazily. Segments that contain %-escapes or non-ASCII characters are
+     * unescaped while parsing, since they are needed for normalization; other segments are the same whether
+     * escaped or unescaped, so they are only extracted from the URL if requested.
+     */
+    private String[] unescapedSegments;
+
+    private List<String> unescapedURLParts;
+    private Map<String, List<String>> unescapedQueryParams;
     private String escapedNormalizedURL;
 
     /**
      * Parse the request URL, handle unescaping of path and query segments, and normalize ".." and "." path
-     * elements.
+     * elements. Query params are not decoded until getQueryParams() is called.
      */
     public ParsedURL(String requestURL) {
-        QueryStringDecoder decoder = new QueryStringDecoder(requestURL);
-        String urlPath = decoder.path();
-        this.unescapedQueryParams = decoder.parameters();
-
-        if (urlPath.isEmpty()) {
-            urlPath = "/";
-        }
-        if (!urlPath.startsWith("/")) {
-            // Request URLs should always start with "/"; if they don't, assume URL is relative to "/"
-            urlPath = "/" + urlPath;
-        }
-        // Unescape URL parts so URL can be normalized
-        String[] parts = urlPath.equals("/") ? new String[] { "" } : urlPath.split("/");
-        this.unescapedURLParts = new ArrayList<>(parts.length - 1);
-        for (int i = 1, n = parts.length; i < n; i++) {
-            String pathElt = URLUtils.unescapeURLSegment(parts[i]);
-            if (!pathElt.isEmpty() && !pathElt.equals(".")) {
-                if (pathElt.equals("..")) {
-                    if (unescapedURLParts.size() == 0) {
-                        // Attempt to navigate above root -- ignore
-                    } else {
-                        unescapedURLParts.remove(unescapedURLParts.size() - 1);
-                    }
-                } else {
-                    unescapedURLParts.add(pathElt);
-                }
+        this.url = requestURL;
+        int queryIdx = requestURL.indexOf('?');
+        this.pathEnd = queryIdx < 0 ? requestURL.length() : queryIdx;
+
+        // Find the max possible number of path segments
+        int maxNumSegments = 1;
+        for (int i = 0; i < pathEnd; i++) {
+            if (requestURL.charAt(i) == '/') {
+                maxNumSegments++;
+            }
+        }
+        this.segmentRanges = new int[maxNumSegments * 2];
+
+        // Split path into segments. If the path doesn't start with "/", it is assumed to be relative to "/".
+        for (int segStart = 0; segStart <= pathEnd;) {
+            int segEnd = requestURL.indexOf('/', segStart);
+            if (segEnd < 0 || segEnd > pathEnd) {
+                segEnd = pathEnd;
+            }
+            if (segEnd > segStart) {
+                addSegment(segStart, segEnd);
+            }
+            segStart = segEnd + 1;
+        }
+    }
+
+    /** Add a path segment, skipping "." and empty segments, and handling "..". */
+    private void addSegment(int segStart, int segEnd) {
+        boolean needsUnescaping = false;
+        for (int i = segStart; i < segEnd; i++) {
+            char c = url.charAt(i);
+            if (c == '%' || c > 0x7f) {
+                needsUnescaping = true;
+                break;
+            }
+        }
+        String unescaped = null;
+        boolean isDot, isDotDot;
+        if (needsUnescaping) {
+            // Unescape URL part so URL can be normalized
+            unescaped = URLUtils.unescapeURLSegment(url.substring(segStart, segEnd));
+            if (unescaped.isEmpty()) {
+                return;
+            }
+            isDot = unescaped.equals(".");
+            isDotDot = unescaped.equals("..");
+        } else {
+            int len = segEnd - segStart;
+            isDot = len == 1 && url.charAt(segStart) == '.';
+            isDotDot = len == 2 && url.charAt(segStart) == '.' && url.charAt(segStart + 1) == '.';
+        }
+        if (isDot) {
+            return;
+        } else if (isDotDot) {
+            if (numSegments == 0) {
+                // Attempt to navigate above root -- ignore
+            } else {
+                numSegments--;
+            }
+            return;
+        }
+        segmentRanges[numSegments * 2] = segStart;
+        segmentRanges[numSegments * 2 + 1] = segEnd;
+        if (unescaped != null && unescapedSegments == null) {
+            unescapedSegments = new String[segmentRanges.length / 2];
+        }
+        if (unescapedSegments != null) {
+            // Overwrite any segment previously removed by ".."
+            unescapedSegments[numSegments] = unescaped;
+        }
+        numSegments++;
+    }
+
+    /** Returns the unescaped URL path segment at the given index. */
+    public String getURLPart(int idx) {
+        if (idx < 0 || idx >= numSegments) {
+            throw new IndexOutOfBoundsException("Index " + idx + " is out of range");
+        }
+        String[] segments = unescapedSegments;
+        String part = segments == null ? null : segments[idx];
+        if (part == null) {
+            // Segment is the same whether escaped or unescaped
+            part = url.substring(segmentRanges[idx * 2], segmentRanges[idx * 2 + 1]);
+            if (segments == null) {
+                unescapedSegments = segments = new String[segmentRanges.length / 2];
             }
+            segments[idx] = part;
         }
+        return part;
+    }
+
+    /**
+     * Returns true if the URL path segment at the given index of this URL is equal to the segment at the given
+     * index of the other URL. Does not allocate if neither segment needed unescaping.
+     */
+    private boolean urlPartEquals(int idx, ParsedURL other, int otherIdx) {
+        String part = unescapedSegments == null ? null : unescapedSegments[idx];
+        String otherPart = other.unescapedSegments == null ? null : other.unescapedSegments[otherIdx];
+        if (part == null && otherPart == null) {
+            // Compare the raw URL characters directly
+            int start = segmentRanges[idx * 2], len = segmentRanges[idx * 2 + 1] - start;
+            int otherStart = other.segmentRanges[otherIdx * 2];
+            int otherLen = other.segmentRanges[otherIdx * 2 + 1] - otherStart;
+            return len == otherLen && url.regionMatches(start, other.url, otherStart, len);
+        }
+        return getURLPart(idx).equals(other.getURLPart(otherIdx));
     }
 
     /** Returns the URL path, normalized to handle "..", ".", and empty path segments. */
     public String getNormalizedPath() {
         if (escapedNormalizedURL == null) {
             // Lazily re-escape normalized URL path segments
-            StringBuilder buf = new StringBuilder();
-            for (String part : unescapedURLParts) {
+            StringBuilder buf = new StringBuilder(pathEnd + 1);
+            for (int i = 0; i < numSegments; i++) {
                 buf.append('/');
-                buf.append(URLUtils.escapeURLSegment(part));
+                buf.append(URLUtils.escapeURLSegment(getURLPart(i)));
             }
             escapedNormalizedURL = buf.length() == 0 ? "/" : buf.toString();
         }
         return escapedNormalizedURL;
     }
 
-    /** Returns the query params, unescaped. */
+    /** Returns the query params, unescaped. The query string is decoded the first time this is called. */
     public Map<String, List<String>> getQueryParams() {
+        if (unescapedQueryParams == null) {
+            unescapedQueryParams = pathEnd == url.length() ? Collections.<String, List<String>> emptyMap()
+                    : new QueryStringDecoder(url).parameters();
+        }
         return unescapedQueryParams;
     }
 
     /** Returns true if this URL starts with the given template URL. */
     public boolean startsWith(ParsedURL templateURL) {
-        if (templateURL.unescapedURLParts.size() > this.unescapedURLParts.size()) {
+        if (templateURL.numSegments > this.numSegments) {
             return false;
         }
-        for (int i = 0; i < templateURL.unescapedURLParts.size(); i++) {
-            if (!templateURL.unescapedURLParts.get(i).equals(this.unescapedURLParts.get(i))) {
+        for (int i = 0; i < templateURL.numSegments; i++) {
+            if (!urlPartEquals(i, templateURL, i)) {
                 return false;
             }
         }
@@ -83,14 +183,21 @@ public class ParsedURL {
     }
 
     public int getNumURLParts() {
-        return this.unescapedURLParts.size();
+        return numSegments;
     }
 
     public List<String> getUnescapedURLParts(int startIdx) {
-        return unescapedURLParts.subList(startIdx, unescapedURLParts.size());
+        return getUnescapedURLParts().subList(startIdx, numSegments);
     }
 
     public List<String> getUnescapedURLParts() {
+        if (unescapedURLParts == null) {
+            ArrayList<String> parts = new ArrayList<>(numSegments);
+            for (int i = 0; i < numSegments; i++) {
+                parts.add(getURLPart(i));
+            }
+            unescapedURLParts = parts;
+        }
         return unescapedURLParts;
     }
 
@@ -98,8 +205,9 @@ public class ParsedURL {
     @Override
     public String toString() {
         QueryStringEncoder encoder = new QueryStringEncoder(getNormalizedPath());
-        if (unescapedQueryParams != null) {
-            for (Entry<String, List<String>> ent : unescapedQueryParams.entrySet()) {
+        Map<String, List<String>> queryParams = getQueryParams();
+        if (queryParams != null) {
+            for (Entry<String, List<String>> ent : queryParams.entrySet()) {
                 List<String> vals = ent.getValue();
                 if (vals != null) {
                     for (String val : vals) {
@@ -113,8 +221,8 @@ public class ParsedURL {
 
     public File getFile(File rootDir) {
         File curr = rootDir;
-        for (int i = 0; i < unescapedURLParts.size(); i++) {
-            curr = new File(curr, unescapedURLParts.get(i));
+        for (int i = 0; i < numSegments; i++) {
+            curr = new File(curr, getURLPart(i));
             if (!curr.exists()) {
                 return null;
             }
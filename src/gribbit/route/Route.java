@@ -25,13 +25,27 @@
  */
 package gribbit.route;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.List;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import gribbit.auth.CSRF;
 import gribbit.auth.User;
+import gribbit.handler.route.annotation.MaxRequestsInFlight;
+import gribbit.handler.route.annotation.NonBlocking;
 import gribbit.handler.route.annotation.Public;
 import gribbit.handler.route.annotation.Roles;
 import gribbit.model.DataModel;
@@ -47,7 +61,11 @@ import gribbit.server.GribbitServer;
 import gribbit.util.Log;
 import gribbit.util.Reflection;
 import gribbit.util.URLUtils;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.RoutingContext;
@@ -56,6 +74,11 @@ import io.vertx.ext.web.RoutingContext;
 public class Route {
     private ParsedURL routePath;
     private boolean routeIsPublic;
+    private boolean routeIsNonBlocking;
+
+    // The max number of admitted requests for this route, or 0 for no limit, and the current number
+    private int maxRequestsInFlight;
+    private final AtomicInteger numRequestsInFlight = new AtomicInteger();
     private Class<? extends RouteHandler> handlerClass;
     private Roles getRoles, postRoles;
 
@@ -65,12 +88,31 @@ public class Route {
     private Method postMethod;
     private Class<? extends DataModel> postParamType;
 
+    // True if the get() or post() method returns a CompletionStage<Response> rather than a Response
+    private boolean getMethodIsAsync, postMethodIsAsync;
+
+    // Invokers compiled once when the route is registered, so that no reflection is needed per request
+    private Supplier<RouteHandler> handlerFactory;
+    private MethodHandle getMethodInvoker; // (RouteHandler, String[]) -> Response or CompletionStage<Response>
+    private MethodHandle postMethodInvoker; // (RouteHandler, DataModel) -> Response or CompletionStage<Response>
+
+    private static final String[] NO_URL_PARAMS = new String[0];
+
     // -----------------------------------------------------------------------------------------------------------------
 
     public Route(Class<? extends RouteHandler> handlerClass, String routePath) {
         this.handlerClass = handlerClass;
         this.routePath = new ParsedURL(routePath);
         this.routeIsPublic = handlerClass.getAnnotation(Public.class) != null;
+        this.routeIsNonBlocking = handlerClass.getAnnotation(NonBlocking.class) != null;
+        MaxRequestsInFlight maxRequestsInFlightAnnotation = handlerClass.getAnnotation(MaxRequestsInFlight.class);
+        if (maxRequestsInFlightAnnotation != null) {
+            this.maxRequestsInFlight = maxRequestsInFlightAnnotation.value();
+            if (this.maxRequestsInFlight <= 0) {
+                throw new RuntimeException("Handler " + handlerClass.getName() + " has a @"
+                        + MaxRequestsInFlight.class.getSimpleName() + " annotation with a value less than 1");
+            }
+        }
         Roles classRoles = handlerClass.getAnnotation(Roles.class);
 
         // Check for methods get() and post() in the handler subinterface
@@ -86,10 +128,12 @@ public class Route {
                             "Method " + handlerClass.getName() + "." + methodName + " should not be static");
                 }
                 // Check return type
-                if (!Response.class.isAssignableFrom(method.getReturnType())) {
+                if (!Response.class.isAssignableFrom(method.getReturnType())
+                        && !returnsCompletionStageOfResponse(method)) {
                     throw new RuntimeException("Method " + handlerClass.getName() + "." + methodName
-                            + " should have a return type of " + Response.class.getName()
-                            + " or a subclass, instead of " + method.getReturnType().getName());
+                            + " should have a return type of " + Response.class.getName() + " or a subclass, or "
+                            + CompletionStage.class.getName() + "<" + Response.class.getName()
+                            + ">, instead of " + method.getGenericReturnType().getTypeName());
                 }
             }
 
@@ -124,6 +168,7 @@ public class Route {
                 }
                 getMethod = method;
                 getParamTypes = paramTypes;
+                getMethodIsAsync = CompletionStage.class.isAssignableFrom(method.getReturnType());
                 getRoles = method.getAnnotation(Roles.class);
                 if (getRoles == null) {
                     getRoles = classRoles;
@@ -151,24 +196,186 @@ public class Route {
                     throw new RuntimeException("Interface " + handlerClass.getName() + " has two post() methods");
                 }
                 postMethod = method;
+                postMethodIsAsync = CompletionStage.class.isAssignableFrom(method.getReturnType());
                 postRoles = method.getAnnotation(Roles.class);
                 if (postRoles == null) {
                     postRoles = classRoles;
                 }
             }
         }
+
+        // Compile the handler constructor and the get() and post() methods into invokers
+        handlerFactory = compileHandlerFactory(handlerClass);
+        if (getMethod != null) {
+            getMethodInvoker = compileGetMethodInvoker(getMethod, getParamTypes);
+        }
+        if (postMethod != null) {
+            postMethodInvoker = compilePostMethodInvoker(postMethod);
+        }
     }
 
     // -----------------------------------------------------------------------------------------------------------------
 
+    private static final MethodHandle PARSE_INT_URL_PARAM, PARSE_INTEGER_URL_PARAM;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            PARSE_INT_URL_PARAM = lookup.findStatic(Route.class, "parseIntURLParam",
+                    MethodType.methodType(Integer.TYPE, String.class));
+            PARSE_INTEGER_URL_PARAM = lookup.findStatic(Route.class, "parseIntegerURLParam",
+                    MethodType.methodType(Integer.class, String.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Parse an int-typed URL parameter. */
+    private static int parseIntURLParam(String uriSegment) throws BadRequestException {
+        try {
+            // Specifically parse integers for int-typed method parameters 
+            return Integer.parseInt(uriSegment);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Malformed URL parameter, expected integer for URI parameter");
+        }
+    }
+
+    /** Parse an Integer-typed URL parameter. Null values (used when calling error handlers) are passed through. */
+    private static Integer parseIntegerURLParam(String uriSegment) throws BadRequestException {
+        return uriSegment == null ? null : Integer.valueOf(parseIntURLParam(uriSegment));
+    }
+
+    /**
+     * Compile a factory for instances of the handler class. Uses LambdaMetafactory to bind the default constructor
+     * to a Supplier, falling back to a constructor MethodHandle if the handler class cannot be linked that way.
+     */
+    @SuppressWarnings("unchecked")
+    private static Supplier<RouteHandler> compileHandlerFactory(Class<? extends RouteHandler> handlerClass) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle constructor;
+        try {
+            constructor = lookup.findConstructor(handlerClass, MethodType.methodType(Void.TYPE));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException("Could not find default constructor for handler class "
+                    + handlerClass.getName() + " -- it needs to be public, it needs a zero-argument constructor "
+                    + "if there are any other non-default constructors defined, and the class must be static "
+                    + "if it is an inner class", e);
+        }
+        try {
+            CallSite callSite = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class), constructor, MethodType.methodType(handlerClass));
+            return (Supplier<RouteHandler>) callSite.getTarget().invoke();
+        } catch (Throwable e) {
+            // Handler class is not visible to the metafactory (e.g. it was loaded by a different classloader)
+            MethodHandle constructorInvoker = constructor.asType(MethodType.methodType(RouteHandler.class));
+            return () -> {
+                try {
+                    return (RouteHandler) constructorInvoker.invokeExact();
+                } catch (RuntimeException | Error e2) {
+                    throw e2;
+                } catch (Throwable e2) {
+                    throw new RuntimeException(e2);
+                }
+            };
+        }
+    }
+
     /**
-     * If a post() method takes exactly one parameter, then bind the param value from the POST data.
+     * Returns true if the method returns a CompletionStage (or a subclass, e.g. CompletableFuture) whose type
+     * parameter is Response or a subclass. If the type parameter can't be determined from the declared return type,
+     * the type of the response is checked once the stage completes.
+     */
+    private static boolean returnsCompletionStageOfResponse(Method method) {
+        if (!CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            return false;
+        }
+        Type returnType = method.getGenericReturnType();
+        if (!(returnType instanceof ParameterizedType)
+                || ((ParameterizedType) returnType).getActualTypeArguments().length != 1) {
+            return true;
+        }
+        Type typeArg = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+        for (;;) {
+            if (typeArg instanceof WildcardType) {
+                typeArg = ((WildcardType) typeArg).getUpperBounds()[0];
+            } else if (typeArg instanceof TypeVariable) {
+                typeArg = ((TypeVariable<?>) typeArg).getBounds()[0];
+            } else if (typeArg instanceof ParameterizedType) {
+                typeArg = ((ParameterizedType) typeArg).getRawType();
+            } else {
+                break;
+            }
+        }
+        return typeArg instanceof Class && Response.class.isAssignableFrom((Class<?>) typeArg);
+    }
+
+    /**
+     * Compile the get() method into a MethodHandle of type (RouteHandler, String[]) -> Object, where the result is a
+     * Response or a CompletionStage<Response>. URL params are spread from the String[] into the method's
+     * parameters, and int-typed params are parsed without boxing.
+     */
+    private static MethodHandle compileGetMethodInvoker(Method method, Class<?>[] paramTypes) {
+        MethodHandle invoker;
+        try {
+            invoker = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Method " + method.getDeclaringClass().getName() + "." + method.getName()
+                    + " is not accessible", e);
+        }
+        for (int i = 0; i < paramTypes.length; i++) {
+            if (paramTypes[i] == Integer.TYPE) {
+                invoker = MethodHandles.filterArguments(invoker, i + 1, PARSE_INT_URL_PARAM);
+            } else if (paramTypes[i] == Integer.class) {
+                invoker = MethodHandles.filterArguments(invoker, i + 1, PARSE_INTEGER_URL_PARAM);
+            }
+        }
+        Class<?>[] invokerParamTypes = new Class<?>[paramTypes.length + 1];
+        invokerParamTypes[0] = RouteHandler.class;
+        for (int i = 0; i < paramTypes.length; i++) {
+            invokerParamTypes[i + 1] = String.class;
+        }
+        return invoker.asType(MethodType.methodType(Object.class, invokerParamTypes)) //
+                .asSpreader(String[].class, paramTypes.length);
+    }
+
+    /**
+     * Compile the post() method into a MethodHandle of type (RouteHandler, DataModel) -> Object, where the result is
+     * a Response or a CompletionStage<Response>.
+     */
+    private static MethodHandle compilePostMethodInvoker(Method method) {
+        MethodHandle invoker;
+        try {
+            invoker = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Method " + method.getDeclaringClass().getName() + "." + method.getName()
+                    + " is not accessible", e);
+        }
+        if (method.getParameterTypes().length == 0) {
+            // post() takes no params -- ignore the DataModel param of the invoker
+            invoker = MethodHandles.dropArguments(invoker, 1, DataModel.class);
+        }
+        return invoker.asType(MethodType.methodType(Object.class, RouteHandler.class, DataModel.class));
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Returns true if the request has Content-Type application/json. */
+    private static boolean isJSONRequest(HttpServerRequest request) {
+        String contentType = request.getHeader("Content-Type");
+        return contentType != null && contentType.regionMatches(/* ignoreCase = */true, 0, "application/json", 0,
+                "application/json".length());
+    }
+
+    /**
+     * If a post() method takes exactly one parameter, then bind the param value from the POST data. If the request
+     * has Content-Type application/json, the param value is bound from the JSON object in the request body,
+     * otherwise it is bound from the POST params.
      * 
      * @param user
      */
-    private Object[] bindPostParamFromPOSTData(HttpServerRequest request, ParsedURL reqURL)
+    private DataModel bindPostParamFromPOSTData(RoutingContext routingContext, ParsedURL reqURL)
             throws ResponseException {
-        if (reqURL.getUnescapedURLParts().size() != routePath.getUnescapedURLParts().size()) {
+        HttpServerRequest request = routingContext.request();
+        if (reqURL.getNumURLParts() != routePath.getNumURLParts()) {
             throw new BadRequestException("POST requests should not have URL parameters");
         }
         if (postParamType == null) {
@@ -188,12 +395,16 @@ public class Route {
             }
 
             // Bind POST param object from request
-            postParam.bindFromPost(request);
-
-            // Wrap bound object Object[1]
-            Object[] paramVal = new Object[1];
-            paramVal[0] = postParam;
-            return paramVal;
+            if (isJSONRequest(request)) {
+                Buffer body = routingContext.getBody();
+                if (body == null) {
+                    throw new BadRequestException("Missing request body");
+                }
+                postParam.bindFromJSON(new ByteBufInputStream(body.getByteBuf()));
+            } else {
+                postParam.bindFromPost(request);
+            }
+            return postParam;
         }
     }
 
@@ -204,46 +415,36 @@ public class Route {
      * FIXME: Use Vertx' URL binding syntax, e.g. "/person/:id" puts the URL value into the param "id". FIXME: Move
      * binding code into the RequestURL class.
      */
-    private Object[] bindGetParamsFromURI(ParsedURL reqURL) throws ResponseException {
+    private String[] bindGetParamsFromURI(ParsedURL reqURL) throws ResponseException {
         if (getParamTypes.length == 0) {
             // get() takes no params
-            int numUrlParams = reqURL.getUnescapedURLParts().size();
-            int expectedNumUrlParams = routePath.getUnescapedURLParts().size();
+            int numUrlParams = reqURL.getNumURLParts();
+            int expectedNumUrlParams = routePath.getNumURLParts();
             if (numUrlParams != expectedNumUrlParams) {
                 throw new BadRequestException(
                         "Wrong number of URL parameters: expected 0, got " + (numUrlParams - expectedNumUrlParams));
             }
-            return null;
+            return NO_URL_PARAMS;
 
         } else {
             // get() takes one or more params
-            Object[] getParamVals = new Object[getParamTypes.length];
+            String[] getParamVals = new String[getParamTypes.length];
             if (!reqURL.startsWith(routePath)) {
                 // This is an error handler that has been called to replace the normal route handler;
                 // don't try to parse URL params (leave them all as null)
 
             } else {
-                // Parse URL params
-                List<String> urlParams = reqURL.getUnescapedURLParts(routePath.getNumURLParts());
-                if (urlParams.size() != getParamTypes.length) {
+                // Get URL params. Integer-typed params are parsed by the get() method invoker.
+                int firstParamIdx = routePath.getNumURLParts();
+                int numUrlParams = reqURL.getNumURLParts() - firstParamIdx;
+                if (numUrlParams != getParamTypes.length) {
                     throw new BadRequestException("Wrong number of URL parameters: expected " + getParamTypes.length
-                            + ", got " + urlParams.size());
+                            + ", got " + numUrlParams);
                 }
                 for (int i = 0; i < getParamTypes.length; i++) {
-                    String uriSegment = urlParams.get(i);
-                    if (getParamTypes[i] == Integer.class || getParamTypes[i] == Integer.TYPE) {
-                        try {
-                            // Specifically parse integers for int-typed method parameters 
-                            getParamVals[i] = Integer.parseInt(uriSegment);
-                        } catch (NumberFormatException e) {
-                            throw new BadRequestException(
-                                    "Malformed URL parameter, expected integer for URI parameter");
-                        }
-                    } else {
-                        // N.B. parameter values should not be unescaped again after this, to prevent
-                        // double-encoding attacks: see https://www.owasp.org/index.php/Double_Encoding
-                        getParamVals[i] = uriSegment;
-                    }
+                    // N.B. parameter values should not be unescaped again after this, to prevent
+                    // double-encoding attacks: see https://www.owasp.org/index.php/Double_Encoding
+                    getParamVals[i] = reqURL.getURLPart(firstParamIdx + i);
                 }
             }
             return getParamVals;
@@ -252,14 +453,21 @@ public class Route {
 
     // -----------------------------------------------------------------------------------------------------------------
 
-    /** Invoke a default method in a Route subinterface. */
-    private Response invokeMethod(RoutingContext routingContext, Method method, Object[] methodParamVals,
+    /**
+     * Invoke the get() method (if getParamVals is non-null) or the post() method (if getParamVals is null) of a new
+     * handler instance. Returns the Response, or if the method is async, a CompletionStage<Response> that is
+     * completed on the calling Vert.x context.
+     */
+    private Object invokeMethod(RoutingContext routingContext, String[] getParamVals, DataModel postParamVal,
             Roles methodRoles, boolean checkAuthorized, boolean checkCSRFTok) throws ResponseException {
+        Method method = getParamVals != null ? getMethod : postMethod;
+
         // Create a handler instance
         RouteHandler instance;
         try {
-            instance = handlerClass.newInstance();
-        } catch (InstantiationException | IllegalAccessException e) {
+            instance = handlerFactory.get();
+        } catch (Throwable e) {
+            // Also catch Errors (e.g. a LinkageError thrown by the generated constructor supplier)
             throw new InternalServerErrorException(
                     "Exception while creating instance of handler class " + handlerClass.getName(), e);
         }
@@ -270,7 +478,11 @@ public class Route {
         }
 
         if (checkCSRFTok) {
-            if (!CSRF.csrfTokMatches(routingContext.request().getParam(CSRF.CSRF_PARAM_NAME), instance.user)) {
+            // JSON clients send the token in a header (cookie-to-header), so that it doesn't end up in the URL
+            HttpServerRequest request = routingContext.request();
+            String csrfTok = isJSONRequest(request) ? request.getHeader(CSRF.CSRF_HEADER_NAME)
+                    : request.getParam(CSRF.CSRF_PARAM_NAME);
+            if (!CSRF.csrfTokMatches(csrfTok, instance.user)) {
                 throw new BadRequestException("Missing or incorrect CSRF token in POST request");
             }
         }
@@ -280,83 +492,152 @@ public class Route {
             throw new UnauthorizedException();
         }
 
+        Object result;
         try {
             // Invoke the method
-            Response response = (Response) method.invoke(instance, methodParamVals);
+            result = getParamVals != null ? (Object) getMethodInvoker.invokeExact(instance, getParamVals)
+                    : (Object) postMethodInvoker.invokeExact(instance, postParamVal);
 
-            // The Response object should not be null, but if it is, respond with No Content
-            if (response == null) {
-                Log.warning(handlerClass.getName() + "." + method.getName()
-                        + " returned a null response -- responding with 204: No Content");
-                response = new ErrorResponse(HttpResponseStatus.NO_CONTENT, "");
-            }
+        } catch (ResponseException e) {
+            // Re-throw ResponseExceptions thrown by the method
+            throw e;
+        } catch (Exception e) {
+            throw new InternalServerErrorException(
+                    "Exception while invoking the method " + handlerClass.getName() + "." + method.getName(), e);
+        } catch (Throwable e) {
+            throw new InternalServerErrorException("Exception while invoking the method " + handlerClass.getName()
+                    + "." + method.getName() + ": caused by " + e.getMessage());
+        }
+
+        if (result instanceof CompletionStage) {
+            return finishResponseAsync(instance, method, (CompletionStage<?>) result);
+        }
+        return finishResponse(instance, method, (Response) result);
+    }
 
-            // For non-error responses
-            if (response.getStatus() == HttpResponseStatus.OK) {
-                // Add the user's CSRF token to the response if user is logged in
-                if (instance.user != null) {
-                    String csrfTok = instance.user.csrfTok;
-                    if (csrfTok != null) {
-                        CSRF.setCsrfCookie(csrfTok, "/", response);
-                        if (response instanceof HTMLResponse) {
-                            ((HTMLResponse) response).setCsrfTok(csrfTok);
-                        }
+    /** Add the user's CSRF token and any flash messages to the response returned by the get() or post() method. */
+    private Response finishResponse(RouteHandler instance, Method method, Response response) {
+        // The Response object should not be null, but if it is, respond with No Content
+        if (response == null) {
+            Log.warning(handlerClass.getName() + "." + method.getName()
+                    + " returned a null response -- responding with 204: No Content");
+            response = new ErrorResponse(HttpResponseStatus.NO_CONTENT, "");
+        }
+
+        // For non-error responses
+        if (response.getStatus() == HttpResponseStatus.OK) {
+            // Add the user's CSRF token to the response if user is logged in
+            if (instance.user != null) {
+                String csrfTok = instance.user.csrfTok;
+                if (csrfTok != null) {
+                    CSRF.setCsrfCookie(csrfTok, "/", response);
+                    if (response instanceof HTMLResponse) {
+                        ((HTMLResponse) response).setCsrfTok(csrfTok);
                     }
                 }
-                // Add any flash messages to response
-                if (response instanceof HTMLPageResponse) {
-                    ((HTMLPageResponse) response).setFlashMessages(routingContext.session());
-                }
             }
-            return response;
+            // Add any flash messages to response
+            if (response instanceof HTMLPageResponse) {
+                ((HTMLPageResponse) response).setFlashMessages(instance.routingContext.session());
+            }
+        }
+        return response;
+    }
 
-        } catch (InvocationTargetException e) {
-            // If method.invoke() throws a ResponseException, it gets wrapped in an InvocationTargetException.
-            // Unwrap it and re-throw it.
-            Throwable cause = e.getCause();
-            if (cause instanceof ResponseException) {
-                throw (ResponseException) cause;
-            } else if (cause instanceof Exception) {
-                throw new InternalServerErrorException(
-                        "Exception while invoking the method " + handlerClass.getName() + "." + method.getName(),
-                        (Exception) cause);
+    /**
+     * Once the CompletionStage returned by an async get() or post() method has completed, finish the response on the
+     * Vert.x context that the method was called from, since the stage may have been completed by another thread,
+     * e.g. a database thread. Exceptions are mapped to ResponseExceptions in the same way as for synchronous
+     * methods.
+     */
+    private CompletionStage<Response> finishResponseAsync(RouteHandler instance, Method method,
+            CompletionStage<?> responseStage) {
+        Context context = Vertx.currentContext();
+        CompletableFuture<Response> finishedResponse = new CompletableFuture<>();
+        responseStage.whenComplete((response, e) -> {
+            Runnable finish = () -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    finishedResponse.completeExceptionally(cause instanceof ResponseException ? cause
+                            : new InternalServerErrorException("Exception while invoking the method "
+                                    + handlerClass.getName() + "." + method.getName(), cause));
+                } else {
+                    try {
+                        finishedResponse.complete(finishResponse(instance, method, (Response) response));
+                    } catch (RuntimeException e2) {
+                        finishedResponse.completeExceptionally(e2);
+                    }
+                }
+            };
+            if (context == null || Vertx.currentContext() == context) {
+                finish.run();
             } else {
-                throw new InternalServerErrorException("Exception while invoking the method "
-                        + handlerClass.getName() + "." + method.getName() + ": caused by " + cause.getMessage());
+                context.runOnContext(v -> finish.run());
             }
-        } catch (Exception e) {
-            throw new InternalServerErrorException(
-                    "Exception while invoking the method " + handlerClass.getName() + "." + method.getName(), e);
-        }
+        });
+        return finishedResponse;
     }
 
     // -----------------------------------------------------------------------------------------------------------------
 
     /**
-     * Call the get() or post() method for the Route corresponding to the request URI.
+     * Returns true if the get() or post() method for the given HTTP method returns a CompletionStage<Response>, so
+     * that the request should be handled with callHandlerAsync().
+     */
+    public boolean isAsync(HttpMethod reqMethod) {
+        return reqMethod == HttpMethod.GET ? getMethodIsAsync : reqMethod == HttpMethod.POST && postMethodIsAsync;
+    }
+
+    /**
+     * Call the get() or post() method for the Route corresponding to the request URI. Must only be called if
+     * isAsync() returns false for the request method.
      * 
      * @param reqURL
      */
     public Response callHandler(RoutingContext routingContext, ParsedURL reqURL) throws ResponseException {
-        Response response;
+        Object result = callMethod(routingContext, reqURL);
+        if (result instanceof CompletionStage) {
+            // Should not happen
+            throw new InternalServerErrorException("Async handler " + handlerClass.getName()
+                    + " was called synchronously");
+        }
+        return (Response) result;
+    }
+
+    /**
+     * Call the get() or post() method for the Route corresponding to the request URI. Returns a CompletionStage that
+     * is completed with the response on the calling Vert.x context once an async method's result has completed, or
+     * straight away if the method is not async.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletionStage<Response> callHandlerAsync(RoutingContext routingContext, ParsedURL reqURL)
+            throws ResponseException {
+        Object result = callMethod(routingContext, reqURL);
+        return result instanceof CompletionStage ? (CompletionStage<Response>) result
+                : CompletableFuture.completedFuture((Response) result);
+    }
+
+    /** Call the get() or post() method, returning a Response or a CompletionStage<Response>. */
+    private Object callMethod(RoutingContext routingContext, ParsedURL reqURL) throws ResponseException {
+        Object response;
         // Determine param vals for method
         HttpServerRequest request = routingContext.request();
         HttpMethod reqMethod = request.method();
 
         if (reqMethod == HttpMethod.GET) {
             // Bind URI params
-            Object[] getParamVals = bindGetParamsFromURI(reqURL);
+            String[] getParamVals = bindGetParamsFromURI(reqURL);
 
             // Invoke the get() method with URI params
-            response = invokeMethod(routingContext, getMethod, getParamVals, getRoles, /* checkAuthorized = */ true,
-                    /* checkCSRFTok = */ false);
+            response = invokeMethod(routingContext, getParamVals, /* postParamVal = */ null, getRoles,
+                    /* checkAuthorized = */ true, /* checkCSRFTok = */ false);
 
         } else if (reqMethod == HttpMethod.POST) {
             // Bind the post() method's single parameter (if it has one) from the POST data in the request
-            Object[] postParamVal = bindPostParamFromPOSTData(request, reqURL);
+            DataModel postParamVal = bindPostParamFromPOSTData(routingContext, reqURL);
 
             // Invoke the post() method
-            response = invokeMethod(routingContext, postMethod, postParamVal, postRoles,
+            response = invokeMethod(routingContext, /* getParamVals = */ null, postParamVal, postRoles,
                     /* checkAuthorized = */ true, /* checkCSRFTok = */ true);
 
         } else {
@@ -379,8 +660,9 @@ public class Route {
             // custom error handlers as the first parameter to provide more info about what went wrong.
             // (Would need to change the expected number of params for a get() method of an error handler
             // from 0 to 1 in RouteMapping.)
-            Response response = invokeMethod(routingContext, getMethod, /* getParamVals = */ null, getRoles,
-                    /* checkAuthorized = */ false, /* checkCSRFTok = */ false);
+            // Error handlers can't be async (this is checked in RouteMapping)
+            Response response = (Response) invokeMethod(routingContext, NO_URL_PARAMS, /* postParamVal = */ null,
+                    getRoles, /* checkAuthorized = */ false, /* checkCSRFTok = */ false);
             if (response == null) {
                 // Should not happen
                 throw new RuntimeException("Error handler didn't generate a response");
@@ -471,6 +753,45 @@ public class Route {
         return handlerClass;
     }
 
+    /**
+     * Returns true if the handler class is annotated with NonBlocking, meaning requests for this route should be
+     * handled on the event loop rather than on a worker thread.
+     */
+    public boolean isNonBlocking() {
+        return routeIsNonBlocking;
+    }
+
+    /**
+     * Try to admit a request for this route. Returns false if the route has a MaxRequestsInFlight annotation and
+     * the limit has already been reached. Otherwise, releaseRequest() must be called once the request completes.
+     */
+    public boolean tryAdmitRequest() {
+        if (maxRequestsInFlight == 0) {
+            return true;
+        }
+        for (;;) {
+            int curr = numRequestsInFlight.get();
+            if (curr >= maxRequestsInFlight) {
+                return false;
+            }
+            if (numRequestsInFlight.compareAndSet(curr, curr + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Release a request admitted by tryAdmitRequest(). */
+    public void releaseRequest() {
+        if (maxRequestsInFlight != 0) {
+            numRequestsInFlight.decrementAndGet();
+        }
+    }
+
+    /** Returns the number of requests for this route that are currently admitted, if the route has a limit. */
+    public int getNumRequestsInFlight() {
+        return numRequestsInFlight.get();
+    }
+
     public boolean hasGetMethod() {
         return getMethod != null;
     }
@@ -32,8 +32,16 @@ import io.vertx.ext.web.Session;
 /**
  * A route handler. Override the public default get() method with optional params to accept URL params, and/or the
  * public default post() method with one optional param of type DataModel to populate the DataModel values from POST
- * param values. Note: you should normally subclass RouteHandlerAuthNotRequired, RouteHandlerAuthRequired or
- * RouteHandlerAuthAndValidatedEmailRequired, and not RouteHandler itself.
+ * param values, or from the JSON object in the body of a POST request with Content-Type application/json. For
+ * routes that check the CSRF token, a JSON POST request must send the token in the X-Csrf-Token header (see
+ * CSRF.setCsrfCookie()) rather than in a POST param. Note: you should normally subclass
+ * RouteHandlerAuthNotRequired, RouteHandlerAuthRequired or RouteHandlerAuthAndValidatedEmailRequired, and not
+ * RouteHandler itself.
+ * 
+ * The get() and post() methods may return a CompletionStage<Response> instead of a Response, e.g. one obtained from
+ * the async methods of Database, such as findOneByIdAsync(). These methods are called on the event loop, like the
+ * methods of a handler annotated with NonBlocking, so they must not block, and the response is sent once the stage
+ * has completed.
  */
 public abstract class RouteHandler {
     public RoutingContext routingContext;
@@ -42,6 +42,7 @@ import gribbit.handler.route.annotation.RoutePath;
 import gribbit.model.DataModel;
 import gribbit.util.Log;
 import gribbit.util.Reflection;
+import io.vertx.core.http.HttpMethod;
 
 public class RouteMapping {
 
@@ -50,6 +51,9 @@ public class RouteMapping {
     private HashMap<Class<? extends RouteHandler>, Route> routeForHandler = new HashMap<>();
     private HashMap<String, Route> routeForRoutePath = new HashMap<>();
 
+    // Segment trie for resolving request URLs to routes in O(path depth)
+    private RouteTrieNode routeTrieRoot = new RouteTrieNode(null);
+
     private HashMap<Class<? extends DataModel>, Route> formModelToRoute = new HashMap<>();
 
     // Route handlers for each error type. If left null, then default handlers are called.
@@ -94,6 +98,88 @@ public class RouteMapping {
 
     // -------------------------------------------------------------------------------------------------------------
 
+    /**
+     * A node in the route trie. Each edge is labeled with one unescaped URL path segment, so the node reached by
+     * following the segments of a route path holds the Route for that path.
+     */
+    private static class RouteTrieNode {
+        private final RouteTrieNode parent;
+        private HashMap<String, RouteTrieNode> children;
+        private Route route;
+
+        /** The number of routes registered at or below this node. */
+        private int numRoutesInSubtree;
+
+        public RouteTrieNode(RouteTrieNode parent) {
+            this.parent = parent;
+        }
+
+        public RouteTrieNode getChild(String segment) {
+            return children == null ? null : children.get(segment);
+        }
+
+        public RouteTrieNode getOrCreateChild(String segment) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            RouteTrieNode child = children.get(segment);
+            if (child == null) {
+                children.put(segment, child = new RouteTrieNode(this));
+            }
+            return child;
+        }
+
+        /** Find any route at or below this node (used for error reporting). */
+        public Route findAnyRoute() {
+            if (route != null) {
+                return route;
+            }
+            if (children != null) {
+                for (RouteTrieNode child : children.values()) {
+                    if (child.numRoutesInSubtree > 0) {
+                        return child.findAnyRoute();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Find the trie node for a route path, creating nodes as needed. */
+    private RouteTrieNode getOrCreateTrieNode(ParsedURL routePath) {
+        RouteTrieNode node = routeTrieRoot;
+        for (int i = 0, n = routePath.getNumURLParts(); i < n; i++) {
+            node = node.getOrCreateChild(routePath.getURLPart(i));
+        }
+        return node;
+    }
+
+    /**
+     * Find the Route whose route path is the longest prefix of the request URL, or return null if no route
+     * matches. The root route "/" only matches the URL "/" itself, since it is the only route that is allowed to
+     * be a prefix of other routes.
+     */
+    public Route routeForURL(ParsedURL reqURL) {
+        int numReqURLParts = reqURL.getNumURLParts();
+        if (numReqURLParts == 0) {
+            return routeTrieRoot.route;
+        }
+        Route bestMatch = null;
+        RouteTrieNode node = routeTrieRoot;
+        for (int i = 0; i < numReqURLParts; i++) {
+            node = node.getChild(reqURL.getURLPart(i));
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                bestMatch = node.route;
+            }
+        }
+        return bestMatch;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
     /**
      * Get the Route corresponding to a given RestHandler class.
      */
@@ -211,24 +297,29 @@ public class RouteMapping {
                     throw new RuntimeException("Handler " + handler.getName() + " has an error handler "
                             + "annotation, but does not have a get() method that takes zero params");
                 }
+                if (hasErrHandlerAnnotation && route.isAsync(HttpMethod.GET)) {
+                    // Error responses are generated synchronously, while handling the original request
+                    throw new RuntimeException("Handler " + handler.getName() + " has an error handler "
+                            + "annotation, but its get() method returns a CompletionStage rather than a Response");
+                }
             }
 
             // If this route has been overridden, need to compare against all other routes to make sure it
             // is not a prefix of another route or vice versa (this is not possible with the default routes
             // derived from classnames). The only route that is allowed to be a prefix of others is "/".
+            RouteTrieNode trieNode = getOrCreateTrieNode(route.getRoutePath());
             if (routeOverride != null && !routeOverride.equals("/")) {
-                for (String otherRoute : routeForRoutePath.keySet()) {
-                    if (otherRoute.startsWith(routeOverride)) {
-                        if (routeOverride.length() == otherRoute.length()
-                                || otherRoute.charAt(routeOverride.length()) == '/')
-                            throw new RuntimeException("Manually-overriden route " + routeOverride + " in handler "
-                                    + handler.getName() + " matches or is a prefix of another route " + otherRoute);
-                    } else if (routeOverride.startsWith(otherRoute)) {
-                        if (routeOverride.length() == otherRoute.length()
-                                || routeOverride.charAt(otherRoute.length()) == '/')
-                            throw new RuntimeException("Already-added route " + otherRoute
-                                    + " matches or is a prefix of manually-overriden route " + routeOverride
-                                    + " in handler " + handler.getName());
+                if (trieNode.numRoutesInSubtree > 0) {
+                    throw new RuntimeException("Manually-overriden route " + routeOverride + " in handler "
+                            + handler.getName() + " matches or is a prefix of another route "
+                            + trieNode.findAnyRoute());
+                }
+                for (RouteTrieNode ancestor = trieNode.parent; ancestor != null
+                        && ancestor != routeTrieRoot; ancestor = ancestor.parent) {
+                    if (ancestor.route != null) {
+                        throw new RuntimeException("Already-added route " + ancestor.route
+                                + " matches or is a prefix of manually-overriden route " + routeOverride
+                                + " in handler " + handler.getName());
                     }
                 }
             }
@@ -246,6 +337,12 @@ public class RouteMapping {
             }
             allRoutes.add(route);
 
+            // Add route to the trie
+            trieNode.route = route;
+            for (RouteTrieNode node = trieNode; node != null; node = node.parent) {
+                node.numRoutesInSubtree++;
+            }
+
             // Check type of parameter of any post() method is handled by only one handler (this is required
             // because the "submit" attribute of the form is filled in with the route of the handler that
             // handles the POST request)
@@ -0,0 +1,145 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gribbit.route.Route;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+
+/**
+ * Bounds the number of blocking requests that are executing or waiting to execute. Up to maxInFlight requests may
+ * execute at once, and up to maxQueued further requests may wait for an in-flight request to complete. Requests
+ * beyond that, or beyond the limit set by a MaxRequestsInFlight annotation on the route's handler, are rejected so
+ * that they can be answered immediately with 503 Service Unavailable, rather than queueing without bound until
+ * every request times out. Requests to async route handlers are admitted in the same way, and hold their slot
+ * until their response has been sent.
+ */
+public class AdmissionController {
+    private final Vertx vertx;
+
+    /** The max number of requests executing at once, or 0 for no limit. */
+    private final int maxInFlight;
+
+    /** The max number of requests waiting to execute, or -1 for no limit. */
+    private final int maxQueued;
+
+    /** The number of requests currently executing. Guarded by this. */
+    private int numInFlight;
+
+    /** Requests waiting for an in-flight request to complete. Guarded by this. */
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+    private final AtomicLong numRejected = new AtomicLong();
+    private final AtomicLong numRejectedByRouteLimit = new AtomicLong();
+
+    // -----------------------------------------------------------------------------------------------------
+
+    public AdmissionController(Vertx vertx, int maxInFlight, int maxQueued) {
+        this.vertx = vertx;
+        this.maxInFlight = Math.max(0, maxInFlight);
+        this.maxQueued = maxQueued < 0 ? -1 : maxQueued;
+    }
+
+    /**
+     * Try to admit a request for the given route (which may be null if no route matched the request). If there is
+     * an execution slot free, the task is run immediately on the calling thread; if instead there is room in the
+     * queue, the task is run on the calling context once a slot frees up. Either way, release() must be called
+     * once the task has completed.
+     * 
+     * @return true if the request was admitted, or false if it was rejected, in which case the task will never run
+     *         and release() must not be called.
+     */
+    public boolean tryAdmit(Route route, Runnable task) {
+        if (route != null && !route.tryAdmitRequest()) {
+            numRejectedByRouteLimit.incrementAndGet();
+            return false;
+        }
+        boolean runNow;
+        synchronized (this) {
+            if (maxInFlight == 0 || numInFlight < maxInFlight) {
+                numInFlight++;
+                runNow = true;
+            } else if (maxQueued < 0 || queue.size() < maxQueued) {
+                // Run the task on the calling context once an in-flight request completes
+                Context context = vertx.getOrCreateContext();
+                queue.add(() -> context.runOnContext(v -> task.run()));
+                runNow = false;
+            } else {
+                numRejected.incrementAndGet();
+                if (route != null) {
+                    route.releaseRequest();
+                }
+                return false;
+            }
+        }
+        if (runNow) {
+            task.run();
+        }
+        return true;
+    }
+
+    /** Release the execution slot held by a completed request, and start the next queued request, if any. */
+    public void release(Route route) {
+        if (route != null) {
+            route.releaseRequest();
+        }
+        Runnable next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null) {
+                numInFlight--;
+            } // else the execution slot is handed over to the next request
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
+    /** Returns the number of requests currently executing. */
+    public synchronized int getNumInFlight() {
+        return numInFlight;
+    }
+
+    /** Returns the number of requests waiting to execute. */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Returns the number of requests rejected because the server-wide in-flight and queue limits were reached. */
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    /** Returns the number of requests rejected because of a per-route MaxRequestsInFlight limit. */
+    public long getNumRejectedByRouteLimit() {
+        return numRejectedByRouteLimit.get();
+    }
+}
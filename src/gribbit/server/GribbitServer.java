@@ -30,13 +30,17 @@ import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import gribbit.response.Response;
 import gribbit.response.exception.InternalServerErrorException;
 import gribbit.response.exception.NotFoundException;
 import gribbit.response.exception.ResponseException;
+import gribbit.response.exception.ServiceUnavailableException;
 import gribbit.route.ParsedURL;
 import gribbit.route.Route;
+import gribbit.server.config.GribbitProperties;
 import gribbit.server.siteresources.Database;
 import gribbit.server.siteresources.SiteResources;
 import gribbit.util.Log;
@@ -44,8 +48,9 @@ import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
-import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CookieHandler;
 import io.vertx.ext.web.handler.SessionHandler;
 import io.vertx.ext.web.handler.StaticHandler;
@@ -67,6 +72,31 @@ public class GribbitServer {
 
     public static final Vertx vertx = Vertx.vertx(new VertxOptions().setWorkerPoolSize(NUM_WORKER_THREADS));
 
+    /** Executes request handlers that may block, either on the worker pool or on virtual threads. */
+    private static final RequestExecutor requestExecutor = new RequestExecutor(vertx,
+            GribbitProperties.REQUEST_EXECUTOR_MODE);
+    static {
+        // Stop accepting blocking requests when the JVM shuts down
+        Runtime.getRuntime().addShutdownHook(new Thread(requestExecutor::shutdown, "gribbit-request-shutdown"));
+    }
+
+    /** Limits the number of blocking requests that can be executing or queued at once. */
+    private static final AdmissionController admissionController = new AdmissionController(vertx,
+            maxInFlightRequests(), GribbitProperties.ADMISSION_MAX_QUEUED);
+
+    /**
+     * The max number of blocking requests that can execute at once. Unless admission.max.inflight is set, this is
+     * the size of the worker pool when requests run on the worker pool, and unlimited when they run on virtual
+     * threads, since a virtual thread is cheap and a limit sized for the worker pool would just turn away requests
+     * the server could have handled. (The queue limit and any MaxRequestsInFlight annotations still apply.)
+     */
+    private static int maxInFlightRequests() {
+        if (GribbitProperties.ADMISSION_MAX_IN_FLIGHT >= 0) {
+            return GribbitProperties.ADMISSION_MAX_IN_FLIGHT;
+        }
+        return requestExecutor.usesVirtualThreads() ? 0 : NUM_WORKER_THREADS;
+    }
+
     private HttpServer server;
     private Router router;
 
@@ -90,7 +120,12 @@ public class GribbitServer {
     private void loadSiteResources(Vertx vertx, String basePackageName) {
         try {
             long startTime = System.currentTimeMillis();
+            SiteResources prevSiteResources = GribbitServer.siteResources;
             GribbitServer.siteResources = new SiteResources(basePackageName);
+            if (prevSiteResources != null) {
+                // Free the HTML fragments rendered from the previous templates
+                prevSiteResources.getFragmentCache().invalidateAll();
+            }
             if (firstResourceLoad) {
                 Log.info("Site resource loading took "
                         + String.format("%.3f", (System.currentTimeMillis() - startTime) * 0.001f) + " sec");
@@ -158,6 +193,11 @@ public class GribbitServer {
         return this;
     }
 
+    /** Returns the admission controller, which can be queried for queue depth and rejection counts. */
+    public static AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
     // -----------------------------------------------------------------------------------------------------
 
     //    /**
@@ -191,6 +231,103 @@ public class GribbitServer {
 
     // -----------------------------------------------------------------------------------------------------
 
+    /**
+     * Call the handler for the route matching the request URL (or generate an error response if there is no matching
+     * route, or if the handler throws an exception), then send the response.
+     */
+    private static void handleRequest(RoutingContext routingContext, ParsedURL reqURL, Route route) {
+        Response response = null;
+        try {
+            // RequestURL reqURL = new RequestURL(request.absoluteURI());  // TODO
+            boolean isWSUpgrade = false;
+            //            if (webSocketHandlers != null) {
+            //                for (WebSocketHandler handler : webSocketHandlers) {
+            //                    if (handler.isWebSocketUpgradeURL(request.absoluteURI())) {
+            //                        isWSUpgrade = true;
+            //                        ServerWebSocket websocket = request.upgrade();
+            //                        throw new RuntimeException("TODO"); // TODO
+            //                    }
+            //                }
+            //            }
+            if (!isWSUpgrade) {
+                if (route != null) {
+                    response = route.callHandler(routingContext, reqURL);
+                }
+                if (response == null) {
+                    // No route matched => 404
+                    response = new NotFoundException().generateErrorResponse(routingContext, siteResources);
+                }
+            }
+        } catch (Exception e) {
+            response = generateErrorResponse(routingContext, e);
+        }
+        sendResponse(routingContext, response);
+    }
+
+    /**
+     * Call the get() or post() method of a route that returns a CompletionStage<Response>, then send the response
+     * once the stage has completed, without blocking the calling thread in the meantime. onComplete is called once
+     * the response has been sent.
+     */
+    private static void handleAsyncRequest(RoutingContext routingContext, ParsedURL reqURL, Route route,
+            Runnable onComplete) {
+        CompletionStage<Response> responseStage;
+        try {
+            responseStage = route.callHandlerAsync(routingContext, reqURL);
+        } catch (Exception e) {
+            CompletableFuture<Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            responseStage = failed;
+        }
+        // The stage is completed on the calling context (see Route.callHandlerAsync())
+        responseStage.whenComplete((response, e) -> {
+            try {
+                sendResponse(routingContext, e == null ? response : generateErrorResponse(routingContext, e));
+            } finally {
+                onComplete.run();
+            }
+        });
+    }
+
+    /** Generate the response for an exception thrown (or a failure returned) by a handler. */
+    private static Response generateErrorResponse(RoutingContext routingContext, Throwable e) {
+        // Convert Exception to InternalServerErrorException if it's not already a ResponseException 
+        ResponseException responseException;
+        if (e instanceof ResponseException) {
+            responseException = (ResponseException) e;
+        } else {
+            responseException = new InternalServerErrorException(e);
+        }
+        try {
+            // Otherwise, use the default response for this error type
+            return responseException.generateErrorResponse(routingContext, siteResources);
+        } catch (Exception e2) {
+            // Generate a generic InternalServerErrorException response if an exception was thrown
+            // while generating a response
+            return new InternalServerErrorException(
+                    "Exception in error handler while handling exception " + e.getMessage(), e2)
+                            .generateErrorResponse(routingContext, siteResources);
+        }
+    }
+
+    /** Shed load by responding immediately with 503, without entering the worker pool. */
+    private static void sendServiceUnavailable(RoutingContext routingContext) {
+        sendResponse(routingContext, new ServiceUnavailableException(GribbitProperties.ADMISSION_RETRY_AFTER_SECONDS)
+                .generateErrorResponse(routingContext, siteResources));
+    }
+
+    private static void sendResponse(RoutingContext routingContext, Response response) {
+        try {
+            // Send response
+            response.send(routingContext);
+
+        } catch (Exception e) {
+            // Failure while sending response, connection was probably closed
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
     /**
      * Start the HTTP server.
      * 
@@ -234,84 +371,64 @@ public class GribbitServer {
         router.route().handler(CookieHandler.create()); // SessionHandler requires CookieHandler
         router.route().handler(SessionHandler.create(store));
 
+        // Read the body of POST requests, up to the max size, so that form params or a JSON object in the body can
+        // be bound to the DataModel parameter of the post() method. File uploads are not bound to anything, so they
+        // are not saved to disk (otherwise they would be written to "file-uploads" and never deleted).
+        router.post().handler(BodyHandler.create() //
+                .setBodyLimit(GribbitProperties.MAX_REQUEST_BODY_BYTES) //
+                .setHandleFileUploads(false));
+
         router.route().handler(routingContext -> {
-            // Execute all requests on worker threads, so that they can block
-            vertx.executeBlocking(future -> {
-                Response response = null;
-                HttpServerRequest request = routingContext.request();
-                ParsedURL reqURL = new ParsedURL(request.uri());
-                try {
-                    // RequestURL reqURL = new RequestURL(request.absoluteURI());  // TODO
-                    boolean isWSUpgrade = false;
-                    //                    if (webSocketHandlers != null) {
-                    //                        for (WebSocketHandler handler : webSocketHandlers) {
-                    //                            if (handler.isWebSocketUpgradeURL(request.absoluteURI())) {
-                    //                                isWSUpgrade = true;
-                    //                                ServerWebSocket websocket = request.upgrade();
-                    //                                throw new RuntimeException("TODO"); // TODO
-                    //                            }
-                    //                        }
-                    //                    }
-                    if (!isWSUpgrade) {
-                        // Try each route in turn
-                        for (Route route : siteResources.getAllRoutes()) {
-                            if (route.matches(reqURL)) {
-                                response = route.callHandler(routingContext, reqURL);
-                                if (response != null) {
-                                    // Stop calling handlers after the first response
-                                    break;
-                                }
-                            }
-                        }
-                        if (response == null) {
-                            // No route matched => 404
-                            response = new NotFoundException().generateErrorResponse(routingContext, siteResources);
-                        }
-                    }
-                } catch (Exception e) {
-                    // Convert Exception to InternalServerErrorException if it's not already a ResponseException 
-                    ResponseException responseException;
-                    if (e instanceof ResponseException) {
-                        responseException = (ResponseException) e;
-                    } else {
-                        responseException = new InternalServerErrorException(e);
-                    }
+            ParsedURL reqURL = new ParsedURL(routingContext.request().uri());
+            // Look up the route with the longest path prefix matching the request URL
+            Route route = siteResources.routeForURL(reqURL);
+
+            if (route != null && route.isAsync(routingContext.request().method())) {
+                // get() and post() methods that return a CompletionStage are called on the event loop, and the
+                // response is sent once the stage completes, so these requests never occupy a worker thread. They
+                // still count towards the admission limits until the response has been sent, so that they can't
+                // pile up without bound under overload.
+                boolean admitted = admissionController.tryAdmit(route, () -> {
                     try {
-                        // Otherwise, use the default response for this error type
-                        response = responseException.generateErrorResponse(routingContext, siteResources);
-                    } catch (Exception e2) {
-                        // Generate a generic InternalServerErrorException response if an exception was thrown
-                        // while generating a response
-                        response = new InternalServerErrorException(
-                                "Exception in error handler while handling exception " + e.getMessage(), e2)
-                                        .generateErrorResponse(routingContext, siteResources);
+                        handleAsyncRequest(routingContext, reqURL, route, () -> admissionController.release(route));
+                    } catch (Exception e) {
+                        admissionController.release(route);
+                        routingContext.fail(e);
                     }
+                });
+                if (!admitted) {
+                    sendServiceUnavailable(routingContext);
                 }
-                try {
-                    // Send response
-                    response.send(routingContext);
 
+            } else if (route != null && route.isNonBlocking()) {
+                // Routes annotated with @NonBlocking are handled directly on the event loop
+                try {
+                    handleRequest(routingContext, reqURL, route);
                 } catch (Exception e) {
-                    // Failure while sending response, connection was probably closed
+                    routingContext.fail(e);
                 }
-                future.complete();
-            },
-                    // From the docs:
-                    // "By default, if executeBlocking is called several times from the same context (e.g. the
-                    // same verticle instance) then the different executeBlocking are executed serially (i.e.
-                    // one after another). If you don’t care about ordering you can call executeBlocking
-                    // specifying false as the argument to ordered. In this case any executeBlocking may be
-                    // executed in parallel on the worker pool."
-                    /* ordered = */ false,
-
-                    //
-                    // Async result handler
-                    res -> {
-                        if (res.failed()) {
-                            // An uncaught exception was thrown from the blocking handler
-                            routingContext.fail(res.cause());
-                        }
-                    });
+
+            } else {
+                // Execute all other requests on worker threads (or virtual threads), so that they can block,
+                // as long as the server is not overloaded
+                boolean admitted = admissionController.tryAdmit(route, () -> {
+                    requestExecutor.executeBlocking(future -> {
+                        handleRequest(routingContext, reqURL, route);
+                        future.complete();
+                    },
+                            // Async result handler
+                            res -> {
+                                admissionController.release(route);
+                                if (res.failed()) {
+                                    // An uncaught exception was thrown from the blocking handler
+                                    routingContext.fail(res.cause());
+                                }
+                            });
+                });
+                if (!admitted) {
+                    sendServiceUnavailable(routingContext);
+                }
+            }
         });
 
         server.requestHandler(router::accept);
@@ -0,0 +1,133 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import gribbit.util.Log;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+/**
+ * Executes blocking request handlers off the event loop, either on the Vert.x worker pool, or each on its own
+ * virtual thread (if supported by the runtime, i.e. JDK 21+). Both modes have the same semantics as
+ * vertx.executeBlocking(blockingHandler, false, resultHandler): handlers may run in parallel in any order, an
+ * uncaught exception thrown by the blocking handler fails the future, and the result handler is called on the
+ * calling context once the future completes.
+ */
+public class RequestExecutor {
+    /** The mode used to execute blocking requests. */
+    public static enum Mode {
+        /** Run blocking requests on the Vert.x worker pool. */
+        WORKER_POOL,
+        /** Run each blocking request on its own virtual thread, falling back to the worker pool if unsupported. */
+        VIRTUAL_THREADS;
+    }
+
+    private final Vertx vertx;
+
+    /** The virtual thread executor, or null if the worker pool is used. */
+    private final ExecutorService virtualThreadExecutor;
+
+    // -----------------------------------------------------------------------------------------------------
+
+    public RequestExecutor(Vertx vertx, Mode mode) {
+        this.vertx = vertx;
+        this.virtualThreadExecutor = mode == Mode.VIRTUAL_THREADS ? newVirtualThreadPerTaskExecutor() : null;
+    }
+
+    /**
+     * Call Executors.newVirtualThreadPerTaskExecutor() via reflection, since Gribbit is compiled for Java 8. Returns
+     * null if virtual threads are not supported by the runtime.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            Log.info("Executing blocking requests on virtual threads");
+            return executor;
+        } catch (Exception e) {
+            Log.warning("Virtual threads are not supported by this JVM (" + System.getProperty("java.version")
+                    + ") -- executing blocking requests on the worker pool instead");
+            return null;
+        }
+    }
+
+    /** Returns true if blocking requests are executed on virtual threads. */
+    public boolean usesVirtualThreads() {
+        return virtualThreadExecutor != null;
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
+    /**
+     * Execute blockingHandler off the event loop, then call resultHandler on the calling context with the result.
+     */
+    public <T> void executeBlocking(Handler<Future<T>> blockingHandler, Handler<AsyncResult<T>> resultHandler) {
+        if (virtualThreadExecutor == null) {
+            vertx.executeBlocking(blockingHandler,
+                    // From the docs:
+                    // "By default, if executeBlocking is called several times from the same context (e.g. the
+                    // same verticle instance) then the different executeBlocking are executed serially (i.e.
+                    // one after another). If you don’t care about ordering you can call executeBlocking
+                    // specifying false as the argument to ordered. In this case any executeBlocking may be
+                    // executed in parallel on the worker pool."
+                    /* ordered = */ false, resultHandler);
+
+        } else {
+            // Deliver the result back on the calling context, as executeBlocking does
+            Context context = vertx.getOrCreateContext();
+            Future<T> future = Future.future();
+            future.setHandler(res -> context.runOnContext(v -> resultHandler.handle(res)));
+            try {
+                virtualThreadExecutor.execute(() -> {
+                    try {
+                        blockingHandler.handle(future);
+                    } catch (Throwable e) {
+                        if (!future.isComplete()) {
+                            future.fail(e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.fail(e);
+            }
+        }
+    }
+
+    /** Stop accepting new requests. Requests that are already executing will run to completion. */
+    public void shutdown() {
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+    }
+}
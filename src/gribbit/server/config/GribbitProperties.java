@@ -28,6 +28,8 @@ package gribbit.server.config;
 import java.util.Properties;
 import java.util.logging.Level;
 
+import gribbit.server.RequestExecutor;
+
 public class GribbitProperties {
 
     private static String propFilename = "gribbit.properties";
@@ -62,14 +64,64 @@ public class GribbitProperties {
     // See https://developers.facebook.com/docs/facebook-login/permissions/v2.3
     public static String OAUTH_FACEBOOK_SCOPE = properties.getProperty("oauth.facebook.scope");
 
+    public static RequestExecutor.Mode REQUEST_EXECUTOR_MODE = PropertyUtils.getPropertyEnum(properties,
+            "request.executor", RequestExecutor.Mode.class, RequestExecutor.Mode.WORKER_POOL);
+
+    // Admission control for requests executed on worker threads: 0 max in-flight requests disables admission
+    // control, -1 max in-flight requests (the default) picks a limit that suits the request executor (see
+    // GribbitServer), and -1 max queued requests allows the queue to grow without bound
+    public static int ADMISSION_MAX_IN_FLIGHT = PropertyUtils.getPropertyInt(properties, "admission.max.inflight",
+            -1);
+    public static int ADMISSION_MAX_QUEUED = PropertyUtils.getPropertyInt(properties, "admission.max.queued", 1024);
+    public static int ADMISSION_RETRY_AFTER_SECONDS = PropertyUtils.getPropertyInt(properties,
+            "admission.retry.after.seconds", 1);
+
+    // Max size of the body of a POST request, e.g. a form submission or a JSON object to bind to a DataModel
+    public static int MAX_REQUEST_BODY_BYTES = PropertyUtils.getPropertyInt(properties, "request.body.max.bytes",
+            1024 * 1024);
+
     public static String DB_NAME = properties.getProperty("dbname", "gribbit");
 
+    // Max total estimated size of the objects cached for DBModel classes annotated with CacheEntity, or 0 to disable
+    public static int ENTITY_CACHE_MAX_BYTES = PropertyUtils.getPropertyInt(properties, "entity.cache.max.bytes",
+            16 * 1024 * 1024);
+
+    // Number of threads used to run the blocking database calls behind the async methods of Database (e.g.
+    // findOneByIdAsync), so that the calls don't tie up worker threads or the event loop, and the max number of
+    // calls that can wait for a thread (-1 = no limit) before further calls fail with 503 Service Unavailable
+    public static int DB_ASYNC_THREADS = PropertyUtils.getPropertyInt(properties, "db.async.threads", 32);
+    public static int DB_ASYNC_MAX_QUEUED = PropertyUtils.getPropertyInt(properties, "db.async.max.queued", 1024);
+
     public static boolean ALLOW_WEBSOCKETS = PropertyUtils.getPropertyBoolean(properties, "websockets.allow", true);
 
     public static boolean PRETTY_PRINT_HTML = PropertyUtils.getPropertyBoolean(properties, "prettyprint.html",
             true);
+    // Stream HTML responses to the client in chunks as they are rendered, rather than rendering the whole page first
+    public static boolean HTML_STREAMING = PropertyUtils.getPropertyBoolean(properties, "html.streaming", false);
+    public static int HTML_STREAMING_CHUNK_SIZE = PropertyUtils.getPropertyInt(properties,
+            "html.streaming.chunk.size", 16384);
+
+    // Max total size of the HTML fragments cached for templates annotated with CacheFragment, or 0 to disable caching
+    public static int FRAGMENT_CACHE_MAX_BYTES = PropertyUtils.getPropertyInt(properties, "fragment.cache.max.bytes",
+            32 * 1024 * 1024);
+
+    // Max total size of the cached output of SanitizedHTML for HTML that had to be parsed, or 0 to disable caching
+    public static int SANITIZED_HTML_CACHE_MAX_BYTES = PropertyUtils.getPropertyInt(properties,
+            "sanitizedhtml.cache.max.bytes", 4 * 1024 * 1024);
+
+    // Report all violated constraint annotations when a DataModel or DBModel is checked, not just the first one
+    public static boolean REPORT_ALL_CONSTRAINT_VIOLATIONS = PropertyUtils.getPropertyBoolean(properties,
+            "constraints.report.all", false);
+
     public static boolean PRETTY_PRINT_JSON = PropertyUtils.getPropertyBoolean(properties, "prettyprint.json",
             true);
+    // Stream JSON responses to the client in chunks as they are rendered, rather than rendering them in one piece
+    public static boolean JSON_STREAMING = PropertyUtils.getPropertyBoolean(properties, "json.streaming", false);
+    public static int JSON_STREAMING_CHUNK_SIZE = PropertyUtils.getPropertyInt(properties,
+            "json.streaming.chunk.size", 16384);
+    // Max time to wait for a client to read a streamed HTML or JSON response before the connection is closed
+    public static int STREAMING_DRAIN_TIMEOUT_SECONDS = PropertyUtils.getPropertyInt(properties,
+            "streaming.drain.timeout.seconds", 30);
 
     public static boolean ALLOW_GET_MODEL = PropertyUtils.getPropertyBoolean(properties, "_getmodel.allow", true);
 }
@@ -31,6 +31,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
@@ -78,6 +79,9 @@ public class CacheExtension {
     /** A concurrent set containing URIs that are currently enqueued to be hashed. */
     private static ConcurrentHashMap<String, Object> scheduledURIsToHash = new ConcurrentHashMap<>();
 
+    /** Incremented whenever a mapping from orig URI to hash URI is added or updated. */
+    private static final AtomicLong hashURIGeneration = new AtomicLong();
+
     // -----------------------------------------------------------------------------------------------------------------
 
     /** Add or update the mapping between orig URI and hash key. */
@@ -97,6 +101,7 @@ public class CacheExtension {
                 // The previous HashInfo object had a newer timestamp, use it instead
                 newHashInfo = oldHashInfo;
             }
+            hashURIGeneration.incrementAndGet();
         }
     }
 
@@ -318,4 +323,12 @@ public class CacheExtension {
             return hashInfo;
         }
     }
+
+    /**
+     * Returns a counter that is incremented whenever a hash URI is added or updated, so that anything derived from
+     * the hash URIs (e.g. cached HTML fragments that contain URLs) can tell when it is out of date.
+     */
+    public static long getHashURIGeneration() {
+        return hashURIGeneration.get();
+    }
 }
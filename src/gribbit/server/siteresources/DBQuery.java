@@ -0,0 +1,167 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server.siteresources;
+
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+
+import com.mongodb.BasicDBObject;
+
+import gribbit.model.DBModel;
+
+/**
+ * A database query whose results are streamed from the database, rather than being read into a list, so that large
+ * result sets never need to be held in memory all at once. Create a query with Database.query() or
+ * Database.queryByIndexedField(), and set the sort order, number of results to skip, max number of results and
+ * batch size before reading the results.
+ * 
+ * Each call to iterator() runs the query and returns a new DBQueryCursor, which must be read to the end or closed.
+ * Since a DBQuery is an Iterable, it can be passed directly to JSONResponse, or (after mapping each result to a
+ * TemplateModel with map()) stored in an Iterable field of a TemplateModel, and the results are then sent or
+ * rendered as they are read from the database.
+ */
+public class DBQuery<T extends DBModel<K>, K> implements Iterable<T> {
+    private final JacksonDBCollection<T, K> coll;
+    private final BasicDBObject query;
+    private BasicDBObject sort;
+    private int skip;
+    private int limit;
+    private int batchSize;
+
+    DBQuery(JacksonDBCollection<T, K> coll, BasicDBObject query) {
+        this.coll = coll;
+        this.query = query;
+    }
+
+    /**
+     * Sort the results by the given field, in ascending or descending order. Can be called more than once to sort
+     * by multiple fields. Sorting on a field that is not indexed requires the database to read all matching objects
+     * before returning the first result.
+     */
+    public DBQuery<T, K> sort(String fieldName, boolean ascending) {
+        if (sort == null) {
+            sort = new BasicDBObject();
+        }
+        sort.put(fieldName.equals("id") ? "_id" : fieldName, ascending ? 1 : -1);
+        return this;
+    }
+
+    /** Skip the given number of results. */
+    public DBQuery<T, K> skip(int numToSkip) {
+        if (numToSkip < 0) {
+            throw new IllegalArgumentException("numToSkip cannot be negative");
+        }
+        this.skip = numToSkip;
+        return this;
+    }
+
+    /** Return at most the given number of results, or all results if maxResults is 0. */
+    public DBQuery<T, K> limit(int maxResults) {
+        if (maxResults < 0) {
+            throw new IllegalArgumentException("maxResults cannot be negative");
+        }
+        this.limit = maxResults;
+        return this;
+    }
+
+    /**
+     * Fetch the given number of results from the database at a time, or use the default batch size of the database
+     * driver if batchSize is 0.
+     */
+    public DBQuery<T, K> batchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize cannot be negative");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** Run the query, and return a cursor over the results. The cursor must be read to the end or closed. */
+    @Override
+    public DBQueryCursor<T> iterator() {
+        DBCursor<T> cursor = coll.find(query);
+        if (sort != null) {
+            cursor.sort(sort);
+        }
+        if (skip > 0) {
+            cursor.skip(skip);
+        }
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        if (batchSize > 0) {
+            cursor.batchSize(batchSize);
+        }
+        return new DBQueryCursor<>(cursor);
+    }
+
+    /**
+     * Returns an Iterable that runs the query and applies the mapper to each result, e.g. to turn each DBModel
+     * object into a TemplateModel for rendering.
+     */
+    public <R> Iterable<R> map(Function<? super T, ? extends R> mapper) {
+        return () -> iterator().map(mapper);
+    }
+
+    /** Run the query, and return a Stream of the results. The Stream must be closed, e.g. using try-with-resources. */
+    public Stream<T> stream() {
+        DBQueryCursor<T> cursor = iterator();
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL),
+                        /* parallel = */false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Run the query, and read all the results into a list. Only use this when the number of results is known to be
+     * small, or limit() has been called.
+     */
+    public ArrayList<T> toList() {
+        ArrayList<T> results = new ArrayList<>();
+        try (DBQueryCursor<T> cursor = iterator()) {
+            while (cursor.hasNext()) {
+                results.add(cursor.next());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the query and read all the results into a list on a database thread (see Database.supplyAsync()), without
+     * blocking the calling thread. The same caveats as for toList() apply.
+     */
+    public CompletionStage<ArrayList<T>> toListAsync() {
+        return Database.supplyAsync(this::toList);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server.siteresources;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.mongojack.DBCursor;
+
+/**
+ * An Iterator over the results of a database query, which fetches results from the database in batches as they
+ * are needed. The underlying database cursor is closed once the last result has been read, or when close() is
+ * called, so a cursor that is not read to the end must be closed. (JSONResponse and template list rendering close
+ * the cursor when they are done with it.)
+ */
+public class DBQueryCursor<T> implements Iterator<T>, AutoCloseable {
+    private final DBCursor<?> cursor;
+    private final Function<Object, ? extends T> mapper;
+    private boolean closed;
+
+    @SuppressWarnings("unchecked")
+    DBQueryCursor(DBCursor<? extends T> cursor) {
+        this(cursor, obj -> (T) obj);
+    }
+
+    private DBQueryCursor(DBCursor<?> cursor, Function<Object, ? extends T> mapper) {
+        this.cursor = cursor;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (!cursor.hasNext()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mapper.apply(cursor.next());
+    }
+
+    /**
+     * Returns a cursor that applies the mapper to each result, e.g. to turn each DBModel object into a TemplateModel
+     * for rendering. The returned cursor reads from, and closes, the same database cursor as this cursor, so this
+     * cursor should not be used after calling map().
+     */
+    public <R> DBQueryCursor<R> map(Function<? super T, ? extends R> mapper) {
+        return new DBQueryCursor<R>(cursor, this.mapper.andThen(mapper));
+    }
+
+    /** Close the underlying database cursor. */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cursor.close();
+        }
+    }
+}
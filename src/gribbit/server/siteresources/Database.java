@@ -29,8 +29,24 @@ import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
@@ -38,14 +54,20 @@ import org.mongojack.MongoCollection;
 import org.mongojack.WriteResult;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
 
 import gribbit.model.DBModel;
 import gribbit.model.DBModelLongKey;
 import gribbit.model.DBModelObjectIdKey;
 import gribbit.model.DBModelStringKey;
+import gribbit.model.annotation.WriteBehind;
 import gribbit.model.field.annotation.DBIndex;
+import gribbit.response.exception.ServiceUnavailableException;
 import gribbit.server.config.GribbitProperties;
 import gribbit.util.Log;
 import gribbit.util.Reflection;
@@ -68,6 +90,38 @@ public class Database {
     @SuppressWarnings("rawtypes")
     private static ConcurrentHashMap<Class<? extends DBModel>, HashSet<String>> dbModelClassToIndexedFieldNames = new ConcurrentHashMap<>();
 
+    /** Cached copies of objects of DBModel classes annotated with CacheEntity. */
+    private static EntityCache entityCache = new EntityCache(GribbitProperties.ENTITY_CACHE_MAX_BYTES);
+
+    /** The write-behind queue for each DBModel class annotated with WriteBehind. */
+    @SuppressWarnings("rawtypes")
+    private static ConcurrentHashMap<Class<? extends DBModel>, WriteBehindQueue> //
+    dbModelClassToWriteBehindQueue = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the blocking MongoDB calls made by the async methods, e.g. findOneByIdAsync(), so that a slow query ties up
+     * one of these threads rather than a worker thread or the event loop. The queue of calls waiting for a thread is
+     * bounded, so that calls are rejected under overload rather than queueing without bound.
+     */
+    private static final ThreadPoolExecutor asyncExecutor;
+    static {
+        int numThreads = Math.max(1, GribbitProperties.DB_ASYNC_THREADS);
+        BlockingQueue<Runnable> queue = GribbitProperties.DB_ASYNC_MAX_QUEUED < 0 ? new LinkedBlockingQueue<>()
+                : new ArrayBlockingQueue<>(Math.max(1, GribbitProperties.DB_ASYNC_MAX_QUEUED));
+        AtomicInteger threadIdx = new AtomicInteger();
+        asyncExecutor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, queue,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "gribbit-db-async-" + threadIdx.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    static {
+        // Write any objects that are still in write-behind queues before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Database::flushWriteBehindQueues, "gribbit-db-shutdown"));
+    }
+
     // ------------------------------------------------------------------------------------------------------------------------------------
 
     public static MongoClient mongoClient = null;
@@ -257,6 +311,16 @@ public class Database {
 
                 // Save the set of indexed fields
                 dbModelClassToIndexedFieldNames.put(dbModelClass, indexedFields);
+
+                // Enable caching if the class is annotated with CacheEntity
+                entityCache.registerClass(dbModelClass);
+
+                // Create a write-behind queue if the class is annotated with WriteBehind
+                WriteBehind writeBehind = dbModelClass.getAnnotation(WriteBehind.class);
+                if (writeBehind != null) {
+                    dbModelClassToWriteBehindQueue.put(dbModelClass,
+                            new WriteBehindQueue(dbModelClass, coll, writeBehind));
+                }
             }
         }
     }
@@ -279,10 +343,20 @@ public class Database {
         return coll;
     }
 
-    /** Find a database object by key. */
+    /**
+     * Find a database object by key. If the class is annotated with CacheEntity, the object is looked up in the
+     * entity cache first, and a copy of the object is returned.
+     */
     public static <T extends DBModel<K>, K> T findOneById(Class<T> dbModelClass, K id) {
         JacksonDBCollection<T, K> coll = collectionForDBModel(dbModelClass);
-        return coll.findOneById(id);
+        @SuppressWarnings("unchecked")
+        T object = entityCache.get(dbModelClass, id, key -> coll.findOneById((K) key));
+        return object;
+    }
+
+    /** Returns the cache of objects of DBModel classes annotated with CacheEntity. */
+    public static EntityCache getEntityCache() {
+        return entityCache;
     }
 
     /** Check that a field exists, that it is accessible, and that it is indexed in the database. */
@@ -327,40 +401,188 @@ public class Database {
         return null;
     }
 
-    /** Find an item by an indexed field's value */
+    /**
+     * Find all items with the given value in an indexed field. NOTE: the entire result set is stored in an
+     * ArrayList and returned -- use queryByIndexedField() to stream the results instead if the result set may be
+     * large.
+     */
     public static <T extends DBModel<K>, K> ArrayList<T> findAllByIndexedField(Class<T> type, String fieldName,
             String fieldValue) {
-        JacksonDBCollection<T, K> coll = collectionForDBModel(type);
-        checkFieldIsIndexed(coll, type, fieldName);
-        ArrayList<T> results = new ArrayList<>();
-        DBCursor<T> cursor = null;
+        return Database.<T, K> queryByIndexedField(type, fieldName, fieldValue).toList();
+    }
+
+    /**
+     * Create a query for the items with the given value in an indexed field. The results are streamed from the
+     * database as they are read from the query, and the sort order, skip, limit and batch size of the query can be
+     * set before reading the results.
+     */
+    public static <T extends DBModel<K>, K> DBQuery<T, K> queryByIndexedField(Class<T> dbModelClass,
+            String fieldName, String fieldValue) {
+        JacksonDBCollection<T, K> coll = collectionForDBModel(dbModelClass);
+        checkFieldIsIndexed(coll, dbModelClass, fieldName);
+        return new DBQuery<>(coll, new BasicDBObject(fieldName, fieldValue));
+    }
+
+    /**
+     * Create a query for all objects in the database of the given type. The results are streamed from the database
+     * as they are read from the query, and the sort order, skip, limit and batch size of the query can be set
+     * before reading the results.
+     */
+    public static <T extends DBModel<K>, K> DBQuery<T, K> query(Class<T> dbModelClass) {
+        JacksonDBCollection<T, K> coll = collectionForDBModel(dbModelClass);
+        return new DBQuery<>(coll, new BasicDBObject());
+    }
+
+    /**
+     * Save (upsert) this object into the database. Any version of the object still waiting in a write-behind queue
+     * is discarded first, so that it can't overwrite this version (see WriteBehind).
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DBModel<K>, K> WriteResult<T, K> save(T object) {
+        List<Consumer<Throwable>> discardedCallbacks = discardPendingWrite(object.getClass(), object.id);
+        WriteResult<T, K> result;
         try {
-            cursor = coll.find(new BasicDBObject(fieldName, fieldValue));
-            while (cursor.hasNext()) {
-                results.add(cursor.next());
+            result = collectionForDBModel(object.getClass()).save(object);
+        } catch (RuntimeException e) {
+            // The object may or may not have been saved
+            entityCache.invalidate(object.getClass(), object.id);
+            WriteBehindQueue.callCallbacks(object.getClass(), discardedCallbacks, e);
+            throw e;
+        }
+        entityCache.update(object.getClass(), object.id, object);
+        // The discarded version of the object has been superseded by this version
+        WriteBehindQueue.callCallbacks(object.getClass(), discardedCallbacks, null);
+        return result;
+    }
+
+    /**
+     * Discard any write of an object that is waiting in the write-behind queue of its class, and wait for any write
+     * of the object that is already in progress, before the object is written or removed synchronously. Returns the
+     * callbacks of the discarded write, or null if there are none.
+     */
+    @SuppressWarnings("rawtypes")
+    private static List<Consumer<Throwable>> discardPendingWrite(Class<? extends DBModel> dbModelClass, Object id) {
+        WriteBehindQueue queue = dbModelClassToWriteBehindQueue.get(dbModelClass);
+        return queue == null || id == null ? null : queue.discard(id);
+    }
+
+    /**
+     * Save (upsert) a collection of objects into the database, using one unordered bulk write per DBModel class, so
+     * that the objects are saved in a few round trips rather than one round trip per object. Each object is prepared
+     * for saving (see DBModel.prepareForSave()) before anything is written.
+     * 
+     * @throws BulkWriteException
+     *             if any of the objects could not be written. Since the writes are unordered, the other objects are
+     *             still written.
+     */
+    @SuppressWarnings("rawtypes")
+    public static <T extends DBModel<?>> void saveAll(Collection<T> objects) {
+        for (T object : objects) {
+            object.prepareForSave();
+        }
+        LinkedHashMap<Class<? extends DBModel>, ArrayList<T>> classToObjects = new LinkedHashMap<>();
+        // The callbacks of writes discarded from write-behind queues, for each class
+        LinkedHashMap<Class<? extends DBModel>, ArrayList<Consumer<Throwable>>> classToDiscardedCallbacks = //
+                new LinkedHashMap<>();
+        for (T object : objects) {
+            ArrayList<T> classObjects = classToObjects.get(object.getClass());
+            if (classObjects == null) {
+                classToObjects.put(object.getClass(), classObjects = new ArrayList<>());
+                classToDiscardedCallbacks.put(object.getClass(), new ArrayList<>());
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            classObjects.add(object);
+            List<Consumer<Throwable>> callbacks = discardPendingWrite(object.getClass(), object.id);
+            if (callbacks != null) {
+                classToDiscardedCallbacks.get(object.getClass()).addAll(callbacks);
+            }
+        }
+        for (Entry<Class<? extends DBModel>, ArrayList<T>> ent : classToObjects.entrySet()) {
+            @SuppressWarnings("unchecked")
+            JacksonDBCollection<T, ?> coll = (JacksonDBCollection<T, ?>) collectionForDBModel(ent.getKey());
+            ArrayList<T> classObjects = ent.getValue();
+            ArrayList<DBObject> dbObjects = new ArrayList<>(classObjects.size());
+            for (T object : classObjects) {
+                dbObjects.add(coll.convertToDbObject(object));
+            }
+            try {
+                bulkUpsert(coll, dbObjects, null);
+            } catch (RuntimeException e) {
+                // Some of the objects may or may not have been saved
+                for (T object : classObjects) {
+                    entityCache.invalidate(object.getClass(), object.id);
+                }
+                // The discarded writes of this class and of any classes that have not been written yet failed
+                classToDiscardedCallbacks.forEach(
+                        (dbModelClass, callbacks) -> WriteBehindQueue.callCallbacks(dbModelClass, callbacks, e));
+                throw e;
+            }
+            for (T object : classObjects) {
+                entityCache.update(object.getClass(), object.id, object);
             }
+            // The discarded writes of this class have been superseded by the objects that were just written
+            WriteBehindQueue.callCallbacks(ent.getKey(), classToDiscardedCallbacks.remove(ent.getKey()), null);
         }
-        return results;
     }
 
     /**
-     * Save (upsert) this object into the database.
+     * Upsert database objects into a collection by id, using an unordered bulk write. Uses the write concern of the
+     * collection if writeConcern is null.
+     */
+    static BulkWriteResult bulkUpsert(JacksonDBCollection<?, ?> coll, List<DBObject> dbObjects,
+            WriteConcern writeConcern) {
+        BulkWriteOperation bulkWrite = coll.getDbCollection().initializeUnorderedBulkOperation();
+        for (DBObject dbObject : dbObjects) {
+            bulkWrite.find(new BasicDBObject("_id", dbObject.get("_id"))).upsert().replaceOne(dbObject);
+        }
+        return writeConcern == null ? bulkWrite.execute() : bulkWrite.execute(writeConcern);
+    }
+
+    /**
+     * Save (upsert) an object into the database in the background, using the write-behind queue of its class, if
+     * the class is annotated with WriteBehind, otherwise save the object immediately. The object is converted into
+     * a database object before this method returns, so it may be modified again straight away. If onWritten is not
+     * null, it is called once the object has been written, with a null argument if the write was acknowledged by the
+     * database, or with the exception that caused the write to fail. The object should already have been prepared
+     * for saving (see DBModel.prepareForSave()).
      */
     @SuppressWarnings("unchecked")
-    public static <T extends DBModel<K>, K> WriteResult<T, K> save(T object) {
-        return collectionForDBModel(object.getClass()).save(object);
+    public static <T extends DBModel<K>, K> void saveLater(T object, Consumer<Throwable> onWritten) {
+        JacksonDBCollection<T, K> coll = (JacksonDBCollection<T, K>) collectionForDBModel(object.getClass());
+        WriteBehindQueue queue = dbModelClassToWriteBehindQueue.get(object.getClass());
+        if (queue == null) {
+            Throwable error = null;
+            try {
+                save(object);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            if (onWritten != null) {
+                onWritten.accept(error);
+            }
+        } else {
+            queue.add(object.id, coll.convertToDbObject(object), onWritten);
+            // Discard any cached copy of the object, since it is out of date
+            entityCache.invalidate(object.getClass(), object.id);
+        }
+    }
+
+    /**
+     * Write all objects in write-behind queues to the database, and wait until they have been written. Called
+     * automatically when the JVM shuts down.
+     */
+    public static void flushWriteBehindQueues() {
+        for (WriteBehindQueue queue : dbModelClassToWriteBehindQueue.values()) {
+            queue.flush();
+        }
     }
 
     /**
-     * Remove this object from the database.
+     * Remove this object from the database. Any version of the object still waiting in a write-behind queue is
+     * discarded first, so that the object is not written back after it has been removed (see WriteBehind).
      */
     @SuppressWarnings("unchecked")
     public static <T extends DBModel<K>, K> WriteResult<T, K> remove(T object) {
-        return collectionForDBModel(object.getClass()).removeById(object.id);
+        return removeById((Class<T>) object.getClass(), object.id);
     }
 
     /**
@@ -370,21 +592,101 @@ public class Database {
      * @return
      */
     public static <T extends DBModel<K>, K> WriteResult<T, K> removeById(Class<T> dbModelClass, K id) {
-        return collectionForDBModel(dbModelClass).removeById(id);
+        List<Consumer<Throwable>> discardedCallbacks = discardPendingWrite(dbModelClass, id);
+        try {
+            return collectionForDBModel(dbModelClass).removeById(id);
+        } finally {
+            entityCache.invalidate(dbModelClass, id);
+            WriteBehindQueue.callCallbacks(dbModelClass, discardedCallbacks,
+                    discardedCallbacks == null ? null : new CancellationException("Object was removed before the "
+                            + "queued write of the object was made"));
+        }
     }
 
     /**
      * Find all objects in the database of the given type. NOTE: the entire result set is stored in an ArrayList and
      * returned -- only when you know the result set is guaranteed to be small, otherwise you expose the server to
-     * an OOM attack.
+     * an OOM attack. Use query() to stream the results instead.
      */
     public static <T extends DBModel<K>, K> ArrayList<T> findAll(Class<T> dbModelClass) {
-        ArrayList<T> results = new ArrayList<>();
-        JacksonDBCollection<T, K> coll = collectionForDBModel(dbModelClass);
-        DBCursor<T> cursor = (DBCursor<T>) coll.find();
-        while (cursor.hasNext()) {
-            results.add(cursor.next());
+        return Database.<T, K> query(dbModelClass).toList();
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
+    /**
+     * Call supplier on one of the database threads, and return a CompletionStage that is completed with the result,
+     * or completed exceptionally with any exception that supplier throws. The MongoDB driver is blocking, so the
+     * async methods don't avoid blocking altogether, but they confine it to a bounded pool of threads that only wait
+     * on the database. Stages returned by these methods are completed on a database thread, so dependent actions
+     * should not block, and should not touch the request or response unless they are run on the Vert.x context
+     * (route handlers can simply return the stage from get() or post()). If all the database threads are busy and
+     * the queue of waiting calls is full, the stage is completed exceptionally with a ServiceUnavailableException.
+     */
+    static <V> CompletionStage<V> supplyAsync(Supplier<V> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, asyncExecutor);
+        } catch (RejectedExecutionException e) {
+            // Shed load, rather than queueing database calls without bound
+            CompletableFuture<V> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(
+                    new ServiceUnavailableException(GribbitProperties.ADMISSION_RETRY_AFTER_SECONDS));
+            return rejected;
         }
-        return results;
+    }
+
+    /** Find a database object by key, without blocking the calling thread. See findOneById(). */
+    public static <T extends DBModel<K>, K> CompletionStage<T> findOneByIdAsync(Class<T> dbModelClass, K id) {
+        return supplyAsync(() -> findOneById(dbModelClass, id));
+    }
+
+    /** Find an item by an indexed field's value, without blocking the calling thread. */
+    public static <T extends DBModel<K>, K> CompletionStage<T> findOneByIndexedFieldAsync(Class<T> dbModelClass,
+            String fieldName, String fieldValue) {
+        return supplyAsync(() -> Database.<T, K> findOneByIndexedField(dbModelClass, fieldName, fieldValue));
+    }
+
+    /**
+     * Find all items with the given value in an indexed field, without blocking the calling thread. See
+     * findAllByIndexedField(), and use queryByIndexedField(...).toListAsync() to sort or limit the results.
+     */
+    public static <T extends DBModel<K>, K> CompletionStage<ArrayList<T>> findAllByIndexedFieldAsync(Class<T> type,
+            String fieldName, String fieldValue) {
+        return supplyAsync(() -> Database.<T, K> findAllByIndexedField(type, fieldName, fieldValue));
+    }
+
+    /** Find all objects in the database of the given type, without blocking the calling thread. See findAll(). */
+    public static <T extends DBModel<K>, K> CompletionStage<ArrayList<T>> findAllAsync(Class<T> dbModelClass) {
+        return supplyAsync(() -> Database.<T, K> findAll(dbModelClass));
+    }
+
+    /**
+     * Save (upsert) this object into the database, without blocking the calling thread. The object should not be
+     * modified until the returned stage has completed.
+     */
+    public static <T extends DBModel<K>, K> CompletionStage<WriteResult<T, K>> saveAsync(T object) {
+        return supplyAsync(() -> save(object));
+    }
+
+    /**
+     * Save (upsert) a collection of objects into the database, without blocking the calling thread. See saveAll().
+     * The objects should not be modified until the returned stage has completed.
+     */
+    public static <T extends DBModel<?>> CompletionStage<Void> saveAllAsync(Collection<T> objects) {
+        return supplyAsync(() -> {
+            saveAll(objects);
+            return null;
+        });
+    }
+
+    /** Remove this object from the database, without blocking the calling thread. */
+    public static <T extends DBModel<K>, K> CompletionStage<WriteResult<T, K>> removeAsync(T object) {
+        return supplyAsync(() -> remove(object));
+    }
+
+    /** Remove the object with the given id from the database, without blocking the calling thread. */
+    public static <T extends DBModel<K>, K> CompletionStage<WriteResult<T, K>> removeByIdAsync(Class<T> dbModelClass,
+            K id) {
+        return supplyAsync(() -> removeById(dbModelClass, id));
     }
 }
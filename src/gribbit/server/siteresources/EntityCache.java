@@ -0,0 +1,488 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server.siteresources;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+
+import gribbit.model.annotation.CacheEntity;
+import gribbit.util.Log;
+import gribbit.util.Reflection;
+
+/**
+ * A bounded in-memory cache of database objects of DBModel subclasses annotated with CacheEntity, keyed by class
+ * and id. The cache is split into segments by key hash to reduce lock contention, and each segment evicts its least
+ * recently used objects once the estimated total size of the objects in the segment exceeds its share of the max
+ * size of the cache.
+ * 
+ * The cache holds a private copy of each object, and a new copy is returned for each lookup, so that modifying an
+ * object returned by the cache (e.g. before saving it) doesn't modify the cached copy. Objects that can't be copied
+ * (e.g. because a field contains an object of an unsupported type) are not cached.
+ */
+public class EntityCache {
+
+    /** The number of segments the cache is split into. */
+    private static final int NUM_SEGMENTS = 16;
+
+    /** The estimated size in bytes of a cache entry, excluding the cached object. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** The max depth of nested objects that will be copied, to guard against cycles. */
+    private static final int MAX_COPY_DEPTH = 64;
+
+    private final long maxSizeBytes;
+    private final Segment[] segments;
+
+    /** The TTL in nanoseconds of each class annotated with CacheEntity, or 0 if objects of the class don't expire. */
+    private final ConcurrentHashMap<Class<?>, Long> classToTTLNanos = new ConcurrentHashMap<>();
+
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+    private final AtomicLong numEvictions = new AtomicLong();
+    private final AtomicLong numExpirations = new AtomicLong();
+
+    /** The non-static fields of each class of object that is copied field by field, including inherited fields. */
+    private static final ClassValue<Field[]> classFields = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> klass) {
+            ArrayList<Field> fields = new ArrayList<>();
+            for (Class<?> c = klass; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields.toArray(new Field[fields.size()]);
+        }
+    };
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** A cache key. */
+    private static class Key {
+        private final Class<?> klass;
+        private final Object id;
+        private final int hashCode;
+
+        Key(Class<?> klass, Object id) {
+            this.klass = klass;
+            this.id = id;
+            this.hashCode = klass.hashCode() * 31 + id.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).klass == klass && ((Key) obj).id.equals(id);
+        }
+    }
+
+    /** A cached copy of an object. */
+    private static class CachedObject {
+        private final Object object;
+        private final long sizeBytes;
+
+        /** The value of System.nanoTime() at which the entry expires, or 0 if the entry doesn't expire. */
+        private final long expiryNanoTime;
+
+        CachedObject(Object object, long sizeBytes, long expiryNanoTime) {
+            this.object = object;
+            this.sizeBytes = sizeBytes;
+            this.expiryNanoTime = expiryNanoTime;
+        }
+
+        boolean hasExpired(long nanoTime) {
+            return expiryNanoTime != 0 && nanoTime - expiryNanoTime >= 0;
+        }
+    }
+
+    /** A segment of the cache, in least recently used order. */
+    @SuppressWarnings("serial")
+    private static class Segment extends LinkedHashMap<Key, CachedObject> {
+        private final long maxSizeBytes;
+        private long sizeBytes;
+
+        /**
+         * Incremented whenever an object in the segment is saved or removed, so that an object that was read from
+         * the database before it was saved or removed doesn't get cached.
+         */
+        private long writeGeneration;
+
+        Segment(long maxSizeBytes) {
+            super(16, 0.75f, /* accessOrder = */true);
+            this.maxSizeBytes = maxSizeBytes;
+        }
+
+        void removeEntry(Key key) {
+            CachedObject cachedObject = remove(key);
+            if (cachedObject != null) {
+                sizeBytes -= cachedObject.sizeBytes;
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Create an entity cache. If maxSizeBytes is 0, nothing is cached. */
+    public EntityCache(long maxSizeBytes) {
+        this.maxSizeBytes = Math.max(0, maxSizeBytes);
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(this.maxSizeBytes / NUM_SEGMENTS);
+        }
+    }
+
+    /** Enable caching for a class if it is annotated with CacheEntity. */
+    public void registerClass(Class<?> klass) {
+        CacheEntity cacheEntity = klass.getAnnotation(CacheEntity.class);
+        if (cacheEntity != null) {
+            if (cacheEntity.ttlSeconds() < 0) {
+                throw new RuntimeException(CacheEntity.class.getName() + " annotation on class " + klass.getName()
+                        + " has a negative TTL");
+            }
+            classToTTLNanos.put(klass, TimeUnit.SECONDS.toNanos(cacheEntity.ttlSeconds()));
+        }
+    }
+
+    /** Returns true if objects of the given class are cached. */
+    public boolean isCached(Class<?> klass) {
+        return maxSizeBytes > 0 && classToTTLNanos.containsKey(klass);
+    }
+
+    private Segment segmentFor(Key key) {
+        // Spread the high bits of the hash code into the bits used to select the segment
+        int h = key.hashCode;
+        return segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+     * Get a copy of the object of the given class with the given id. If the object is not in the cache, it is
+     * loaded by calling loader, and a copy of it is cached if it is not null.
+     */
+    public <T> T get(Class<T> klass, Object id, Function<Object, T> loader) {
+        if (id == null || !isCached(klass)) {
+            return loader.apply(id);
+        }
+        Key key = new Key(klass, id);
+        Segment segment = segmentFor(key);
+        CachedObject cachedObject;
+        long writeGeneration;
+        synchronized (segment) {
+            cachedObject = segment.get(key);
+            if (cachedObject != null && cachedObject.hasExpired(System.nanoTime())) {
+                segment.removeEntry(key);
+                numExpirations.incrementAndGet();
+                cachedObject = null;
+            }
+            writeGeneration = segment.writeGeneration;
+        }
+        if (cachedObject != null) {
+            numHits.incrementAndGet();
+            // Copy the object outside the lock
+            @SuppressWarnings("unchecked")
+            T copy = (T) new Copier().copy(cachedObject.object, 0);
+            return copy;
+        }
+        numMisses.incrementAndGet();
+        T object = loader.apply(id);
+        if (object != null) {
+            store(key, object, writeGeneration);
+        }
+        return object;
+    }
+
+    /** Update the cached copy of an object once it has been saved to the database. */
+    public void update(Class<?> klass, Object id, Object object) {
+        if (id != null && isCached(klass)) {
+            Key key = new Key(klass, id);
+            Segment segment = segmentFor(key);
+            long writeGeneration;
+            synchronized (segment) {
+                writeGeneration = ++segment.writeGeneration;
+            }
+            store(key, object, writeGeneration);
+        }
+    }
+
+    /** Remove the cached copy of an object, e.g. once it has been removed from the database. */
+    public void invalidate(Class<?> klass, Object id) {
+        if (id != null && isCached(klass)) {
+            Key key = new Key(klass, id);
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                segment.writeGeneration++;
+                segment.removeEntry(key);
+            }
+        }
+    }
+
+    /**
+     * Cache a copy of an object, unless an object in the same segment has been saved or removed since
+     * writeGeneration was read.
+     */
+    private void store(Key key, Object object, long writeGeneration) {
+        Segment segment = segmentFor(key);
+        Copier copier = new Copier();
+        Object copy;
+        try {
+            copy = copier.copy(object, 0);
+        } catch (IllegalArgumentException e) {
+            Log.fine("Not caching object of class " + key.klass.getName() + ": " + e.getMessage());
+            invalidate(key.klass, key.id);
+            return;
+        }
+        long sizeBytes = ENTRY_OVERHEAD_BYTES + copier.sizeBytes;
+        long ttlNanos = classToTTLNanos.get(key.klass);
+        long expiryNanoTime = 0;
+        if (ttlNanos > 0) {
+            expiryNanoTime = System.nanoTime() + ttlNanos;
+            if (expiryNanoTime == 0) {
+                expiryNanoTime = 1;
+            }
+        }
+        synchronized (segment) {
+            if (segment.writeGeneration != writeGeneration) {
+                // The object was saved or removed while it was being read or copied -- discard any cached copy,
+                // since it may be stale
+                segment.removeEntry(key);
+                return;
+            }
+            segment.removeEntry(key);
+            if (sizeBytes > segment.maxSizeBytes) {
+                // Object is too large to cache
+                return;
+            }
+            segment.put(key, new CachedObject(copy, sizeBytes, expiryNanoTime));
+            segment.sizeBytes += sizeBytes;
+            // Evict least recently used objects until the segment fits within its max size
+            for (Iterator<CachedObject> iter = segment.values().iterator(); segment.sizeBytes > segment.maxSizeBytes;) {
+                segment.sizeBytes -= iter.next().sizeBytes;
+                iter.remove();
+                numEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Remove all objects from the cache. */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.writeGeneration++;
+                segment.clear();
+                segment.sizeBytes = 0;
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Makes deep copies of objects, and estimates the size of the objects that were copied. */
+    private static class Copier {
+        private long sizeBytes;
+
+        private static boolean isImmutable(Object object) {
+            Class<?> klass = object.getClass();
+            return klass == Integer.class || klass == Long.class || klass == Short.class || klass == Byte.class
+                    || klass == Character.class || klass == Boolean.class || klass == Float.class
+                    || klass == Double.class || klass == BigInteger.class || klass == BigDecimal.class
+                    || klass == ObjectId.class || klass == UUID.class || object instanceof Enum
+                    || klass.getName().startsWith("java.time.");
+        }
+
+        @SuppressWarnings("unchecked")
+        Object copy(Object object, int depth) {
+            if (object == null) {
+                return null;
+            }
+            if (depth > MAX_COPY_DEPTH) {
+                throw new IllegalArgumentException("objects are nested too deeply");
+            }
+            if (object instanceof String) {
+                sizeBytes += 40 + ((String) object).length() * 2;
+                return object;
+            }
+            if (isImmutable(object)) {
+                sizeBytes += 24;
+                return object;
+            }
+            Class<?> klass = object.getClass();
+            if (klass.isArray()) {
+                int length = Array.getLength(object);
+                Object arrayCopy = Array.newInstance(klass.getComponentType(), length);
+                sizeBytes += 16 + length * 8L;
+                if (klass.getComponentType().isPrimitive()) {
+                    System.arraycopy(object, 0, arrayCopy, 0, length);
+                } else {
+                    Object[] array = (Object[]) object, copy = (Object[]) arrayCopy;
+                    for (int i = 0; i < length; i++) {
+                        copy[i] = copy(array[i], depth + 1);
+                    }
+                }
+                return arrayCopy;
+            }
+            if (object instanceof Date) {
+                sizeBytes += 24;
+                return ((Date) object).clone();
+            }
+            if (object instanceof Collection) {
+                Collection<?> collection = (Collection<?>) object;
+                Collection<Object> copy = object instanceof SortedSet
+                        ? new TreeSet<>(((SortedSet<Object>) object).comparator())
+                        : object instanceof LinkedHashSet ? new LinkedHashSet<>()
+                                : object instanceof HashSet ? new HashSet<>()
+                                        : object instanceof LinkedList ? new LinkedList<>()
+                                                : new ArrayList<>(collection.size());
+                sizeBytes += 48 + collection.size() * 32L;
+                for (Object elt : collection) {
+                    copy.add(copy(elt, depth + 1));
+                }
+                return copy;
+            }
+            if (object instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) object;
+                Map<Object, Object> copy = object instanceof SortedMap
+                        ? new TreeMap<>(((SortedMap<Object, Object>) object).comparator())
+                        : object instanceof LinkedHashMap ? new LinkedHashMap<>() : new HashMap<>();
+                sizeBytes += 64 + map.size() * 48L;
+                for (Entry<?, ?> ent : map.entrySet()) {
+                    copy.put(copy(ent.getKey(), depth + 1), copy(ent.getValue(), depth + 1));
+                }
+                return copy;
+            }
+            String className = klass.getName();
+            if (className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.")) {
+                throw new IllegalArgumentException("can't copy object of type " + className);
+            }
+            // Copy other objects field by field
+            Object copy;
+            try {
+                copy = Reflection.instantiateWithDefaultConstructor(klass);
+            } catch (InstantiationException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            Field[] fields = classFields.get(klass);
+            sizeBytes += 16 + fields.length * 8L;
+            for (Field field : fields) {
+                try {
+                    if (field.getType().isPrimitive()) {
+                        field.set(copy, field.get(object));
+                    } else {
+                        field.set(copy, copy(field.get(object), depth + 1));
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("can't copy field " + className + "." + field.getName());
+                }
+            }
+            return copy;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Returns the number of lookups of objects of cached classes that were served from the cache. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Returns the number of lookups of objects of cached classes that had to query the database. */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    /** Returns the fraction of lookups of objects of cached classes that were served from the cache. */
+    public double getHitRate() {
+        long hits = numHits.get(), total = hits + numMisses.get();
+        return total == 0 ? 0.0 : hits / (double) total;
+    }
+
+    /** Returns the number of objects evicted from the cache to make room for other objects. */
+    public long getNumEvictions() {
+        return numEvictions.get();
+    }
+
+    /** Returns the number of objects removed from the cache because their TTL had expired. */
+    public long getNumExpirations() {
+        return numExpirations.get();
+    }
+
+    /** Returns the number of objects in the cache. */
+    public int getNumEntries() {
+        int numEntries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                numEntries += segment.size();
+            }
+        }
+        return numEntries;
+    }
+
+    /** Returns the estimated size of the cache in bytes. */
+    public long getSizeBytes() {
+        long sizeBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                sizeBytes += segment.sizeBytes;
+            }
+        }
+        return sizeBytes;
+    }
+
+    /** Returns the max size of the cache in bytes. */
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+}
@@ -31,18 +31,22 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.jsoup.nodes.Node;
-
+import gribbit.model.CompiledTemplate;
 import gribbit.model.DBModel;
 import gribbit.model.DBModelStringKey;
 import gribbit.model.DataModel;
+import gribbit.model.FragmentCache;
 import gribbit.model.TemplateModel;
 import gribbit.model.util.FieldChecker;
+import gribbit.model.util.FormBinder;
+import gribbit.route.ParsedURL;
 import gribbit.route.Route;
 import gribbit.route.RouteHandler;
 import gribbit.route.RouteMapping;
 import gribbit.server.GribbitServer;
+import gribbit.server.config.GribbitProperties;
 import gribbit.util.thirdparty.UTF8;
 import gribbit.util.thirdparty.UTF8.UTF8Exception;
 import io.github.lukehutch.fastclasspathscanner.FastClasspathScanner;
@@ -60,6 +64,12 @@ public class SiteResources {
 
     private FieldChecker fieldChecker = new FieldChecker();
 
+    /** Binders for POST requests, created when each DataModel class is registered. */
+    private final ConcurrentHashMap<Class<? extends DataModel>, FormBinder> formBinders = new ConcurrentHashMap<>();
+
+    /** Rendered HTML of templates annotated with CacheFragment. Discarded along with the templates on reload. */
+    private final FragmentCache fragmentCache = new FragmentCache(GribbitProperties.FRAGMENT_CACHE_MAX_BYTES);
+
     private long resourcesLoadedEpochSeconds;
 
     public static int CLASSPATH_CHANGE_DETECTION_POLL_INTERVAL_MS = 5000;
@@ -70,6 +80,13 @@ public class SiteResources {
         return routeMapping.getAllRoutes();
     }
 
+    /**
+     * Get the Route that handles the given request URL, or null if no route matches.
+     */
+    public Route routeForURL(ParsedURL reqURL) {
+        return routeMapping.routeForURL(reqURL);
+    }
+
     public Route getInternalServerErrorRoute() {
         return routeMapping.getInternalServerErrorRoute();
     }
@@ -114,11 +131,16 @@ public class SiteResources {
     // -----------------------------------------------------------------------------------------------------
 
     /**
-     * Get the HTML template document for a given template class, or return null if there isn't a template with the
+     * Get the compiled HTML template for a given template class, or return null if there isn't a template with the
      * given name.
      */
-    public List<Node> getTemplateForClass(Class<? extends TemplateModel> templateClass) {
-        return templateModelLoader.getTemplateNodes(templateClass);
+    public CompiledTemplate getCompiledTemplate(Class<? extends TemplateModel> templateClass) {
+        return templateModelLoader.getCompiledTemplate(templateClass);
+    }
+
+    /** Get the cache of rendered HTML fragments for templates annotated with CacheFragment. */
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
     }
 
     public long getResourcesLoadedEpochSeconds() {
@@ -150,10 +172,39 @@ public class SiteResources {
 
     /**
      * Check the fields of a DataModel or DBModel object against any field constraint annotations (e.g. Required or
-     * MinLength).
+     * MinLength). Throws a RuntimeException describing the first violated constraint, or, if the property
+     * constraints.report.all is true, describing all violated constraints.
      */
     public void checkFieldValuesAgainstConstraintAnnotations(Object object) {
-        fieldChecker.checkFieldValuesAgainstConstraintAnnotations(object);
+        if (GribbitProperties.REPORT_ALL_CONSTRAINT_VIOLATIONS) {
+            List<String> violations = fieldChecker.getConstraintViolations(object);
+            if (!violations.isEmpty()) {
+                throw new RuntimeException(String.join("; ", violations));
+            }
+        } else {
+            fieldChecker.checkFieldValuesAgainstConstraintAnnotations(object);
+        }
+    }
+
+    /**
+     * Check all fields of a DataModel or DBModel object against any field constraint annotations, and return a
+     * description of each violated constraint, or an empty list if all constraints are satisfied.
+     */
+    public List<String> getConstraintViolations(Object object) {
+        return fieldChecker.getConstraintViolations(object);
+    }
+
+    /**
+     * Get the binder for POST requests for a DataModel class. The binder is normally created when the class is
+     * found by the classpath scanner, but is created here if needed (e.g. for a DataModel that is not in a scanned
+     * package).
+     */
+    public FormBinder getFormBinder(Class<? extends DataModel> dataModelClass) {
+        FormBinder formBinder = formBinders.get(dataModelClass);
+        if (formBinder == null) {
+            formBinder = formBinders.computeIfAbsent(dataModelClass, FormBinder::new);
+        }
+        return formBinder;
     }
 
     // -----------------------------------------------------------------------------------------------------
@@ -212,6 +263,9 @@ public class SiteResources {
                     public void processMatch(Class<? extends DataModel> matchingClass) {
                         // Check annotations match field types
                         fieldChecker.registerClassForConstraintChecking(matchingClass);
+
+                        // Precompile the binder for POST requests
+                        formBinders.put(matchingClass, new FormBinder(matchingClass));
                     }
                 })
                 //
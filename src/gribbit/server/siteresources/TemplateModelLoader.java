@@ -50,6 +50,7 @@ import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
 
 import gribbit.auth.CSRF;
+import gribbit.model.CompiledTemplate;
 import gribbit.model.DataModel;
 import gribbit.model.TemplateModel;
 import gribbit.model.field.annotation.Email;
@@ -87,7 +88,7 @@ class TemplateModelLoader {
 
     private HashMap<Class<? extends TemplateModel>, Document> templateClassToDoc = new HashMap<>();
 
-    private HashMap<Class<? extends TemplateModel>, List<Node>> templateClassToTemplateNodes = new HashMap<>();
+    private HashMap<Class<? extends TemplateModel>, CompiledTemplate> templateClassToCompiledTemplate = new HashMap<>();
 
     // private HashMap<Class<?>, ArrayList<Field>> templateClassToFields = new HashMap<>();
 
@@ -129,11 +130,10 @@ class TemplateModelLoader {
     }
 
     /**
-     * Return the template corresponding to the given template class as a list of nodes, or null if it doesn't
-     * exist.
+     * Return the compiled template corresponding to the given template class, or null if it doesn't exist.
      */
-    List<Node> getTemplateNodes(Class<? extends TemplateModel> templateClass) {
-        return templateClassToTemplateNodes.get(templateClass);
+    CompiledTemplate getCompiledTemplate(Class<? extends TemplateModel> templateClass) {
+        return templateClassToCompiledTemplate.get(templateClass);
     }
 
     //    /** Return the template corresponding to the given template class as a list of nodes, or null if it doesn't exist. */
@@ -807,25 +807,27 @@ class TemplateModelLoader {
                                 + "the template, and attribute values cannot accept HTML.");
                     }
 
-                } else if (List.class.isAssignableFrom(fieldType)) {
-                    // Lists can only have element type <? extends TemplateModel>
+                } else if (Iterable.class.isAssignableFrom(fieldType)) {
+                    // Lists and other Iterables (e.g. database query results) can only have element type
+                    // <? extends TemplateModel>
 
                     Class<?> listEltClass = null;
                     try {
                         ParameterizedType fieldGenericType = (ParameterizedType) field.getGenericType();
                         Type typeArgument0 = fieldGenericType.getActualTypeArguments()[0];
                         if (typeArgument0 instanceof WildcardType) {
-                            // List<? extends ListEltClass>
+                            // Iterable<? extends ListEltClass>
                             listEltClass = (Class<?>) (((WildcardType) typeArgument0).getUpperBounds()[0]);
                         } else {
-                            // List<ListEltClass>
+                            // Iterable<ListEltClass>
                             listEltClass = (Class<?>) typeArgument0;
                         }
                     } catch (Exception e) {
                     }
                     if (listEltClass == null || !TemplateModel.class.isAssignableFrom(listEltClass)) {
                         throw new RuntimeException("Type of " + templateClass.getName() + "." + fieldName
-                                + " should extend List<? extends " + TemplateModel.class.getSimpleName() + ">");
+                                + " should extend List<? extends " + TemplateModel.class.getSimpleName()
+                                + "> or Iterable<? extends " + TemplateModel.class.getSimpleName() + ">");
                     }
                     if (paramsInAttrVals.contains(fieldName)) {
                         // Nested lists of template parameters can be rendered into text, but not attribute vals
@@ -893,7 +895,7 @@ class TemplateModelLoader {
             }
 
             // ---------------------------------------------------------------------------------------------------------
-            // Add head and tail content to any whole-page HTML templates, and extract DOM nodes from template
+            // Add head and tail content to any whole-page HTML templates, and compile the DOM nodes of the template
             // ---------------------------------------------------------------------------------------------------------
 
             List<Node> templateNodes;
@@ -909,7 +911,9 @@ class TemplateModelLoader {
                 // For an HTML fragment, use only the child nodes of the body element
                 templateNodes = templateDoc.body().childNodes();
             }
-            templateClassToTemplateNodes.put(templateClass, templateNodes);
+            // Compile the template into a render program, so the DOM doesn't need to be traversed on each render
+            templateClassToCompiledTemplate.put(templateClass,
+                    CompiledTemplate.compile(templateClass, templateNodes));
 
             // Render the template nodes into a string, for use with clientside template rendering.
             // TODO: This is not used yet.
@@ -919,6 +923,10 @@ class TemplateModelLoader {
             }
             templateClassNameToTemplateStr.put(templateClass.getName(), buf.toString());
         }
+
+        // The template DOMs are no longer needed once the templates have been compiled
+        templateClassToDoc.clear();
+        wholePageTemplateDocs.clear();
     }
 
     // -----------------------------------------------------------------------------------------------------
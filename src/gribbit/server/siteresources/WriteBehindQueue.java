@@ -0,0 +1,254 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.server.siteresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.mongojack.JacksonDBCollection;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import gribbit.model.annotation.WriteBehind;
+import gribbit.util.Log;
+
+/**
+ * A write-behind queue for a DBModel class annotated with WriteBehind. Objects are converted into database objects
+ * when they are added to the queue, and are written to the database in the background in unordered bulk writes.
+ * Adding an object whose id is already in the queue replaces the queued version of the object.
+ * 
+ * All writes of all queues are made by a single background thread, so that two batches containing the same object
+ * are written in the order they were queued. Synchronous writes and removals of an object call discard() first, so
+ * that an older queued version of the object can't overwrite them.
+ */
+class WriteBehindQueue {
+    private final Class<?> dbModelClass;
+    private final JacksonDBCollection<?, ?> coll;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final WriteConcern writeConcern;
+
+    /** The objects waiting to be written, indexed by id, in the order they were first queued. */
+    private LinkedHashMap<Object, PendingWrite> pendingWrites = new LinkedHashMap<>();
+
+    /** True if a timed flush has been scheduled. */
+    private boolean flushScheduled;
+
+    /** Batches that have been taken from the queue, but that have not yet been written. */
+    private final Set<LinkedHashMap<Object, PendingWrite>> batchesInFlight = //
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gribbit-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The latest version of a queued object, and the callbacks to call once it has been written. */
+    private static class PendingWrite {
+        private DBObject dbObject;
+        private ArrayList<Consumer<Throwable>> callbacks;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    WriteBehindQueue(Class<?> dbModelClass, JacksonDBCollection<?, ?> coll, WriteBehind writeBehind) {
+        if (writeBehind.maxBatchSize() <= 0 || writeBehind.maxDelayMillis() < 0) {
+            throw new RuntimeException(WriteBehind.class.getName() + " annotation on class "
+                    + dbModelClass.getName() + " must have a positive maxBatchSize and a non-negative maxDelayMillis");
+        }
+        this.dbModelClass = dbModelClass;
+        this.coll = coll;
+        this.maxBatchSize = writeBehind.maxBatchSize();
+        this.maxDelayMillis = writeBehind.maxDelayMillis();
+        this.writeConcern = writeBehind.journaled() ? WriteConcern.JOURNALED : WriteConcern.ACKNOWLEDGED;
+    }
+
+    /** Queue a database object with the given id to be written. */
+    void add(Object id, DBObject dbObject, Consumer<Throwable> onWritten) {
+        LinkedHashMap<Object, PendingWrite> batch = null;
+        synchronized (this) {
+            PendingWrite pendingWrite = pendingWrites.get(id);
+            if (pendingWrite == null) {
+                pendingWrites.put(id, pendingWrite = new PendingWrite());
+            }
+            pendingWrite.dbObject = dbObject;
+            if (onWritten != null) {
+                if (pendingWrite.callbacks == null) {
+                    pendingWrite.callbacks = new ArrayList<>(1);
+                }
+                pendingWrite.callbacks.add(onWritten);
+            }
+            if (pendingWrites.size() >= maxBatchSize) {
+                batch = takeBatch();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(() -> {
+                    LinkedHashMap<Object, PendingWrite> timedBatch;
+                    synchronized (this) {
+                        flushScheduled = false;
+                        timedBatch = takeBatch();
+                    }
+                    write(timedBatch);
+                }, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            LinkedHashMap<Object, PendingWrite> fullBatch = batch;
+            writer.execute(() -> write(fullBatch));
+        }
+    }
+
+    /** Take the queued objects. Must be called while holding the lock. */
+    private LinkedHashMap<Object, PendingWrite> takeBatch() {
+        LinkedHashMap<Object, PendingWrite> batch = pendingWrites;
+        pendingWrites = new LinkedHashMap<>();
+        if (!batch.isEmpty()) {
+            batchesInFlight.add(batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Discard any queued write of the object with the given id, and wait until any batch containing the object that
+     * has already been taken from the queue has been written, so that the object can then be written or removed
+     * synchronously without being overwritten by an older queued version. Returns the callbacks of the discarded
+     * write, or null if there are none.
+     */
+    ArrayList<Consumer<Throwable>> discard(Object id) {
+        synchronized (this) {
+            PendingWrite pendingWrite = pendingWrites.remove(id);
+            boolean interrupted = false;
+            while (isInFlight(id)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return pendingWrite == null ? null : pendingWrite.callbacks;
+        }
+    }
+
+    /** Returns true if a batch that is being written contains the given id. Must be called while holding the lock. */
+    private boolean isInFlight(Object id) {
+        for (LinkedHashMap<Object, PendingWrite> batch : batchesInFlight) {
+            if (batch.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Write all queued objects to the database, and wait until they have been written. */
+    void flush() {
+        try {
+            writer.submit(() -> {
+                LinkedHashMap<Object, PendingWrite> batch;
+                synchronized (this) {
+                    batch = takeBatch();
+                }
+                write(batch);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.exception("Could not flush write-behind queue for " + dbModelClass.getName(), e);
+        }
+    }
+
+    /** Write a batch of objects to the database, then call the callbacks. Runs on the writer thread. */
+    private void write(LinkedHashMap<Object, PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ArrayList<DBObject> dbObjects = new ArrayList<>(batch.size());
+        for (PendingWrite pendingWrite : batch.values()) {
+            dbObjects.add(pendingWrite.dbObject);
+        }
+        Throwable[] errors = new Throwable[dbObjects.size()];
+        try {
+            Database.bulkUpsert(coll, dbObjects, writeConcern);
+        } catch (BulkWriteException e) {
+            List<BulkWriteError> writeErrors = e.getWriteErrors();
+            if (writeErrors == null || writeErrors.isEmpty()) {
+                // The write concern could not be satisfied, so none of the writes can be assumed to be durable
+                Arrays.fill(errors, e);
+            } else {
+                // Only the objects with write errors failed to be written
+                for (BulkWriteError writeError : writeErrors) {
+                    errors[writeError.getIndex()] = e;
+                }
+            }
+            Log.warning("Write-behind bulk write for " + dbModelClass.getName() + " failed: " + e.getMessage());
+        } catch (Exception e) {
+            Arrays.fill(errors, e);
+            Log.exception("Write-behind bulk write for " + dbModelClass.getName() + " failed", e);
+        } finally {
+            // Wake up any threads in discard() that are waiting for this batch to be written
+            synchronized (this) {
+                batchesInFlight.remove(batch);
+                notifyAll();
+            }
+        }
+        int i = 0;
+        for (Object id : batch.keySet()) {
+            // Discard any cached copy of the object that was read before the write
+            Database.getEntityCache().invalidate(dbModelClass, id);
+            callCallbacks(dbModelClass, batch.get(id).callbacks, errors[i]);
+            i++;
+        }
+    }
+
+    /** Call the callbacks of a write, if there are any, with the exception that caused the write to fail, or null. */
+    static void callCallbacks(Class<?> dbModelClass, List<Consumer<Throwable>> callbacks, Throwable error) {
+        if (callbacks != null) {
+            for (Consumer<Throwable> callback : callbacks) {
+                try {
+                    callback.accept(error);
+                } catch (Exception e) {
+                    Log.exception("Exception in write-behind callback for " + dbModelClass.getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -25,10 +25,14 @@
  */
 package gribbit.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -37,217 +41,364 @@ import gribbit.model.util.FieldChecker;
 import gribbit.server.config.GribbitProperties;
 
 public class JSON {
+
+    /** The kind of JSON value that objects of a given class are rendered as. */
+    private static enum Kind {
+        STRING, NUMBER_OR_BOOLEAN, BYTE, CHARACTER, ARRAY, LIST, ITERABLE, MAP, OBJECT;
+    }
+
+    /** The kind of value that a field is rendered as. Primitive fields are read without boxing. */
+    private static enum FieldKind {
+        INT, BOOLEAN, LONG, FLOAT, DOUBLE, SHORT, BYTE, CHAR, OBJECT;
+    }
+
+    /** The kind of each primitive field type. Fields of any other type are FieldKind.OBJECT. */
+    private static final IdentityHashMap<Class<?>, FieldKind> PRIMITIVE_FIELD_KIND = new IdentityHashMap<>();
+
+    static {
+        PRIMITIVE_FIELD_KIND.put(Integer.TYPE, FieldKind.INT);
+        PRIMITIVE_FIELD_KIND.put(Boolean.TYPE, FieldKind.BOOLEAN);
+        PRIMITIVE_FIELD_KIND.put(Long.TYPE, FieldKind.LONG);
+        PRIMITIVE_FIELD_KIND.put(Float.TYPE, FieldKind.FLOAT);
+        PRIMITIVE_FIELD_KIND.put(Double.TYPE, FieldKind.DOUBLE);
+        PRIMITIVE_FIELD_KIND.put(Short.TYPE, FieldKind.SHORT);
+        PRIMITIVE_FIELD_KIND.put(Byte.TYPE, FieldKind.BYTE);
+        PRIMITIVE_FIELD_KIND.put(Character.TYPE, FieldKind.CHAR);
+    }
+
+    /** A field of a class that can be sent to the user, with its JSON key pre-escaped. */
+    private static class FieldPlan {
+        private final FieldKind kind;
+
+        /** The getter for the field, of type (Object) -> fieldType, or (Object) -> Object for non-primitives. */
+        private final MethodHandle getter;
+
+        /** The quoted, escaped field name, followed by ":" (or " : " if prettyprinting). */
+        private final String key;
+        private final String keyPrettyPrint;
+
+        FieldPlan(Field field) {
+            Class<?> fieldType = field.getType();
+            FieldKind primitiveKind = PRIMITIVE_FIELD_KIND.get(fieldType);
+            this.kind = primitiveKind != null ? primitiveKind : FieldKind.OBJECT;
+            try {
+                this.getter = MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(
+                        kind == FieldKind.OBJECT ? Object.class : fieldType, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not render object into JSON", e);
+            }
+            StringBuilder buf = new StringBuilder();
+            buf.append('"');
+            WebUtils.escapeJSONString(field.getName(), buf);
+            this.key = buf.toString() + "\":";
+            this.keyPrettyPrint = buf.toString() + "\" : ";
+        }
+
+        /** Render the value of the field. */
+        void render(Object obj, boolean prettyPrint, int depth, StringBuilder buf, JSONWriter writer)
+                throws Throwable {
+            // Turn primitive types into strings
+            switch (kind) {
+            case INT:
+                buf.append(Integer.toString((int) getter.invokeExact(obj)));
+                break;
+            case BOOLEAN:
+                buf.append(Boolean.toString((boolean) getter.invokeExact(obj)));
+                break;
+            case LONG:
+                buf.append(Long.toString((long) getter.invokeExact(obj)));
+                break;
+            case FLOAT:
+                buf.append(Float.toString((float) getter.invokeExact(obj)));
+                break;
+            case DOUBLE:
+                buf.append(Double.toString((double) getter.invokeExact(obj)));
+                break;
+            case SHORT:
+                buf.append(Short.toString((short) getter.invokeExact(obj)));
+                break;
+            case BYTE:
+                buf.append(Integer.toString((int) (byte) getter.invokeExact(obj)));
+                break;
+            case CHAR:
+                buf.append('"');
+                WebUtils.escapeJSONString(Character.toString((char) getter.invokeExact(obj)), buf);
+                buf.append('"');
+                break;
+            default:
+                // Not a primitive type; recursively render value
+                toJSONRec((Object) getter.invokeExact(obj), prettyPrint, depth + 1, buf, writer);
+                break;
+            }
+        }
+    }
+
+    /**
+     * How to render objects of a given class, worked out the first time an object of the class is rendered, so
+     * that the class doesn't need to be introspected (and its fields checked for privacy) for every object.
+     */
+    private static class ClassPlan {
+        private final Kind kind;
+
+        /** For Kind.OBJECT, the fields that are rendered. */
+        private final FieldPlan[] fields;
+
+        ClassPlan(Class<?> klass) {
+            if (klass == String.class) {
+                kind = Kind.STRING;
+            } else if (klass == Integer.class || klass == Boolean.class || klass == Long.class
+                    || klass == Float.class || klass == Double.class || klass == Short.class) {
+                kind = Kind.NUMBER_OR_BOOLEAN;
+            } else if (klass == Byte.class) {
+                kind = Kind.BYTE;
+            } else if (klass == Character.class) {
+                kind = Kind.CHARACTER;
+            } else if (klass.isArray()) {
+                kind = Kind.ARRAY;
+            } else if (List.class.isAssignableFrom(klass)) {
+                kind = Kind.LIST;
+            } else if (Iterable.class.isAssignableFrom(klass)) {
+                kind = Kind.ITERABLE;
+            } else if (Map.class.isAssignableFrom(klass)) {
+                kind = Kind.MAP;
+            } else {
+                kind = Kind.OBJECT;
+            }
+            if (kind == Kind.OBJECT) {
+                ArrayList<FieldPlan> fieldsToInclude = new ArrayList<>();
+                for (Field field : klass.getFields()) {
+                    // DataModel fields annotated with @Private or @OnlyReceive and
+                    // DBModel id fields cannot be sent to the user
+                    if (!FieldChecker.fieldIsPrivate(field, /* checkGet = */true, /* checkSet = */false)) {
+                        // In case class is not itself public, need to call setAccessible(true)
+                        // FIXME: Need to do the same everywhere else we get fields, or
+                        // FIXME: alternatively catch IllegalAccessException and tell the user
+                        // FIXME: that the class needs to be public.
+                        field.setAccessible(true);
+                        fieldsToInclude.add(new FieldPlan(field));
+                    }
+                }
+                fields = fieldsToInclude.toArray(new FieldPlan[fieldsToInclude.size()]);
+            } else {
+                fields = null;
+            }
+        }
+    }
+
+    /** The render plan for each class. */
+    private static final ClassValue<ClassPlan> classPlans = new ClassValue<ClassPlan>() {
+        @Override
+        protected ClassPlan computeValue(Class<?> klass) {
+            return new ClassPlan(klass);
+        }
+    };
+
     /**
      * Recursively render JSON, skipping fields marked with Private or PrivateGet annotations, and id fields of
      * DBModel objects. This produces a JSON rendering that may be served over a Web connection without exposing
      * internal server state. It's lighter-weight and faster than other introspection-based JSON renderers.
+     * 
+     * If writer is non-null, the JSON is being streamed, and writer.checkpoint() is called after each element of
+     * an array or collection and after each field or map entry, so that buf can be flushed as it fills up.
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static void toJSONRec(Object obj, boolean prettyPrint, int depth, StringBuilder buf) {
+    static void toJSONRec(Object obj, boolean prettyPrint, int depth, StringBuilder buf, JSONWriter writer) {
         if (obj == null) {
             buf.append("null");
             return;
         } else {
-            Class<? extends Object> klass = obj.getClass();
-            try {
-                if (klass == String.class) {
-                    buf.append('"');
-                    WebUtils.escapeJSONString((String) obj, buf);
-                    buf.append('"');
-
-                } else if (klass == Integer.class || klass == Boolean.class || klass == Long.class
-                        || klass == Float.class || klass == Double.class || klass == Short.class) {
-                    buf.append(obj.toString());
-
-                } else if (klass == Byte.class) {
-                    buf.append(Integer.toString(((Byte) obj).intValue()));
-
-                } else if (klass == Character.class) {
-                    buf.append('"');
-                    WebUtils.escapeJSONString(((Character) obj).toString(), buf);
-                    buf.append('"');
-
-                } else if (klass.isArray() || List.class.isAssignableFrom(klass)) {
-                    // Render an array or list
-                    boolean isList = List.class.isAssignableFrom(klass);
-                    List<?> list = isList ? (List<?>) obj : null;
-                    int n = isList ? list.size() : Array.getLength(obj);
-                    if (n == 0) {
-                        buf.append(prettyPrint ? "[ ]" : "[]");
-                    } else {
-                        buf.append(prettyPrint ? "[ " : "[");
-                        for (int i = 0; i < n; i++) {
-                            if (i > 0) {
-                                buf.append(prettyPrint ? ", " : ",");
-                            }
-                            // Recursively render value
-                            toJSONRec(isList ? list.get(i) : Array.get(obj, i), prettyPrint, depth + 1, buf);
-                        }
-                        buf.append(prettyPrint ? " ]" : "]");
-                    }
+            ClassPlan plan = classPlans.get(obj.getClass());
+            switch (plan.kind) {
+            case STRING:
+                buf.append('"');
+                WebUtils.escapeJSONString((String) obj, buf);
+                buf.append('"');
+                break;
+
+            case NUMBER_OR_BOOLEAN:
+                buf.append(obj.toString());
+                break;
+
+            case BYTE:
+                buf.append(Integer.toString(((Byte) obj).intValue()));
+                break;
+
+            case CHARACTER:
+                buf.append('"');
+                WebUtils.escapeJSONString(((Character) obj).toString(), buf);
+                buf.append('"');
+                break;
 
-                } else if (Iterable.class.isAssignableFrom(klass)) {
-                    // Render an Iterable (e.g. a Set)
-                    Iterable<?> iterable = (Iterable<?>) obj;
-                    boolean empty = true;
+            case ARRAY:
+            case LIST: {
+                // Render an array or list
+                boolean isList = plan.kind == Kind.LIST;
+                List<?> list = isList ? (List<?>) obj : null;
+                int n = isList ? list.size() : Array.getLength(obj);
+                if (n == 0) {
+                    buf.append(prettyPrint ? "[ ]" : "[]");
+                } else {
                     buf.append(prettyPrint ? "[ " : "[");
-                    int i = 0;
-                    for (Object element : iterable) {
-                        if (i++ > 0) {
+                    for (int i = 0; i < n; i++) {
+                        if (i > 0) {
                             buf.append(prettyPrint ? ", " : ",");
                         }
                         // Recursively render value
-                        toJSONRec(element, prettyPrint, depth + 1, buf);
-                        empty = false;
+                        toJSONRec(isList ? list.get(i) : Array.get(obj, i), prettyPrint, depth + 1, buf, writer);
+                        if (writer != null) {
+                            writer.checkpoint();
+                        }
+                    }
+                    buf.append(prettyPrint ? " ]" : "]");
+                }
+                break;
+            }
+
+            case ITERABLE: {
+                // Render an Iterable (e.g. a Set)
+                Iterable<?> iterable = (Iterable<?>) obj;
+                boolean empty = true;
+                buf.append(prettyPrint ? "[ " : "[");
+                int i = 0;
+                for (Object element : iterable) {
+                    if (i++ > 0) {
+                        buf.append(prettyPrint ? ", " : ",");
                     }
-                    if (!empty && prettyPrint) {
-                        buf.append(' ');
+                    // Recursively render value
+                    toJSONRec(element, prettyPrint, depth + 1, buf, writer);
+                    if (writer != null) {
+                        writer.checkpoint();
                     }
-                    buf.append(prettyPrint ? (!empty ? " ]" : "]") : "]");
+                    empty = false;
+                }
+                if (!empty && prettyPrint) {
+                    buf.append(' ');
+                }
+                buf.append(prettyPrint ? (!empty ? " ]" : "]") : "]");
+                break;
+            }
 
-                } else if (Map.class.isAssignableFrom(klass)) {
-                    // Render a Map as a JSON associative array.
-                    Map<?, ?> map = (Map<?, ?>) obj;
-                    if (map.size() == 0) {
-                        buf.append(prettyPrint ? "{ }" : "{}");
-                    } else {
-                        buf.append(prettyPrint ? "{\n" : "{");
-                        if (prettyPrint) {
-                            // If prettyprinting, get first non-null key and see if it
-                            // implements Comparable, and if so, sort the keys into order
-                            ArrayList<?> keys = new ArrayList<>(map.keySet());
-                            int n = keys.size();
-                            Object firstKey = keys.get(0);
-                            if (firstKey == null && n > 1) {
-                                firstKey = keys.get(1);
+            case MAP: {
+                // Render a Map as a JSON associative array.
+                Map<?, ?> map = (Map<?, ?>) obj;
+                if (map.size() == 0) {
+                    buf.append(prettyPrint ? "{ }" : "{}");
+                } else {
+                    buf.append(prettyPrint ? "{\n" : "{");
+                    if (prettyPrint) {
+                        // If prettyprinting, get first non-null key and see if it
+                        // implements Comparable, and if so, sort the keys into order
+                        ArrayList<?> keys = new ArrayList<>(map.keySet());
+                        int n = keys.size();
+                        Object firstKey = keys.get(0);
+                        if (firstKey == null && n > 1) {
+                            firstKey = keys.get(1);
+                        }
+                        if (firstKey != null) {
+                            if (Comparable.class.isAssignableFrom(firstKey.getClass())) {
+                                Collections.sort((ArrayList<Comparable>) keys);
                             }
-                            if (firstKey != null) {
-                                if (Comparable.class.isAssignableFrom(firstKey.getClass())) {
-                                    Collections.sort((ArrayList<Comparable>) keys);
-                                }
+                        }
+                        for (int i = 0; i < n; i++) {
+                            Object key = keys.get(i);
+                            Object val = map.get(key);
+
+                            // Render key 
+                            if (prettyPrint) {
+                                buf.append(StringUtils.spaces(depth + 1));
                             }
-                            for (int i = 0; i < n; i++) {
-                                Object key = keys.get(i);
-                                Object val = map.get(key);
-
-                                // Render key 
-                                if (prettyPrint) {
-                                    buf.append(StringUtils.spaces(depth + 1));
-                                }
-                                buf.append('"');
-                                WebUtils.escapeJSONString(key.toString(), buf);
-                                buf.append(prettyPrint ? "\" : " : "\":");
-
-                                // Recursively render value
-                                toJSONRec(val, prettyPrint, depth + 1, buf);
-                                if (i < n - 1) {
-                                    buf.append(prettyPrint ? ",\n" : ",");
-                                } else if (prettyPrint) {
-                                    buf.append('\n');
-                                }
+                            buf.append('"');
+                            WebUtils.escapeJSONString(key.toString(), buf);
+                            buf.append(prettyPrint ? "\" : " : "\":");
+
+                            // Recursively render value
+                            toJSONRec(val, prettyPrint, depth + 1, buf, writer);
+                            if (writer != null) {
+                                writer.checkpoint();
                             }
-                        } else {
-                            // Save time if not prettyprinting
-                            int remaining = map.size();
-                            for (Entry ent : map.entrySet()) {
-                                Object key = ent.getKey();
-                                Object val = ent.getValue();
-
-                                // Render key 
-                                if (prettyPrint) {
-                                    buf.append(StringUtils.spaces(depth + 1));
-                                }
-                                buf.append('"');
-                                WebUtils.escapeJSONString(key.toString(), buf);
-                                buf.append(prettyPrint ? "\" : " : "\":");
-
-                                // Recursively render value
-                                toJSONRec(val, prettyPrint, depth + 1, buf);
-                                if (--remaining > 0) {
-                                    buf.append(prettyPrint ? ",\n" : ",");
-                                } else if (prettyPrint) {
-                                    buf.append('\n');
-                                }
+                            if (i < n - 1) {
+                                buf.append(prettyPrint ? ",\n" : ",");
+                            } else if (prettyPrint) {
+                                buf.append('\n');
                             }
                         }
-                        if (prettyPrint) {
-                            buf.append(StringUtils.spaces(depth));
-                        }
-                        buf.append('}');
-                    }
-
-                } else {
-                    // Some other class -- render fields as a JSON associative array using introspection.
-                    ArrayList<Field> fieldsToInclude = new ArrayList<>();
-                    Field[] fields = klass.getFields();
-                    for (int i = 0; i < fields.length; i++) {
-                        Field field = fields[i];
-                        // DataModel fields annotated with @Private or @OnlyReceive and
-                        // DBModel id fields cannot be sent to the user
-                        if (!FieldChecker.fieldIsPrivate(field, /* checkGet = */true, /* checkSet = */false)) {
-                            // In case class is not itself public, need to call setAccessible(true)
-                            // FIXME: Need to do the same everywhere else we get fields, or
-                            // FIXME: alternatively catch IllegalAccessException and tell the user
-                            // FIXME: that the class needs to be public.
-                            field.setAccessible(true);
-                            fieldsToInclude.add(field);
-                        }
-                    }
-                    int n = fieldsToInclude.size();
-                    if (n == 0) {
-                        buf.append(prettyPrint ? "{ }" : "{}");
                     } else {
-                        buf.append(prettyPrint ? "{\n" : "{");
-                        for (int i = 0; i < n; i++) {
-                            Field field = fieldsToInclude.get(i);
+                        // Save time if not prettyprinting
+                        int remaining = map.size();
+                        for (Entry ent : map.entrySet()) {
+                            Object key = ent.getKey();
+                            Object val = ent.getValue();
 
-                            // Render field name as key
+                            // Render key 
                             if (prettyPrint) {
                                 buf.append(StringUtils.spaces(depth + 1));
                             }
                             buf.append('"');
-                            WebUtils.escapeJSONString(field.getName(), buf);
+                            WebUtils.escapeJSONString(key.toString(), buf);
                             buf.append(prettyPrint ? "\" : " : "\":");
 
-                            // Render value
-                            // Turn primitive types into strings, they have their own getter methods
-                            Class<?> fieldType = field.getType();
-                            if (fieldType == Integer.TYPE) {
-                                buf.append(Integer.toString(field.getInt(obj)));
-                            } else if (fieldType == Boolean.TYPE) {
-                                buf.append(Boolean.toString(field.getBoolean(obj)));
-                            } else if (fieldType == Long.TYPE) {
-                                buf.append(Long.toString(field.getLong(obj)));
-                            } else if (fieldType == Float.TYPE) {
-                                buf.append(Float.toString(field.getFloat(obj)));
-                            } else if (fieldType == Double.TYPE) {
-                                buf.append(Double.toString(field.getDouble(obj)));
-                            } else if (fieldType == Short.TYPE) {
-                                buf.append(Short.toString(field.getShort(obj)));
-                            } else if (fieldType == Byte.TYPE) {
-                                buf.append(Integer.toString((int) field.getByte(obj)));
-                            } else if (fieldType == Character.TYPE) {
-                                buf.append('"');
-                                WebUtils.escapeJSONString(Character.toString(field.getChar(obj)), buf);
-                                buf.append('"');
-                            } else {
-                                // Not a primitive type; recursively render value
-                                toJSONRec(field.get(obj), prettyPrint, depth + 1, buf);
+                            // Recursively render value
+                            toJSONRec(val, prettyPrint, depth + 1, buf, writer);
+                            if (writer != null) {
+                                writer.checkpoint();
                             }
-                            if (i < n - 1) {
+                            if (--remaining > 0) {
                                 buf.append(prettyPrint ? ",\n" : ",");
                             } else if (prettyPrint) {
                                 buf.append('\n');
                             }
                         }
+                    }
+                    if (prettyPrint) {
+                        buf.append(StringUtils.spaces(depth));
+                    }
+                    buf.append('}');
+                }
+                break;
+            }
+
+            default: {
+                // Some other class -- render the public fields as a JSON associative array
+                FieldPlan[] fields = plan.fields;
+                int n = fields.length;
+                if (n == 0) {
+                    buf.append(prettyPrint ? "{ }" : "{}");
+                } else {
+                    buf.append(prettyPrint ? "{\n" : "{");
+                    for (int i = 0; i < n; i++) {
+                        FieldPlan field = fields[i];
+
+                        // Render field name as key
                         if (prettyPrint) {
-                            buf.append(StringUtils.spaces(depth));
+                            buf.append(StringUtils.spaces(depth + 1));
                         }
-                        buf.append('}');
+                        buf.append(prettyPrint ? field.keyPrettyPrint : field.key);
+
+                        // Render value
+                        try {
+                            field.render(obj, prettyPrint, depth, buf, writer);
+                        } catch (RuntimeException | Error e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            // Should not happen, field getters don't throw checked exceptions
+                            throw new RuntimeException("Could not render object into JSON", e);
+                        }
+                        if (writer != null) {
+                            writer.checkpoint();
+                        }
+                        if (i < n - 1) {
+                            buf.append(prettyPrint ? ",\n" : ",");
+                        } else if (prettyPrint) {
+                            buf.append('\n');
+                        }
+                    }
+                    if (prettyPrint) {
+                        buf.append(StringUtils.spaces(depth));
                     }
+                    buf.append('}');
                 }
-            } catch (IllegalArgumentException | IllegalAccessException e) {
-                throw new RuntimeException("Could not render object into JSON", e);
+                break;
+            }
             }
         }
     }
@@ -258,9 +409,21 @@ public class JSON {
      * be served over a Web connection without exposing internal server state.
      */
     public static String toJSON(Object obj, boolean prettyPrint) {
-        StringBuilder buf = new StringBuilder(8192);
-        toJSONRec(obj, prettyPrint, 0, buf);
-        return buf.toString();
+        StringBuilder buf = RenderBuffer.acquire();
+        try {
+            toJSONRec(obj, prettyPrint, 0, buf, null);
+            return buf.toString();
+        } finally {
+            RenderBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Recursively render an Object (or array, list, map or set of objects) as JSON, appending the JSON to the given
+     * buffer, e.g. a buffer obtained from RenderBuffer.acquire().
+     */
+    public static void toJSON(Object obj, boolean prettyPrint, StringBuilder buf) {
+        toJSONRec(obj, prettyPrint, 0, buf, null);
     }
 
     /**
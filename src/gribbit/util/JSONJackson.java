@@ -31,6 +31,7 @@ import java.io.InputStream;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -68,6 +69,11 @@ public class JSONJackson {
         return mapper.readValue(inputStream, klass);
     }
 
+    /** Create a streaming parser for the JSON in the given InputStream. */
+    public static JsonParser createParser(InputStream inputStream) throws IOException {
+        return factory.createParser(inputStream);
+    }
+
     //    // Superceded by JSON.toJSON(), which respects @Private annotations etc. 
     //    public static <T> String objectToJson(Object object) throws JsonProcessingException {
     //        return mapper.writeValueAsString(object);
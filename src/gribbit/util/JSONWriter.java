@@ -0,0 +1,141 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Streams JSON as UTF-8 in chunks, so that a large JSON response never needs to exist in memory all at once. Values
+ * are rendered the same way as by JSON.toJSON(), into a reusable buffer that is encoded into a heap ByteBuf and
+ * passed on to a chunk consumer whenever about chunkSize bytes have been rendered. The consumer takes ownership of
+ * each buffer, and may block (e.g. to wait for a slow client to catch up).
+ * 
+ * finish() must be called once all values have been written, or release() if writing fails.
+ */
+public class JSONWriter {
+    private final boolean prettyPrint;
+    private final int chunkSize;
+    private final Consumer<ByteBuf> chunkConsumer;
+    private StringBuilder buf = RenderBuffer.acquire();
+
+    public JSONWriter(boolean prettyPrint, int chunkSize, Consumer<ByteBuf> chunkConsumer) {
+        this.prettyPrint = prettyPrint;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunkConsumer = chunkConsumer;
+    }
+
+    /** Stream JSON to an OutputStream. The stream is not closed by finish(). */
+    public JSONWriter(boolean prettyPrint, int chunkSize, OutputStream outputStream) {
+        this(prettyPrint, chunkSize, chunk -> {
+            try {
+                chunk.readBytes(outputStream, chunk.readableBytes());
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write JSON", e);
+            } finally {
+                chunk.release();
+            }
+        });
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Write an Object (or array, list, map or set of objects) as JSON, skipping fields marked with the annotations
+     * Private or PrivateGet, and id fields of DBModel objects.
+     */
+    public void write(Object obj) {
+        JSON.toJSONRec(obj, prettyPrint, 0, buf, this);
+        checkpoint();
+    }
+
+    /**
+     * Write the elements returned by an iterator (e.g. a database cursor) as a JSON array, rendering each element
+     * as it is returned, so that the elements never need to be held in memory all at once. The output is the same
+     * as for a List of the same elements.
+     */
+    public void writeArray(Iterator<?> iterator) {
+        if (!iterator.hasNext()) {
+            buf.append(prettyPrint ? "[ ]" : "[]");
+        } else {
+            buf.append(prettyPrint ? "[ " : "[");
+            for (boolean first = true; iterator.hasNext(); first = false) {
+                if (!first) {
+                    buf.append(prettyPrint ? ", " : ",");
+                }
+                JSON.toJSONRec(iterator.next(), prettyPrint, 1, buf, this);
+                checkpoint();
+            }
+            buf.append(prettyPrint ? " ]" : "]");
+        }
+        checkpoint();
+    }
+
+    /** Called at points where the buffer can be flushed. Flushes the buffer if it has filled up. */
+    void checkpoint() {
+        // Chars take at least one byte in UTF-8, so the buffer is full if it contains chunkSize chars. Checkpoints
+        // are never inside a string, so a surrogate pair is never split across chunks.
+        if (buf.length() >= chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Encode the buffer as UTF-8 into a ByteBuf, and pass it on to the chunk consumer. The ByteBuf is not pooled,
+     * since a consumer that writes it to a Vert.x response can't release it.
+     */
+    private void flush() {
+        if (buf.length() > 0) {
+            ByteBuf chunk = Unpooled.buffer(ByteBufUtil.utf8Bytes(buf));
+            ByteBufUtil.writeUtf8(chunk, buf);
+            buf.setLength(0);
+            chunkConsumer.accept(chunk);
+        }
+    }
+
+    /** Flush any remaining JSON, and release the buffer. */
+    public void finish() {
+        try {
+            flush();
+        } finally {
+            release();
+        }
+    }
+
+    /** Release the buffer without flushing it, e.g. if writing failed. May be called more than once. */
+    public void release() {
+        if (buf != null) {
+            RenderBuffer.release(buf);
+            buf = null;
+        }
+    }
+}
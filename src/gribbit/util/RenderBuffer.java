@@ -0,0 +1,172 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable StringBuilders for rendering responses, so that steady-state rendering doesn't allocate (and then
+ * repeatedly grow) a new buffer for each request.
+ * 
+ * Each platform thread keeps one buffer. Virtual threads are typically only used for a single request, so they
+ * share a small bounded pool of buffers instead. Each pool keeps a moving average of the rendered length; a buffer
+ * grows as needed to render a large page, but if its capacity ends up much larger than the typical rendered length,
+ * it is dropped on release and replaced with a buffer of the typical size, so that one outlier page doesn't pin a
+ * large buffer in memory indefinitely.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * StringBuilder buf = RenderBuffer.acquire();
+ * try {
+ *     // ... render into buf, and copy out the result ...
+ * } finally {
+ *     RenderBuffer.release(buf);
+ * }
+ * </pre>
+ */
+public class RenderBuffer {
+
+    /** The initial capacity of a render buffer. */
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /** Buffers up to this capacity are always retained on release, regardless of the typical rendered length. */
+    private static final int MIN_RETAINED_CAPACITY = 64 * 1024;
+
+    /** Buffers with capacity more than this many times the typical rendered length are dropped on release. */
+    private static final int MAX_CAPACITY_TO_AVG_LEN_RATIO = 4;
+
+    /** The weight of a new rendered length in the moving average is 1 / (1 << AVG_LEN_SHIFT). */
+    private static final int AVG_LEN_SHIFT = 3;
+
+    /** A buffer cached for a platform thread, or held in the shared pool for virtual threads. */
+    private static class Slot {
+        private StringBuilder buf = new StringBuilder(INITIAL_CAPACITY);
+        private boolean inUse;
+        private int avgLen;
+
+        /**
+         * Update the moving average of the rendered length, and replace the buffer with a smaller one if it grew
+         * much larger than the typical rendered length.
+         */
+        private void recycle(int renderedLen) {
+            avgLen += (renderedLen - avgLen) >> AVG_LEN_SHIFT;
+            if (buf.capacity() > MIN_RETAINED_CAPACITY
+                    && buf.capacity() > avgLen * MAX_CAPACITY_TO_AVG_LEN_RATIO) {
+                buf = new StringBuilder(Math.max(INITIAL_CAPACITY, avgLen * 2));
+            } else {
+                buf.setLength(0);
+            }
+        }
+    }
+
+    /** The buffer cached for each platform thread. */
+    private static final ThreadLocal<Slot> threadSlot = ThreadLocal.withInitial(Slot::new);
+
+    /** The shared buffer currently in use by each virtual thread, if any. */
+    private static final ThreadLocal<Slot> virtualThreadSlot = new ThreadLocal<>();
+
+    /** Buffers shared between virtual threads. */
+    private static final ArrayBlockingQueue<Slot> sharedSlots = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    /** Thread.isVirtual(), or null if the runtime doesn't support virtual threads (Gribbit is compiled for Java 8). */
+    private static final MethodHandle IS_VIRTUAL;
+    static {
+        MethodHandle isVirtual;
+        try {
+            isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            isVirtual = null;
+        }
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private static boolean isVirtualThread(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Get an empty render buffer. The buffer must be passed to release() once its contents have been copied out,
+     * and must not be used after it has been released. If the calling thread's buffer is already in use (i.e. for
+     * a nested render), a new buffer is returned.
+     */
+    public static StringBuilder acquire() {
+        if (isVirtualThread(Thread.currentThread())) {
+            if (virtualThreadSlot.get() != null) {
+                return new StringBuilder(INITIAL_CAPACITY);
+            }
+            Slot slot = sharedSlots.poll();
+            if (slot == null) {
+                slot = new Slot();
+            }
+            virtualThreadSlot.set(slot);
+            return slot.buf;
+        }
+        Slot slot = threadSlot.get();
+        if (slot.inUse) {
+            return new StringBuilder(INITIAL_CAPACITY);
+        }
+        slot.inUse = true;
+        return slot.buf;
+    }
+
+    /**
+     * Release a render buffer obtained from acquire(). Buffers that were not pooled (i.e. that were allocated for
+     * a nested render) are ignored.
+     */
+    public static void release(StringBuilder buf) {
+        if (isVirtualThread(Thread.currentThread())) {
+            Slot slot = virtualThreadSlot.get();
+            if (slot == null || slot.buf != buf) {
+                return;
+            }
+            virtualThreadSlot.remove();
+            slot.recycle(buf.length());
+            sharedSlots.offer(slot);
+        } else {
+            Slot slot = threadSlot.get();
+            if (slot.buf != buf || !slot.inUse) {
+                return;
+            }
+            slot.inUse = false;
+            slot.recycle(buf.length());
+        }
+    }
+}
@@ -478,6 +478,117 @@ public class WebUtils {
         NEVER, IF_NOT_VALID_ENTITY, ALWAYS;
     }
 
+    /** The entities that chars are escaped into by encodeForHTML(), indexed by HTML_CHAR_CLASS - HTML_ENTITY_BASE. */
+    private static final String[] HTML_ENTITIES;
+
+    /** The class of each char in encodeForHTML(): HTML_SAFE, HTML_AMPERSAND, etc., or HTML_ENTITY_BASE + index. */
+    private static final byte[] HTML_CHAR_CLASS = new byte[1 << 16];
+
+    private static final byte HTML_SAFE = 0;
+    private static final byte HTML_AMPERSAND = 1;
+    private static final byte HTML_NEWLINE = 2;
+    private static final byte HTML_WHITESPACE = 3;
+    private static final byte HTML_ENTITY_BASE = 4;
+
+    static {
+        String[] charsAndEntities = {
+                "<", "&lt;", //
+                ">", "&gt;", //
+                // We always escape double quotes, that way there's no chance that an HTML attribute renderer
+                // accidentally forgets to set an option to true to escape quotes. (This would allow content
+                // injection by breaking out of the attribute value)
+                "\"", "&quot;", //
+                "\\", "&lsol;", //
+                // Always escape single quotes, in case some consumer of this HTML chooses to render attribute values
+                // in single quotes and forgets to escape the content.
+                "'", "&#x27;", // See http://goo.gl/FzoP6m
+                // We don't escape '/', since this is not a dangerous char if attr values are always quoted
+                // Encode a few common characters that like to get screwed up in some charset/browser variants
+                "—", "&mdash;", //
+                "–", "&ndash;", //
+                "“", "&ldquo;", //
+                "”", "&rdquo;", //
+                "‘", "&lsquo;", //
+                "’", "&rsquo;", //
+                "«", "&laquo;", //
+                "»", "&raquo;", //
+                "£", "&pound;", //
+                "©", "&copy;", //
+                "®", "&reg;", //
+                Character.toString(StringUtils.NBSP_CHAR), "&nbsp;", //
+        };
+        HTML_ENTITIES = new String[charsAndEntities.length / 2];
+        for (int c = 0; c < HTML_CHAR_CLASS.length; c++) {
+            HTML_CHAR_CLASS[c] = c == '&' ? HTML_AMPERSAND : c == '\n' ? HTML_NEWLINE
+                    : c <= 32 || StringUtils.isUnicodeWhitespace((char) c) ? HTML_WHITESPACE : HTML_SAFE;
+        }
+        for (int i = 0; i < HTML_ENTITIES.length; i++) {
+            HTML_CHAR_CLASS[charsAndEntities[i * 2].charAt(0)] = (byte) (HTML_ENTITY_BASE + i);
+            HTML_ENTITIES[i] = charsAndEntities[i * 2 + 1];
+        }
+    }
+
+    /**
+     * Returns true if VALID_ENTITY matches str.subSequence(start, end), without creating a subsequence or a
+     * Matcher. VALID_ENTITY is matched by hand: '&' followed by 1-5 decimal digits, or 'x' and 1-4 hex digits,
+     * preceded by '#', or by a letter and one or more word chars; then ';', then no line terminators until end.
+     */
+    private static boolean isValidEntity(CharSequence str, int start, int end) {
+        int i = start;
+        if (i >= end || str.charAt(i++) != '&' || i >= end) {
+            return false;
+        }
+        char c = str.charAt(i++);
+        if (c == '#') {
+            boolean isHex = i < end && str.charAt(i) == 'x';
+            if (isHex) {
+                i++;
+            }
+            int maxDigits = isHex ? 4 : 5;
+            int digitsStart = i;
+            while (i < end && i - digitsStart < maxDigits
+                    && (isHex ? isASCIIHexDigit(str.charAt(i)) : isASCIIDigit(str.charAt(i)))) {
+                i++;
+            }
+            if (i == digitsStart) {
+                return false;
+            }
+        } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            int wordCharsStart = i;
+            while (i < end && isASCIIWordChar(str.charAt(i))) {
+                i++;
+            }
+            if (i == wordCharsStart) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        if (i >= end || str.charAt(i++) != ';') {
+            return false;
+        }
+        // ".*" doesn't match line terminators
+        for (; i < end; i++) {
+            c = str.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isASCIIDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isASCIIHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean isASCIIWordChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
     /**
      * Encodes HTML-unsafe characters as HTML entities.
      * 
@@ -513,10 +624,40 @@ public class WebUtils {
     public static void encodeForHTML(CharSequence unsafeStr, EscapeAmpersand escapeAmpersand,
             boolean preserveWhitespaceRuns, boolean preserveNewline, boolean turnNewlineIntoBreak,
             StringBuilder buf) {
+        // Copy runs of characters that don't need escaping in bulk, and look up the action to take for each other
+        // character in a table
+        int runStart = 0;
         for (int i = 0, n = unsafeStr.length(); i < n; i++) {
             char c = unsafeStr.charAt(i);
-            switch (c) {
-            case '&':
+            byte charClass = HTML_CHAR_CLASS[c];
+            if (charClass == HTML_SAFE || (c == ' ' && runStart < i && unsafeStr.charAt(i - 1) != ' ')) {
+                // A space that follows a safe char is never collapsed, so it can be part of a run
+                continue;
+            }
+            if (runStart < i) {
+                buf.append(unsafeStr, runStart, i);
+            }
+            runStart = i + 1;
+            if (charClass == HTML_NEWLINE) {
+                if (turnNewlineIntoBreak) {
+                    buf.append("<br>");
+                    continue;
+                } else if (preserveNewline) {
+                    buf.append('\n');
+                    continue;
+                }
+                // else handle newline as another control character
+                charClass = HTML_WHITESPACE;
+            }
+            if (charClass == HTML_WHITESPACE) {
+                // Turn control characters and Unicode whitespaces into regular spaces
+                if (preserveWhitespaceRuns) {
+                    buf.append(' ');
+                } else if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ') {
+                    // Don't insert another space if there's already one in the buffer
+                    buf.append(' ');
+                }
+            } else if (charClass == HTML_AMPERSAND) {
                 switch (escapeAmpersand) {
                 case ALWAYS:
                     buf.append('&');
@@ -528,107 +669,20 @@ public class WebUtils {
                     // If not escaping ampersands, still do smart escaping: if we come across an ampersand,
                     // it must start a valid entity. If not, escape the ampersand as &amp; .
                     int end = Math.min(i + 32, n); // Assume entities can't be more than 32 chars long
-                    int start = i + 1;
-                    boolean validEntity = end > start && //
-                            VALID_ENTITY.matcher(unsafeStr.subSequence(start, end)).matches();
-                    if (validEntity) {
+                    if (isValidEntity(unsafeStr, i + 1, end)) {
                         buf.append('&');
                     } else {
                         buf.append("&amp;");
                     }
                     break;
                 }
-                break;
-            case '<':
-                buf.append("&lt;");
-                break;
-            case '>':
-                buf.append("&gt;");
-                break;
-            case '"':
-                // We always escape double quotes, that way there's no chance that an HTML attribute renderer
-                // accidentally forgets to set an option to true to escape quotes. (This would allow content
-                // injection by breaking out of the attribute value)
-                buf.append("&quot;");
-                break;
-            case '\\':
-                buf.append("&lsol;");
-                break;
-            case '\'':
-                // Always escape single quotes, in case some consumer of this HTML chooses to render attribute values
-                // in single quotes and forgets to escape the content.
-                buf.append("&#x27;"); // See http://goo.gl/FzoP6m
-                break;
-
-            // We don't escape '/', since this is not a dangerous char if attr values are always quoted
-            //            case '/':
-            //                buf.append("&#x2F;");
-            //                break;
-
-            // Encode a few common characters that like to get screwed up in some charset/browser variants
-            case '—':
-                buf.append("&mdash;");
-                break;
-            case '–':
-                buf.append("&ndash;");
-                break;
-            case '“':
-                buf.append("&ldquo;");
-                break;
-            case '”':
-                buf.append("&rdquo;");
-                break;
-            case '‘':
-                buf.append("&lsquo;");
-                break;
-            case '’':
-                buf.append("&rsquo;");
-                break;
-            case '«':
-                buf.append("&laquo;");
-                break;
-            case '»':
-                buf.append("&raquo;");
-                break;
-            case '£':
-                buf.append("&pound;");
-                break;
-            case '©':
-                buf.append("&copy;");
-                break;
-            case '®':
-                buf.append("&reg;");
-                break;
-            case StringUtils.NBSP_CHAR:
-                buf.append("&nbsp;");
-                break;
-            case '\n':
-                if (turnNewlineIntoBreak) {
-                    buf.append("<br>");
-                    break;
-                } else if (preserveNewline) {
-                    buf.append('\n');
-                    break;
-                }
-                // else fall through to default, and handle newline as another control character
-            default:
-                // Non-escaped characters: turn control characters and Unicode whitespaces into regular spaces
-                if (c <= 32 || StringUtils.isUnicodeWhitespace(c)) {
-                    if (preserveWhitespaceRuns) {
-                        buf.append(' ');
-                    } else {
-                        if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ') {
-                            // Don't insert another space if there's already one in the buffer
-                            buf.append(' ');
-                        }
-                    }
-                } else {
-                    // Some other regular non-escaped / not-whitespace character, just add the character to the buffer
-                    buf.append(c);
-                    break;
-                }
+            } else {
+                buf.append(HTML_ENTITIES[charClass - HTML_ENTITY_BASE]);
             }
         }
+        if (runStart < unsafeStr.length()) {
+            buf.append(unsafeStr, runStart, unsafeStr.length());
+        }
     }
 
     /**
@@ -683,47 +737,46 @@ public class WebUtils {
         return buf.toString();
     }
 
+    /** The escape sequences for ASCII chars in JSON strings, or null for chars that don't need escaping. */
+    private static final String[] JSON_ESCAPES = new String[128];
+
+    static {
+        // See http://www.json.org/ under "string"
+        for (int c = 0; c < ' '; c++) {
+            JSON_ESCAPES[c] = "\\u00" + (char) (c >> 4 <= 9 ? '0' + (c >> 4) : 'A' + (c >> 4) - 10)
+                    + (char) ((c & 0xf) <= 9 ? '0' + (c & 0xf) : 'A' + (c & 0xf) - 10);
+        }
+        JSON_ESCAPES['\\'] = "\\\\";
+        JSON_ESCAPES['"'] = "\\\"";
+        // Forward slash can be escaped, but doesn't have to be.
+        // Jackson doesn't escape it, and it makes URLs ugly.
+        // JSON_ESCAPES['/'] = "\\/";
+        JSON_ESCAPES['\b'] = "\\b";
+        JSON_ESCAPES['\t'] = "\\t";
+        JSON_ESCAPES['\n'] = "\\n";
+        JSON_ESCAPES['\f'] = "\\f";
+        JSON_ESCAPES['\r'] = "\\r";
+    }
+
     /** Escape a string to be surrounded in double quotes in JSON. */
     public static void escapeJSONString(String unsafeStr, StringBuilder buf) {
+        // Copy runs of characters that don't need escaping in bulk
+        int runStart = 0;
         for (int i = 0, n = unsafeStr.length(); i < n; i++) {
             char c = unsafeStr.charAt(i);
-            // See http://www.json.org/ under "string"
-            switch (c) {
-            case '\\':
-            case '"':
-                // Forward slash can be escaped, but doesn't have to be.
-                // Jackson doesn't escape it, and it makes URLs ugly.
-                // case '/':
-                buf.append('\\');
-                buf.append(c);
-                break;
-            case '\b':
-                buf.append("\\b");
-                break;
-            case '\t':
-                buf.append("\\t");
-                break;
-            case '\n':
-                buf.append("\\n");
-                break;
-            case '\f':
-                buf.append("\\f");
-                break;
-            case '\r':
-                buf.append("\\r");
-                break;
-            default:
-                if (c < ' ') {
-                    buf.append("\\u00");
-                    int d1 = ((int) c) >> 4;
-                    buf.append(d1 <= 9 ? (char) ('0' + d1) : (char) ('A' + d1 - 10));
-                    int d2 = ((int) c) & 0xf;
-                    buf.append(d2 <= 9 ? (char) ('0' + d2) : (char) ('A' + d2 - 10));
-                } else {
-                    buf.append(c);
+            if (c < 128 && JSON_ESCAPES[c] != null) {
+                if (runStart < i) {
+                    buf.append(unsafeStr, runStart, i);
                 }
+                buf.append(JSON_ESCAPES[c]);
+                runStart = i + 1;
             }
         }
+        if (runStart == 0) {
+            buf.append(unsafeStr);
+        } else if (runStart < unsafeStr.length()) {
+            buf.append(unsafeStr, runStart, unsafeStr.length());
+        }
     }
 
     // -----------------------------------------------------------------------------------------------------
@@ -0,0 +1,188 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import gribbit.model.field.annotation.Email;
+import gribbit.model.field.annotation.MaxIntegerValue;
+import gribbit.model.field.annotation.MaxLength;
+import gribbit.model.field.annotation.MinIntegerValue;
+import gribbit.model.field.annotation.MinLength;
+import gribbit.model.field.annotation.NoTrim;
+import gribbit.model.field.annotation.NormalizeSpacing;
+import gribbit.model.field.annotation.Regex;
+import gribbit.model.field.annotation.Required;
+
+/** Tests the trimming, normalization and constraint checking done by FieldChecker. */
+public class FieldCheckerTest {
+
+    public static class Model {
+        @Required
+        public String name;
+
+        @Email
+        public String email;
+
+        @MinLength(3)
+        @MaxLength(5)
+        public String code;
+
+        @NoTrim
+        @Regex(regex = "x+")
+        public String pattern;
+
+        @NormalizeSpacing
+        public String description;
+
+        public String comment;
+
+        @MinIntegerValue(2)
+        public int count;
+
+        @MaxIntegerValue(5)
+        public Integer rating;
+    }
+
+    private static FieldChecker fieldChecker() {
+        FieldChecker fieldChecker = new FieldChecker();
+        fieldChecker.registerClassForConstraintChecking(Model.class);
+        return fieldChecker;
+    }
+
+    private static Model validModel() {
+        Model model = new Model();
+        model.name = "name";
+        model.email = "user@example.com";
+        model.code = "abcd";
+        model.pattern = "xx";
+        model.description = "a b";
+        model.comment = "comment";
+        model.count = 3;
+        model.rating = 4;
+        return model;
+    }
+
+    private static void assertViolation(FieldChecker fieldChecker, Model model, String expectedViolation) {
+        assertEquals(Collections.singletonList(expectedViolation), fieldChecker.getConstraintViolations(model));
+        try {
+            fieldChecker.checkFieldValuesAgainstConstraintAnnotations(model);
+            fail("Expected constraint violation: " + expectedViolation);
+        } catch (RuntimeException e) {
+            assertEquals(expectedViolation, e.getMessage());
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void validModelHasNoViolations() {
+        FieldChecker fieldChecker = fieldChecker();
+        Model model = validModel();
+        assertEquals(Collections.emptyList(), fieldChecker.getConstraintViolations(model));
+        fieldChecker.checkFieldValuesAgainstConstraintAnnotations(model);
+    }
+
+    @Test
+    public void trimmedAndNormalizedValuesAreWrittenBack() {
+        Model model = validModel();
+        model.name = " name ";
+        model.email = "  User@Example.COM ";
+        model.code = "  abcd ";
+        model.description = "  a   b ";
+        model.comment = "\tcomment\n";
+        fieldChecker().checkFieldValuesAgainstConstraintAnnotations(model);
+        assertEquals("name", model.name);
+        assertEquals("user@example.com", model.email);
+        assertEquals("abcd", model.code);
+        assertEquals("a b", model.description);
+        assertEquals("comment", model.comment);
+    }
+
+    @Test
+    public void lengthIsCheckedAfterTrimming() {
+        Model model = validModel();
+        model.code = "  ab   ";
+        assertViolation(fieldChecker(), model,
+                "Value of field " + Model.class.getName() + ".code must have minimum length (after trimming) of 3");
+    }
+
+    @Test
+    public void noTrimFieldIsNotTrimmedButIsCheckedAgainstRegex() {
+        FieldChecker fieldChecker = fieldChecker();
+        Model model = validModel();
+        model.pattern = " xx";
+        assertViolation(fieldChecker, model, "Value for parameter pattern does not match the regex constraint");
+        assertEquals(" xx", model.pattern);
+    }
+
+    @Test
+    public void nullValueWithRegexIsViolation() {
+        Model model = validModel();
+        model.pattern = null;
+        assertViolation(fieldChecker(), model, "Value for parameter pattern does not match the regex constraint");
+    }
+
+    @Test
+    public void maxIntegerValueIsChecked() {
+        FieldChecker fieldChecker = fieldChecker();
+        Model model = validModel();
+        model.rating = 5;
+        assertEquals(Collections.emptyList(), fieldChecker.getConstraintViolations(model));
+        model.rating = 6;
+        assertViolation(fieldChecker, model,
+                "Parameter " + Model.class.getName() + ".rating must have maximum value 5, but has value 6");
+    }
+
+    @Test
+    public void allViolationsAreReportedInOnePass() {
+        FieldChecker fieldChecker = fieldChecker();
+        Model model = new Model();
+        model.code = "ab";
+        model.pattern = " xx";
+        model.count = 1;
+        String className = Model.class.getName();
+        List<String> expectedViolations = Arrays.asList( //
+                "Required field " + className + ".name is null or empty",
+                "Value of field " + className + ".email is not a valid email address, its value is null",
+                "Value of field " + className + ".code must have minimum length (after trimming) of 3",
+                "Value for parameter pattern does not match the regex constraint",
+                "Parameter " + className + ".count must have minimum value 2, but has value 1",
+                "Required field " + className + ".rating is null");
+        List<String> violations = fieldChecker.getConstraintViolations(model);
+        // Fields are checked in the order returned by Class.getFields(), which is unspecified
+        assertEquals(expectedViolations.size(), violations.size());
+        assertTrue(violations.containsAll(expectedViolations));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.model.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential fuzz test of SanitizedHTML against the previous DOM-only implementation, kept in
+ * gribbit.model.util.oracle. Covers both the plain text path and the parsed path, and cache hits on the parsed path.
+ * Set -Dfuzz.iterations to run a longer fuzz.
+ */
+public class SanitizedHTMLDifferentialTest {
+
+    private static final long SEED = 0x5eed_0019L;
+
+    private static final int ITERATIONS = Integer.getInteger("fuzz.iterations", 20000);
+
+    /** Plain text characters, including the whitespace and punctuation that the plain text path escapes. */
+    private static final String ALPHABET = "abc XYZ 123 \t\n\r\f\u000b\u2003\u3000'\"\\—«é😀.,;#x&<>/=";
+
+    /** Markup, entities and the chars (NUL, NBSP) that are always sent to the parsed path. */
+    private static final String[] MARKUP = { "<b>", "</b>", "<i>", "<a href='x&y'>", "</a>",
+            "<script>x</script>", "<p>", "<br>", "&amp;", "&lt;", "&copy", "\u00a0", "\u0000", "<!-- c -->", "<div>",
+            "<img src=x>" };
+
+    private static final String[][] WHITELISTS = { null, { "a.href", "b" }, { "p", "div.class" } };
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private static String randomString(Random random) {
+        StringBuilder buf = new StringBuilder();
+        int len = random.nextInt(40);
+        boolean markup = random.nextInt(3) == 0;
+        for (int i = 0; i < len; i++) {
+            if (markup && random.nextInt(6) == 0) {
+                buf.append(MARKUP[random.nextInt(MARKUP.length)]);
+            } else if (random.nextInt(20) == 0) {
+                buf.append((char) random.nextInt(65536));
+            } else {
+                buf.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+        }
+        return buf.toString();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void sanitizedHTMLMatchesOracle() {
+        Random random = new Random(SEED);
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            String unsafeHTML = randomString(random);
+            for (String[] whitelist : WHITELISTS) {
+                String expected = new gribbit.model.util.oracle.SanitizedHTML(unsafeHTML, whitelist).toString();
+                // Sanitize twice, so that the second time is served from the cache if the input had to be parsed
+                for (int rep = 0; rep < 2; rep++) {
+                    assertEquals("SanitizedHTML of \"" + unsafeHTML + "\"", expected,
+                            new SanitizedHTML(unsafeHTML, whitelist).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void markupTokensMatchOracle() {
+        for (String token : MARKUP) {
+            for (String unsafeHTML : new String[] { token, "x " + token + " y", token + token }) {
+                for (String[] whitelist : WHITELISTS) {
+                    assertEquals("SanitizedHTML of \"" + unsafeHTML + "\"",
+                            new gribbit.model.util.oracle.SanitizedHTML(unsafeHTML, whitelist).toString(),
+                            new SanitizedHTML(unsafeHTML, whitelist).toString());
+                }
+            }
+        }
+    }
+}
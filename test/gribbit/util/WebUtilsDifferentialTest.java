@@ -0,0 +1,138 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential fuzz test of the table-driven HTML and JSON escaping in WebUtils against the previous implementation,
+ * kept in gribbit.util.oracle. Set -Dfuzz.iterations to run a longer fuzz.
+ */
+public class WebUtilsDifferentialTest {
+
+    private static final long SEED = 0x5eed_0018L;
+
+    private static final int ITERATIONS = Integer.getInteger("fuzz.iterations", 20000);
+
+    /** Characters that hit every escaping case, plus fragments of entity names. */
+    private static final String ALPHABET = "&&&;;;##xX09afAFgzZ_ -<>\"'\\\n\r\t\u0085    "
+            + "—–“”‘’«»£©®é😀\u0000\u001f"
+            + "ltampquot";
+
+    /** Valid, invalid and truncated character references. */
+    private static final String[] ENTITY_FRAGMENTS = { "&&amp;", "&&#12345;", "&&#123456;", "&&#x1F;", "&&#xABCDE;",
+            "&&a;", "&&ab;", "&&a_1;x\n", "&&lt;   ", "&", "&&", "&&#;", "&&#x;" };
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private static String randomString(Random random) {
+        StringBuilder buf = new StringBuilder();
+        int len = random.nextInt(60);
+        for (int i = 0; i < len; i++) {
+            int k = random.nextInt(10);
+            if (k == 0) {
+                buf.append(ENTITY_FRAGMENTS[random.nextInt(ENTITY_FRAGMENTS.length)]);
+            } else if (k == 1) {
+                // Arbitrary UTF-16 code units, including unpaired surrogates
+                buf.append((char) random.nextInt(65536));
+            } else {
+                buf.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+        }
+        return buf.toString();
+    }
+
+    /** Whitespace handling depends on what is already in the buffer, so test with different existing contents. */
+    private static String randomPrefix(Random random) {
+        return random.nextBoolean() ? "" : random.nextBoolean() ? "x " : "x";
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void encodeForHTMLMatchesOracle() {
+        Random random = new Random(SEED);
+        WebUtils.EscapeAmpersand[] escapeAmpersand = WebUtils.EscapeAmpersand.values();
+        gribbit.util.oracle.WebUtils.EscapeAmpersand[] oracleEscapeAmpersand =
+                gribbit.util.oracle.WebUtils.EscapeAmpersand.values();
+        assertEquals(oracleEscapeAmpersand.length, escapeAmpersand.length);
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            String str = randomString(random);
+            String prefix = randomPrefix(random);
+            for (int e = 0; e < escapeAmpersand.length; e++) {
+                for (int flags = 0; flags < 8; flags++) {
+                    boolean preserveWhitespaceRuns = (flags & 1) != 0;
+                    boolean preserveNewline = (flags & 2) != 0;
+                    boolean turnNewlineIntoBreak = (flags & 4) != 0;
+                    StringBuilder expected = new StringBuilder(prefix);
+                    gribbit.util.oracle.WebUtils.encodeForHTML(str, oracleEscapeAmpersand[e],
+                            preserveWhitespaceRuns, preserveNewline, turnNewlineIntoBreak, expected);
+                    StringBuilder actual = new StringBuilder(prefix);
+                    WebUtils.encodeForHTML(str, escapeAmpersand[e], preserveWhitespaceRuns, preserveNewline,
+                            turnNewlineIntoBreak, actual);
+                    assertEquals("encodeForHTML(" + escapeAmpersand[e] + ", flags " + flags + ") of \"" + str
+                            + "\" after \"" + prefix + "\"", expected.toString(), actual.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void escapeJSONStringMatchesOracle() {
+        Random random = new Random(SEED);
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            String str = randomString(random);
+            String prefix = randomPrefix(random);
+            StringBuilder expected = new StringBuilder(prefix);
+            gribbit.util.oracle.WebUtils.escapeJSONString(str, expected);
+            StringBuilder actual = new StringBuilder(prefix);
+            WebUtils.escapeJSONString(str, actual);
+            assertEquals("escapeJSONString of \"" + str + "\"", expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    public void entityFragmentsMatchOracle() {
+        for (String fragment : ENTITY_FRAGMENTS) {
+            for (String str : new String[] { fragment, fragment + fragment, "x" + fragment + "y" }) {
+                for (WebUtils.EscapeAmpersand e : WebUtils.EscapeAmpersand.values()) {
+                    StringBuilder expected = new StringBuilder();
+                    gribbit.util.oracle.WebUtils.encodeForHTML(str,
+                            gribbit.util.oracle.WebUtils.EscapeAmpersand.valueOf(e.name()), false, false, false,
+                            expected);
+                    StringBuilder actual = new StringBuilder();
+                    WebUtils.encodeForHTML(str, e, false, false, false, actual);
+                    assertEquals("encodeForHTML(" + e + ") of \"" + str + "\"", expected.toString(),
+                            actual.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.util.oracle;
+
+import java.util.regex.Pattern;
+
+import gribbit.util.StringUtils;
+
+/**
+ * encodeForHTML() and escapeJSONString() as they were in gribbit.util.WebUtils before HTML and JSON escaping became
+ * table-driven, kept as the oracle for WebUtilsDifferentialTest. Do not optimize this copy.
+ */
+public class WebUtils {
+
+    public static final Pattern VALID_ENTITY = Pattern
+            .compile("^&(#\\d\\d?\\d?\\d?\\d?|#x[\\da-fA-F][\\da-fA-F]?[\\da-fA-F]?[\\da-fA-F]?|[a-zA-Z]\\w+);.*");
+
+    public static enum EscapeAmpersand {
+        NEVER, IF_NOT_VALID_ENTITY, ALWAYS;
+    }
+
+    /**
+     * Encodes HTML-unsafe characters as HTML entities.
+     * 
+     * See OWASP XSS Rule #1 at https://www.owasp.org/index.php/XSS_(Cross_Site_Scripting)_Prevention_Cheat_Sheet
+     * 
+     * @param unsafeStr
+     *            The string to escape to make HTML-safe.
+     * 
+     * @param escapeAmpersand
+     *            If ALWAYS, turn '&' into "&amp;". If IF_NOT_VALID_ENTITY, leave ampersands in place (i.e. assume
+     *            they are already valid entity references of the form "&lt;", but if they don't validate as valid
+     *            entity references, e.g. "H&M", then escape them (=> "H&amp;M"). If NEVER, leave '&' as it is --
+     *            this could be used to force ampersands to be left alone, e.g. in URL attribute values.
+     * 
+     *            However, there is some ambiguity in the case of URL attributes containing '&', see:
+     * 
+     *            http://stackoverflow.com/questions/3705591/do-i-encode-ampersands-in-a-href
+     * 
+     *            This indicates that attribute values should probably always use ALWAYS, even in the case of URL
+     *            attributes. Use NEVER at your peril.
+     * 
+     * @param preserveWhitespaceRuns
+     *            If true, don't collapse multiple successive whitespaces into a single space.
+     * 
+     * @param preserveNewline
+     *            If true, leave newline characters in the text, rather than turning them into a space.
+     * 
+     * @param turnNewlineIntoBreak
+     *            If true, turn '\n' into a break element in the output.
+     * 
+     * @return The sanitized/escaped HTML-safe string.
+     */
+    public static void encodeForHTML(CharSequence unsafeStr, EscapeAmpersand escapeAmpersand,
+            boolean preserveWhitespaceRuns, boolean preserveNewline, boolean turnNewlineIntoBreak,
+            StringBuilder buf) {
+        for (int i = 0, n = unsafeStr.length(); i < n; i++) {
+            char c = unsafeStr.charAt(i);
+            switch (c) {
+            case '&':
+                switch (escapeAmpersand) {
+                case ALWAYS:
+                    buf.append('&');
+                    break;
+                case NEVER:
+                    buf.append("&amp;");
+                    break;
+                case IF_NOT_VALID_ENTITY:
+                    // If not escaping ampersands, still do smart escaping: if we come across an ampersand,
+                    // it must start a valid entity. If not, escape the ampersand as &amp; .
+                    int end = Math.min(i + 32, n); // Assume entities can't be more than 32 chars long
+                    int start = i + 1;
+                    boolean validEntity = end > start && //
+                            VALID_ENTITY.matcher(unsafeStr.subSequence(start, end)).matches();
+                    if (validEntity) {
+                        buf.append('&');
+                    } else {
+                        buf.append("&amp;");
+                    }
+                    break;
+                }
+                break;
+            case '<':
+                buf.append("&lt;");
+                break;
+            case '>':
+                buf.append("&gt;");
+                break;
+            case '"':
+                // We always escape double quotes, that way there's no chance that an HTML attribute renderer
+                // accidentally forgets to set an option to true to escape quotes. (This would allow content
+                // injection by breaking out of the attribute value)
+                buf.append("&quot;");
+                break;
+            case '\\':
+                buf.append("&lsol;");
+                break;
+            case '\'':
+                // Always escape single quotes, in case some consumer of this HTML chooses to render attribute values
+                // in single quotes and forgets to escape the content.
+                buf.append("&#x27;"); // See http://goo.gl/FzoP6m
+                break;
+
+            // We don't escape '/', since this is not a dangerous char if attr values are always quoted
+            //            case '/':
+            //                buf.append("&#x2F;");
+            //                break;
+
+            // Encode a few common characters that like to get screwed up in some charset/browser variants
+            case '—':
+                buf.append("&mdash;");
+                break;
+            case '–':
+                buf.append("&ndash;");
+                break;
+            case '“':
+                buf.append("&ldquo;");
+                break;
+            case '”':
+                buf.append("&rdquo;");
+                break;
+            case '‘':
+                buf.append("&lsquo;");
+                break;
+            case '’':
+                buf.append("&rsquo;");
+                break;
+            case '«':
+                buf.append("&laquo;");
+                break;
+            case '»':
+                buf.append("&raquo;");
+                break;
+            case '£':
+                buf.append("&pound;");
+                break;
+            case '©':
+                buf.append("&copy;");
+                break;
+            case '®':
+                buf.append("&reg;");
+                break;
+            case StringUtils.NBSP_CHAR:
+                buf.append("&nbsp;");
+                break;
+            case '\n':
+                if (turnNewlineIntoBreak) {
+                    buf.append("<br>");
+                    break;
+                } else if (preserveNewline) {
+                    buf.append('\n');
+                    break;
+                }
+                // else fall through to default, and handle newline as another control character
+            default:
+                // Non-escaped characters: turn control characters and Unicode whitespaces into regular spaces
+                if (c <= 32 || StringUtils.isUnicodeWhitespace(c)) {
+                    if (preserveWhitespaceRuns) {
+                        buf.append(' ');
+                    } else {
+                        if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ') {
+                            // Don't insert another space if there's already one in the buffer
+                            buf.append(' ');
+                        }
+                    }
+                } else {
+                    // Some other regular non-escaped / not-whitespace character, just add the character to the buffer
+                    buf.append(c);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Escape a string to be surrounded in double quotes in JSON. */
+    public static void escapeJSONString(String unsafeStr, StringBuilder buf) {
+        for (int i = 0, n = unsafeStr.length(); i < n; i++) {
+            char c = unsafeStr.charAt(i);
+            // See http://www.json.org/ under "string"
+            switch (c) {
+            case '\\':
+            case '"':
+                // Forward slash can be escaped, but doesn't have to be.
+                // Jackson doesn't escape it, and it makes URLs ugly.
+                // case '/':
+                buf.append('\\');
+                buf.append(c);
+                break;
+            case '\b':
+                buf.append("\\b");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\f':
+                buf.append("\\f");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            default:
+                if (c < ' ') {
+                    buf.append("\\u00");
+                    int d1 = ((int) c) >> 4;
+                    buf.append(d1 <= 9 ? (char) ('0' + d1) : (char) ('A' + d1 - 10));
+                    int d2 = ((int) c) & 0xf;
+                    buf.append(d2 <= 9 ? (char) ('0' + d2) : (char) ('A' + d2 - 10));
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+    }
+}